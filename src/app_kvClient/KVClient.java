@@ -1,9 +1,15 @@
 package app_kvClient;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -14,8 +20,10 @@ import logger.LogSetup;
 
 import client.KVCommInterface;
 import client.KVStore;
+import client.Pipeline;
 import shared.messages.BasicKVMessage;
 import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
 import shared.ConsoleColors;
 
 import com.google.gson.Gson;
@@ -29,6 +37,7 @@ public class KVClient implements IKVClient {
 
     private static final int MAX_KEY_LEN = 20;
     private static final int MAX_KEY_VAL = 120 * 1024; // 120KB
+    private static final int BULK_LOAD_BATCH = 10000; // puts in flight before collecting their replies
 
     private BufferedReader stdin;
     private boolean stop = false;
@@ -70,6 +79,15 @@ public class KVClient implements IKVClient {
         sb.append(PROMPT).append(ConsoleColors.BLUE_BOLD_BACKGROUND + "get <key>");
         sb.append(ConsoleColors.BLUE + "\t\t\t retrieve the value for the given key from the server \n");
 
+        sb.append(PROMPT).append(ConsoleColors.BLUE_BOLD_BACKGROUND + "bulkload <file>");
+        sb.append(ConsoleColors.BLUE + "\t\t put every \"<key> <value>\" line of a file, pipelined \n");
+
+        sb.append(PROMPT).append(ConsoleColors.BLUE_BOLD_BACKGROUND + "putfile <key> <file>");
+        sb.append(ConsoleColors.BLUE + "\t put the contents of a file of any size, sent in chunks \n");
+
+        sb.append(PROMPT).append(ConsoleColors.BLUE_BOLD_BACKGROUND + "getfile <key> <file>");
+        sb.append(ConsoleColors.BLUE + "\t write the value for the given key to a file, received in chunks \n");
+
         sb.append(PROMPT).append(ConsoleColors.BLUE_BOLD_BACKGROUND + "keyrange");
         sb.append(ConsoleColors.BLUE + "\t\t\t retrieve keyranges for all servers \n");
 
@@ -584,6 +602,49 @@ public class KVClient implements IKVClient {
                     printError("Too many arguments!");
             }
 
+        } else if (tokens[0].equals("bulkload")) {
+            if (tokens.length == 2) {
+                if (kvStore != null) {
+                    try {
+                        bulkLoad(tokens[1]);
+                    } catch (IOException e) {
+                        printError("Unable to read " + tokens[1]);
+                    } catch (Exception e) {
+                        logger.error(ConsoleColors.RED_UNDERLINED + "Bulk load failed!" + ConsoleColors.RESET, e);
+                    }
+                } else {
+                    printError("Not connected to server!");
+                }
+            } else {
+                printError("Invalid number of arguments!");
+            }
+
+        } else if (tokens[0].equals("putfile") || tokens[0].equals("getfile")) {
+            if (tokens.length == 3) {
+                if (kvStore != null) {
+                    try {
+                        if (checkValidKey(tokens[1])) {
+                            KVMessage msg = transferFile(tokens[0].equals("putfile"), tokens[1], tokens[2]);
+                            if (msg.getStatus().toString().contains("ERROR")) {
+                                System.out.println(PROMPT + ConsoleColors.RED_UNDERLINED + msg.getStatus() + " " + tokens[1] + ConsoleColors.RESET);
+                            } else {
+                                System.out.println(PROMPT + ConsoleColors.GREEN_BOLD_UNDERLINED + msg.getStatus() + " " + tokens[1] + ConsoleColors.RESET);
+                            }
+                        } else {
+                            printError("Invalid key!");
+                        }
+                    } catch (IOException e) {
+                        printError("Unable to access " + tokens[2]);
+                    } catch (Exception e) {
+                        logger.error(ConsoleColors.RED_UNDERLINED + "File transfer failed!" + ConsoleColors.RESET, e);
+                    }
+                } else {
+                    printError("Not connected to server!");
+                }
+            } else {
+                printError("Invalid number of arguments!");
+            }
+
         } else if (tokens[0].equals("logLevel")) {
             if (tokens.length == 2) {
                 if (LogSetup.isValidLevel(tokens[1])) {
@@ -624,6 +685,63 @@ public class KVClient implements IKVClient {
         }
     }
 
+    /**
+     * Put each "<key> <value>" line of a file through a pipeline, so requests
+     * are not held up waiting for the previous reply. Replies are collected
+     * every BULK_LOAD_BATCH lines to bound the memory held for them. Lines
+     * without a value are reported and skipped rather than put as "null",
+     * which would delete the key.
+     */
+    private void bulkLoad(String path) throws Exception {
+        int[] tally = new int[2]; // loaded, failed
+        int skipped = 0;
+        int lineNumber = 0;
+        long startTime = System.nanoTime();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path));
+                Pipeline pipeline = kvStore.pipeline()) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String[] pair = line.trim().split("\\s+", 2);
+                if (pair[0].isEmpty())
+                    continue;
+                if (pair.length < 2) {
+                    printError("Skipping line " + lineNumber + ", expected <key> <value>");
+                    skipped++;
+                    continue;
+                }
+                pipeline.put(pair[0], pair[1]);
+                if (pipeline.size() == BULK_LOAD_BATCH)
+                    countPuts(pipeline.sync(), tally);
+            }
+            countPuts(pipeline.sync(), tally);
+        }
+        long elapsedTime = (System.nanoTime() - startTime) / 1_000_000;
+        System.out.println(PROMPT + ConsoleColors.GREEN_BOLD_UNDERLINED + "Loaded " + tally[0] + " pairs (" + tally[1] + " failed, " + skipped + " skipped) in "
+                + elapsedTime + " ms" + ConsoleColors.RESET);
+    }
+
+    private KVMessage transferFile(boolean put, String key, String path) throws Exception {
+        if (put) {
+            try (InputStream in = new FileInputStream(path)) {
+                return kvStore.putStream(key, in);
+            }
+        }
+        try (OutputStream out = new FileOutputStream(path)) {
+            return kvStore.getStream(key, out);
+        }
+    }
+
+    private void countPuts(List<KVMessage> replies, int[] tally) {
+        for (KVMessage msg : replies) {
+            StatusType status = msg.getStatus();
+            if (status == StatusType.PUT_SUCCESS || status == StatusType.PUT_UPDATE || status == StatusType.DELETE_SUCCESS)
+                tally[0]++;
+            else
+                tally[1]++;
+        }
+    }
+
     public void run() {
         while (!stop) {
             stdin = new BufferedReader(new InputStreamReader(System.in));
@@ -141,6 +141,14 @@ public class ECSClient implements IECSClient {
         ecs.setTesting(testing);
     }
 
+    public void setVirtualThreads(boolean virtualThreads) {
+        ecs.setVirtualThreads(virtualThreads);
+    }
+
+    public void setReplicas(int replicas) {
+        ecs.setReplicas(replicas);
+    }
+
     public ECS getECS() {
         return ecs;
     }
@@ -290,6 +298,14 @@ public class ECSClient implements IECSClient {
         Option cli = new Option("c", "cli", false, "run cli");
         logLevel.setRequired(false);
         options.addOption(cli);
+
+        Option virtualThreads = new Option("vt", "virtualThreads", false, "serve server connections on virtual threads");
+        virtualThreads.setRequired(false);
+        options.addOption(virtualThreads);
+
+        Option replicas = new Option("n", "replicas", true, "number of replicas of each key besides its coordinator");
+        replicas.setRequired(false);
+        options.addOption(replicas);
     }
 
     public static void main(String[] args) throws IOException {
@@ -328,6 +344,9 @@ public class ECSClient implements IECSClient {
             new LogSetup(ecsLogFile, LogSetup.getLogLevel(ecsLogLevel));
             logger.info(ConsoleColors.PURPLE_BOLD_UNDERLINED + "logger setup is complete." + ConsoleColors.RESET);
             ECSClient ecsClient = new ECSClient(ecsAddress, Integer.parseInt(ecsPort));
+            ecsClient.setVirtualThreads(cmd.hasOption("virtualThreads"));
+            if (cmd.hasOption("replicas"))
+                ecsClient.setReplicas(Integer.parseInt(cmd.getOptionValue("replicas")));
             ecsClient.run();
 
         } catch (Exception e) {
@@ -0,0 +1,133 @@
+package app_kvServer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import shared.Metrics;
+
+/**
+ * Bloom filter over keys, used by storage engines to answer GET misses without
+ * touching the disk. Thread-safe; keys can be added but not removed.
+ *
+ * Engines report how their filters do through record(): a "maybe" that turned
+ * out absent is a false positive, a "no" is a skipped lookup. The resulting
+ * false-positive rate is exported as storage.bloom.false_positive_rate.
+ */
+public class BloomFilter {
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private static final String SKIPPED = "storage.bloom.skipped";
+    private static final String FALSE_POSITIVES = "storage.bloom.false_positives";
+
+    static {
+        Metrics.gauge("storage.bloom.false_positive_rate", () -> {
+            long falsePositives = Metrics.count(FALSE_POSITIVES);
+            long negatives = falsePositives + Metrics.count(SKIPPED);
+            return negatives == 0 ? 0.0 : (double) falsePositives / negatives;
+        });
+    }
+
+    private final AtomicLongArray words;
+    private final long numBits;
+    private final int numHashes;
+    private final long capacity;
+
+    /**
+     * @param expectedInsertions number of keys after which the false-positive
+     *                           rate exceeds the target
+     * @param falsePositiveRate  target false-positive rate
+     */
+    public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+        long n = Math.max(expectedInsertions, 1);
+        long bits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.words = new AtomicLongArray((int) Math.max((bits + 63) / 64, 1));
+        this.numBits = words.length() * 64L;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        this.capacity = n;
+    }
+
+    private BloomFilter(long[] words, int numHashes, long capacity) {
+        this.words = new AtomicLongArray(words);
+        this.numBits = words.length * 64L;
+        this.numHashes = numHashes;
+        this.capacity = capacity;
+    }
+
+    /* 64-bit FNV-1a followed by the murmur3 finalizer */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public void add(String key) {
+        long h = hash(key);
+        int h1 = (int) h, h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            while (((current = words.get(word)) & mask) == 0 && !words.compareAndSet(word, current, current | mask))
+                ; // retry on concurrent update
+        }
+    }
+
+    /**
+     * @return false if the key was definitely never added
+     */
+    public boolean mightContain(String key) {
+        long h = hash(key);
+        int h1 = (int) h, h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Record the outcome of a lookup the filter took part in.
+     * @param mightContain what the filter answered
+     * @param found        whether the key actually existed
+     */
+    public static void record(boolean mightContain, boolean found) {
+        if (!mightContain)
+            Metrics.increment(SKIPPED);
+        else if (!found)
+            Metrics.increment(FALSE_POSITIVES);
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(numHashes);
+        out.writeLong(capacity);
+        out.writeInt(words.length());
+        for (int i = 0; i < words.length(); i++)
+            out.writeLong(words.get(i));
+    }
+
+    public static BloomFilter readFrom(DataInputStream in) throws IOException {
+        int numHashes = in.readInt();
+        long capacity = in.readLong();
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++)
+            words[i] = in.readLong();
+        return new BloomFilter(words, numHashes, capacity);
+    }
+}
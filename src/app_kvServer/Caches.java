@@ -1,6 +1,7 @@
 package app_kvServer;
 
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Caches {
     /**
@@ -321,4 +322,103 @@ public class Caches {
             return kvs.entrySet();
         }
     }
+
+    /**
+     * Thread-safe wrapper: every call holds the wrapper's lock, so
+     * connections can share one cache (even get reorders an LRU cache).
+     * keySet and entrySet return copies, safe to iterate. A lock rather than
+     * synchronized, so virtual threads waiting for it do not pin their
+     * carriers.
+     */
+    public static class SynchronizedCache<K, V> implements Cache<K, V> {
+        private final Cache<K, V> cache;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        public SynchronizedCache(Cache<K, V> cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public V get(K key) {
+            lock.lock();
+            try {
+                return cache.get(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void put(K key, V value) {
+            lock.lock();
+            try {
+                cache.put(key, value);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void remove(K key) {
+            lock.lock();
+            try {
+                cache.remove(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean removeAll() {
+            lock.lock();
+            try {
+                return cache.removeAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            lock.lock();
+            try {
+                return cache.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean containsKey(K key) {
+            lock.lock();
+            try {
+                return cache.containsKey(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Set<String> keySet() {
+            lock.lock();
+            try {
+                return new LinkedHashSet<>(cache.keySet());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            lock.lock();
+            try {
+                Set<Map.Entry<K, V>> entries = new LinkedHashSet<>();
+                for (Map.Entry<K, V> entry : cache.entrySet())
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                return entries;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
 }
\ No newline at end of file
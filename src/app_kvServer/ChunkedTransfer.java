@@ -0,0 +1,201 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import shared.CommunicationService;
+import shared.ConsoleColors;
+import shared.messages.BasicKVMessage;
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * Chunked transfers of large values on one connection, which a front end
+ * hands the PUT_STREAM, PUT_STREAM_END, GET_STREAM and replication requests
+ * to instead of the RequestHandler, as they may get no reply or several.
+ *
+ * A chunked put starts with a PUT_STREAM chunk, answered with PUT_STREAM once
+ * the server has taken on the value (or with the error, e.g.
+ * SERVER_NOT_RESPONSIBLE). Later chunks get no reply; they are written to
+ * storage as they arrive. The value is stored when its PUT_STREAM_END chunk
+ * comes, which is answered like a PUT. A GET_STREAM is answered with the
+ * value read from storage in GET_STREAM chunks, then a GET_SUCCESS with the
+ * last (possibly empty) chunk, so it is never held as a whole. See
+ * CommunicationService.sendChunked and requestChunked for the client side.
+ *
+ * Puts that are still open when the connection closes are dropped.
+ */
+public class ChunkedTransfer {
+    private static Logger logger = Logger.getRootLogger();
+
+    /**
+     * Sends a reply; the message must be encoded before it returns, as the
+     * value's array is reused for the next chunk.
+     */
+    public interface Replies {
+        void send(BasicKVMessage reply) throws IOException;
+    }
+
+    private final KVServer server;
+    private final ObjectMapper om = new ObjectMapper();
+    private final Map<String, ValueOutputStream> puts = new HashMap<>(); // by key, being received
+    private final Set<String> failed = new HashSet<>(); // puts whose chunks could not be stored
+
+    public ChunkedTransfer(KVServer server) {
+        this.server = server;
+    }
+
+    public static boolean isChunked(StatusType status) {
+        return status == StatusType.PUT_STREAM || status == StatusType.PUT_STREAM_END
+                || status == StatusType.GET_STREAM
+                || status == StatusType.REPLICATE_STREAM || status == StatusType.REPLICATE_STREAM_END;
+    }
+
+    public synchronized void handle(BasicKVMessage recv, Replies replies) throws IOException {
+        String key = recv.getKey();
+        if (key == null) {
+            replies.send(reply(StatusType.INVALID_KEY, null));
+            return;
+        }
+
+        switch (recv.getStatus()) {
+            case PUT_STREAM:
+            case REPLICATE_STREAM:
+                putChunk(recv, replies);
+                break;
+            case PUT_STREAM_END:
+            case REPLICATE_STREAM_END:
+                putEnd(recv, replies);
+                break;
+            default:
+                get(key, replies);
+        }
+    }
+
+    private void putChunk(BasicKVMessage recv, Replies replies) throws IOException {
+        String key = recv.getKey();
+        if (failed.contains(key))
+            return; // answered with PUT_ERROR at the end
+
+        ValueOutputStream value = puts.get(key);
+        boolean first = value == null;
+        if (first) {
+            // replicas take what their coordinator sends, as with REPLICATE
+            if (recv.getStatus() == StatusType.PUT_STREAM && !server.isCoordinator(KVServer.escape(key))) {
+                replies.send(notResponsible());
+                return;
+            }
+            value = server.openPutStream(key, recv.getStatus() == StatusType.REPLICATE_STREAM);
+            if (value == null) {
+                replies.send(reply(StatusType.SERVER_WRITE_LOCK, key));
+                return;
+            }
+            puts.put(key, value);
+        }
+
+        try {
+            recv.writeValueTo(value);
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Unable to store chunk of " + key + ConsoleColors.RESET, e);
+            puts.remove(key);
+            value.abort();
+            if (first) {
+                replies.send(reply(StatusType.PUT_ERROR, key));
+                return;
+            }
+            failed.add(key);
+        }
+        if (first)
+            replies.send(reply(recv.getStatus(), key)); // go on
+    }
+
+    private void putEnd(BasicKVMessage recv, Replies replies) throws IOException {
+        String key = recv.getKey();
+        boolean replica = recv.getStatus() == StatusType.REPLICATE_STREAM_END;
+        ValueOutputStream value = puts.remove(key);
+        if (value == null) { // a chunk failed, or there was no first chunk
+            failed.remove(key);
+            replies.send(reply(StatusType.PUT_ERROR, key));
+            return;
+        }
+
+        StatusType status;
+        try {
+            recv.writeValueTo(value);
+            status = server.commitPutStream(key, value);
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Unable to store " + key + ConsoleColors.RESET, e);
+            value.abort();
+            replies.send(reply(StatusType.PUT_ERROR, key));
+            return;
+        }
+
+        if (replica) {
+            replies.send(reply(StatusType.REPLICATE_SUCCESS, key));
+            return;
+        }
+        if (server.replicateStream(key))
+            logger.info(ConsoleColors.GREEN_UNDERLINED + "Replication success" + ConsoleColors.RESET);
+        else
+            logger.info(ConsoleColors.GREEN_UNDERLINED + "Replication failure" + ConsoleColors.RESET);
+        replies.send(reply(status, key));
+    }
+
+    private void get(String key, Replies replies) throws IOException {
+        if (!server.isCoordinatorOrReplicator(KVServer.escape(key))) {
+            replies.send(notResponsible());
+            return;
+        }
+
+        try (InputStream value = server.getKVStream(key)) {
+            if (value == null) {
+                replies.send(reply(StatusType.GET_ERROR, key));
+                return;
+            }
+
+            byte[] chunk = new byte[CommunicationService.CHUNK_SIZE];
+            int length;
+            while ((length = CommunicationService.readChunk(value, chunk)) == chunk.length)
+                replies.send(chunk(StatusType.GET_STREAM, key, chunk, length));
+            replies.send(chunk(StatusType.GET_SUCCESS, key, chunk, length));
+        }
+    }
+
+    private BasicKVMessage notResponsible() throws IOException {
+        return reply(StatusType.SERVER_NOT_RESPONSIBLE, om.writeValueAsString(server.getHashRing()));
+    }
+
+    private static BasicKVMessage reply(StatusType status, String key) {
+        BasicKVMessage reply = new BasicKVMessage(status, key, null);
+        reply.setBinaryProtocol(true);
+        return reply;
+    }
+
+    private static BasicKVMessage chunk(StatusType status, String key, byte[] chunk, int length) {
+        BasicKVMessage reply = new BasicKVMessage(status, key, chunk, 0, length);
+        reply.setBinaryProtocol(true);
+        return reply;
+    }
+
+    /**
+     * Drop the puts still open, e.g. when the connection closes.
+     */
+    public synchronized void close() {
+        for (ValueOutputStream value : puts.values()) {
+            try {
+                value.abort();
+            } catch (IOException e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Unable to drop unfinished value" + ConsoleColors.RESET, e);
+            }
+        }
+        puts.clear();
+        failed.clear();
+    }
+}
@@ -0,0 +1,262 @@
+package app_kvServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Wraps a storage engine and deflates values of at least threshold bytes
+ * before they reach it. Values that do not shrink are stored as they are.
+ *
+ * Compressed values are prefixed with MAGIC and a flag byte. Plain values are
+ * stored unchanged, so data written without compression stays readable; the
+ * rare plain value that itself starts with MAGIC gets a RAW prefix.
+ *
+ * Values written with openWrite are deflated as they arrive into the wrapped
+ * engine's stream, and openRead inflates as it reads, so neither holds the
+ * whole value.
+ */
+public class CompressedStorage implements StorageEngine {
+    public static final int DEFAULT_THRESHOLD = 512;
+
+    private static final byte[] MAGIC = { 0x00, 'Z' };
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+
+    private final StorageEngine engine;
+    private final int threshold;
+
+    public CompressedStorage(StorageEngine engine, int threshold) {
+        this.engine = engine;
+        this.threshold = threshold;
+    }
+
+    private static boolean hasMagic(byte[] value) {
+        return value.length >= MAGIC.length + 1 && value[0] == MAGIC[0] && value[1] == MAGIC[1];
+    }
+
+    private static byte[] withHeader(byte flag, byte[] body, int length) {
+        byte[] stored = new byte[MAGIC.length + 1 + length];
+        stored[0] = MAGIC[0];
+        stored[1] = MAGIC[1];
+        stored[2] = flag;
+        System.arraycopy(body, 0, stored, MAGIC.length + 1, length);
+        return stored;
+    }
+
+    byte[] encode(byte[] value) {
+        if (value.length >= threshold) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(value);
+                deflater.finish();
+                byte[] buffer = new byte[value.length]; // give up if it does not shrink
+                int length = deflater.deflate(buffer);
+                if (deflater.finished() && length + MAGIC.length + 1 < value.length)
+                    return withHeader(DEFLATED, buffer, length);
+            } finally {
+                deflater.end();
+            }
+        }
+        return hasMagic(value) ? withHeader(RAW, value, value.length) : value;
+    }
+
+    static byte[] decode(byte[] stored) throws IOException {
+        if (stored == null || !hasMagic(stored))
+            return stored;
+
+        int offset = MAGIC.length + 1;
+        if (stored[2] == RAW) {
+            byte[] value = new byte[stored.length - offset];
+            System.arraycopy(stored, offset, value, 0, value.length);
+            return value;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, offset, stored.length - offset);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated compressed value");
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed value", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+        return decode(engine.get(key));
+    }
+
+    @Override
+    public void put(String key, byte[] value) throws IOException {
+        engine.put(key, encode(value));
+    }
+
+    /**
+     * Values that end before threshold bytes are encoded as put would;
+     * longer ones are deflated whether or not that shrinks them, as they are
+     * passed on before their end is known.
+     */
+    @Override
+    public ValueOutputStream openWrite(String key) throws IOException {
+        final ValueOutputStream stored = engine.openWrite(key);
+        return new ValueOutputStream() {
+            private ByteArrayOutputStream head = new ByteArrayOutputStream(); // until threshold bytes arrive
+            private Deflater deflater = null;
+            private DeflaterOutputStream deflated = null;
+            private boolean done = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (deflated != null) {
+                    deflated.write(b, off, len);
+                    return;
+                }
+                head.write(b, off, len);
+                if (head.size() >= threshold) {
+                    stored.write(MAGIC);
+                    stored.write(DEFLATED);
+                    deflater = new Deflater(Deflater.BEST_SPEED);
+                    deflated = new DeflaterOutputStream(stored, deflater, 8192);
+                    head.writeTo(deflated);
+                    head = null;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (done)
+                    return;
+                done = true;
+                try {
+                    if (deflated != null)
+                        deflated.finish(); // leaves the wrapped stream open
+                    else
+                        stored.write(encode(head.toByteArray()));
+                } catch (IOException e) {
+                    stored.abort();
+                    throw e;
+                } finally {
+                    if (deflater != null)
+                        deflater.end();
+                }
+                stored.close();
+            }
+
+            @Override
+            public void abort() throws IOException {
+                if (done)
+                    return;
+                done = true;
+                if (deflater != null)
+                    deflater.end();
+                stored.abort();
+            }
+        };
+    }
+
+    @Override
+    public InputStream openRead(String key) throws IOException {
+        InputStream stored = engine.openRead(key);
+        if (stored == null)
+            return null;
+
+        PushbackInputStream in = new PushbackInputStream(stored, MAGIC.length + 1);
+        byte[] header = new byte[MAGIC.length + 1];
+        int length = in.readNBytes(header, 0, header.length);
+        if (length == header.length && hasMagic(header))
+            return header[2] == RAW ? in : new InflaterInputStream(in);
+        in.unread(header, 0, length);
+        return in;
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        return engine.delete(key);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return engine.contains(key);
+    }
+
+    @Override
+    public List<String> keys() throws IOException {
+        return engine.keys();
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> range(String fromKey, String toKey) throws IOException {
+        final Iterator<Map.Entry<String, byte[]>> it = engine.range(fromKey, toKey);
+        return new Iterator<Map.Entry<String, byte[]>>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                Map.Entry<String, byte[]> entry = it.next();
+                try {
+                    return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), decode(entry.getValue()));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to decompress " + entry.getKey(), e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Map<String, byte[]> snapshot() throws IOException {
+        Map<String, byte[]> pairs = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : engine.snapshot().entrySet())
+            pairs.put(entry.getKey(), decode(entry.getValue()));
+        return pairs;
+    }
+
+    @Override
+    public Map<String, BigInteger> knownTokens() {
+        return engine.knownTokens();
+    }
+
+    @Override
+    public void clear() throws IOException {
+        engine.clear();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        engine.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        engine.close();
+    }
+}
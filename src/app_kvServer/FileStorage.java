@@ -0,0 +1,261 @@
+package app_kvServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Default storage: one file per key, named after the escaped key. Only plain
+ * files are keys; subdirectories (such as the server's write-ahead log) are
+ * left alone.
+ *
+ * An in-memory Bloom filter over the stored keys answers most misses without a
+ * filesystem call. Deleted keys stay in the filter, so it is rebuilt from a
+ * directory listing once more keys were added than it was sized for.
+ *
+ * Puts run in parallel (callers order writes to the same key); a rebuild or
+ * clear waits for them, so no key is added to a filter that is being replaced.
+ *
+ * Values written with openWrite go to a temporary file in the PARTIAL_DIR
+ * subdirectory that is moved over the key's file on close, so a large value
+ * never sits in memory and readers never see half of it. Leftover temporary
+ * files from a crash are removed on startup.
+ */
+public class FileStorage implements StorageEngine {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final String PARTIAL_DIR = ".partial";
+
+    private final File dir;
+    private final File partialDir; // values being written with openWrite
+    private final Set<String> unsynced = ConcurrentHashMap.newKeySet(); // written since the last sync
+    private volatile BloomFilter filter;
+    private final AtomicLong added = new AtomicLong(); // keys added to the current filter
+    private final ReadWriteLock filterLock = new ReentrantReadWriteLock(); // puts share, rebuilds are exclusive
+
+    public FileStorage(String dirPath) {
+        this.dir = new File(dirPath);
+        if (!dir.exists())
+            dir.mkdirs();
+        this.partialDir = new File(dir, PARTIAL_DIR);
+        deletePartials(partialDir);
+        File legacy = new File(dir.getAbsoluteFile().getParentFile(), dir.getName() + PARTIAL_DIR);
+        if (deletePartials(legacy)) // staged next to the key directory before
+            legacy.delete();
+        rebuildFilter();
+    }
+
+    /*
+     * Remove values that were never completed
+     *
+     * @return false if there is no such directory
+     */
+    private static boolean deletePartials(File partialDir) {
+        File[] partials = partialDir.listFiles();
+        if (partials == null)
+            return false;
+        for (File partial : partials)
+            partial.delete();
+        return true;
+    }
+
+    private void rebuildFilter() {
+        filterLock.writeLock().lock();
+        try {
+            if (filter != null && added.get() <= filter.getCapacity())
+                return; // rebuilt by another put
+            List<String> keys = keys();
+            BloomFilter rebuilt = new BloomFilter(Math.max(2L * keys.size(), 1024), BloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
+            for (String key : keys)
+                rebuilt.add(key);
+            added.set(keys.size());
+            filter = rebuilt;
+        } finally {
+            filterLock.writeLock().unlock();
+        }
+    }
+
+    private File fileOf(String key) {
+        return new File(dir, key);
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+        if (!filter.mightContain(key)) {
+            BloomFilter.record(false, false);
+            return null;
+        }
+
+        try {
+            byte[] value = Files.readAllBytes(fileOf(key).toPath());
+            BloomFilter.record(true, true);
+            return value;
+        } catch (NoSuchFileException e) {
+            BloomFilter.record(true, false);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] value) throws IOException {
+        store(key, file -> Files.write(file, value)); // overwrite
+    }
+
+    @Override
+    public ValueOutputStream openWrite(final String key) throws IOException {
+        partialDir.mkdirs();
+        final File partial = File.createTempFile("put", null, partialDir);
+        final FileOutputStream fos = new FileOutputStream(partial);
+        final OutputStream out = new BufferedOutputStream(fos, STREAM_BUFFER_SIZE);
+        return new ValueOutputStream() {
+            private boolean done = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (done)
+                    return;
+                done = true;
+                try {
+                    out.flush();
+                    fos.getFD().sync(); // durable without syncing other keys
+                    out.close();
+                    store(key, file -> Files.move(partial.toPath(), file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE));
+                } finally {
+                    partial.delete(); // moved, unless the move failed
+                }
+            }
+
+            @Override
+            public void abort() throws IOException {
+                if (done)
+                    return;
+                done = true;
+                out.close();
+                partial.delete();
+            }
+        };
+    }
+
+    @Override
+    public InputStream openRead(String key) throws IOException {
+        if (!filter.mightContain(key))
+            return null;
+        try {
+            return new BufferedInputStream(Files.newInputStream(fileOf(key).toPath()), STREAM_BUFFER_SIZE);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private interface FileWrite {
+        void to(Path file) throws IOException;
+    }
+
+    /*
+     * Write the key's file and add the key to the filter
+     */
+    private void store(String key, FileWrite write) throws IOException {
+        boolean full;
+        filterLock.readLock().lock();
+        try {
+            write.to(fileOf(key).toPath());
+            unsynced.add(key);
+            filter.add(key);
+            full = added.incrementAndGet() > filter.getCapacity();
+        } finally {
+            filterLock.readLock().unlock();
+        }
+        if (full)
+            rebuildFilter();
+    }
+
+    @Override
+    public boolean delete(String key) {
+        File file = fileOf(key);
+        return file.isFile() && file.delete();
+    }
+
+    /**
+     * Not counted in the Bloom filter metrics, as a contains check is usually
+     * followed by a get for the same key.
+     */
+    @Override
+    public boolean contains(String key) {
+        return filter.mightContain(key) && fileOf(key).isFile();
+    }
+
+    @Override
+    public List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile())
+                    keys.add(file.getName());
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public void clear() {
+        filterLock.writeLock().lock();
+        try {
+            unsynced.clear();
+            filter = new BloomFilter(1024, BloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
+            added.set(0);
+            File[] files = dir.listFiles();
+            if (files == null)
+                return;
+
+            for (File file : files) {
+                if (file.isFile())
+                    file.delete();
+            }
+        } finally {
+            filterLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (String key : new ArrayList<>(unsynced)) {
+            unsynced.remove(key);
+            try (FileChannel channel = FileChannel.open(fileOf(key).toPath(), StandardOpenOption.WRITE)) {
+                channel.force(false);
+            } catch (NoSuchFileException e) {
+                // deleted since it was written
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
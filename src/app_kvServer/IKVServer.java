@@ -10,6 +10,31 @@ public interface IKVServer {
         FIFO
     };
 
+    public enum StorageType {
+        FILE,
+        LOG,
+        MMAP,
+        LSM,
+        MEMORY
+    };
+
+    public enum FsyncPolicy {
+        ALWAYS,
+        INTERVAL,
+        OS
+    };
+
+    public enum FrontEnd {
+        THREAD,
+        VIRTUAL,
+        NIO
+    };
+
+    public enum ReplicationMode {
+        SYNC,
+        ASYNC
+    };
+
     /**
      * Get the port number of the server
      * @return  port number
@@ -34,6 +59,19 @@ public interface IKVServer {
      */
     public int getCacheSize();
 
+    /**
+     * Get the storage engine of the server
+     * @return  storage type
+     */
+    public StorageType getStorageType();
+
+    /**
+     * Get how client connections are served: a platform or virtual thread per
+     * connection, or selector event loops and a worker pool
+     * @return  front end of the server
+     */
+    public FrontEnd getFrontEnd();
+
     /**
      * Check if key is in storage.
      * NOTE: does not modify any other properties
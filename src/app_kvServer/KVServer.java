@@ -5,14 +5,20 @@ import java.math.BigInteger;
 import java.net.BindException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.HashMap;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.net.ServerSocket;
 import java.net.Socket;
 import logger.LogSetup;
@@ -60,13 +66,13 @@ public class KVServer implements IKVServer {
     private MessageService messageService = new MessageService();
     private ServerSocket serverSocket; // Socket IPC
     private Socket clientSocket;
-    private static final List<ClientConnection> connections = new CopyOnWriteArrayList<>();
+    private final List<ClientConnection> connections = new CopyOnWriteArrayList<>();
 
     private int port; // Port number
     private int cacheSize; // Cache size
     private CacheStrategy strategy; // Strategy (given by definition in ./IKVServer.java)
     private boolean running; // Check whether the server is currently running or not
-    private boolean write_lock = false;
+    private volatile boolean write_lock = false;
     private Caches.Cache<String, String> cache;
 
     private KVMessage.StatusType status;
@@ -88,8 +94,27 @@ public class KVServer implements IKVServer {
 
     private Replicator replicator;
 
-    private HashMap<String, SQLTable> sqlTables;
+    private ConcurrentHashMap<String, SQLTable> sqlTables;
+    private TokenIndexedStorage storage; // engine plus an index of keys by MD5 token
+    private StorageType storageType;
+    private FrontEnd frontEnd = FrontEnd.THREAD;
+    private ReplicationMode replicationMode = ReplicationMode.SYNC;
+    private int writeConcern = ALL_REPLICAS; // replicas that must apply a write before it is answered
+    public static final int ALL_REPLICAS = Integer.MAX_VALUE;
+    public static final int DEFAULT_ANTI_ENTROPY_SECONDS = 0; // off unless asked for
+    private int antiEntropySeconds = DEFAULT_ANTI_ENTROPY_SECONDS; // between rounds with the replicas, 0 for none
+    private NioFrontEnd nioFrontEnd = null; // set when frontEnd is NIO
+    private RequestLanes requestLanes = null; // runs pipelined requests, set while running
+    private volatile WriteAheadLog wal = null; // null for storage that is not persisted, and once closed
+    private static final String WAL_DIR = ".wal"; // in the storage directory, beside the pairs
     private static Gson gson = new Gson();
+
+    /* Writes lock a stripe picked by key (or table name) hash, so writes to
+       unrelated keys run in parallel while writes to one key stay ordered */
+    private static final int LOCK_STRIPES = 64;
+    private final Object[] keyLocks = newLocks(LOCK_STRIPES);
+    private final Object[] tableLocks = newLocks(LOCK_STRIPES);
+    private final ReadWriteLock storageLock = new ReentrantReadWriteLock(); // writes share, checkpoint/clear are exclusive
     private static JsonParser jsonParser = new JsonParser();
 
     public KVServer(int port, int cacheSize, String strategy, Boolean connectEcs) {
@@ -109,7 +134,7 @@ public class KVServer implements IKVServer {
         this.ecsPort = ECS.getDefaultECSPort();
         this.connectEcs = connectEcs;
         this.replicator = new Replicator(this);
-        this.sqlTables = new HashMap<>();
+        this.sqlTables = new ConcurrentHashMap<>();
         
         if (strategy == null) {
             this.strategy = CacheStrategy.None;
@@ -118,15 +143,15 @@ public class KVServer implements IKVServer {
             switch (strategy) { // Set cache strategy
                 case "LRU":
                     this.strategy = CacheStrategy.LRU;
-                    this.cache = new Caches.LRUCache(this.cacheSize);
+                    this.cache = new Caches.SynchronizedCache<>(new Caches.LRUCache(this.cacheSize));
                     break;
                 case "LFU":
                     this.strategy = CacheStrategy.LFU;
-                    this.cache = new Caches.LFUCache(this.cacheSize);
+                    this.cache = new Caches.SynchronizedCache<>(new Caches.LFUCache(this.cacheSize));
                     break;
                 case "FIFO":
                     this.strategy = CacheStrategy.FIFO;
-                    this.cache = new Caches.FIFOCache(this.cacheSize);
+                    this.cache = new Caches.SynchronizedCache<>(new Caches.FIFOCache(this.cacheSize));
                     break;
                 default:
                     this.strategy = CacheStrategy.None;
@@ -147,6 +172,8 @@ public class KVServer implements IKVServer {
             }
         }
 
+        initStorage(null);
+
         Thread serverThread = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -172,7 +199,7 @@ public class KVServer implements IKVServer {
         this.status = KVMessage.StatusType.SERVER_ACTIVE;
         this.connectEcs = connectEcs;
         this.replicator = new Replicator(this);
-        this.sqlTables = new HashMap<>();
+        this.sqlTables = new ConcurrentHashMap<>();
 
         if (strategy == null) {
             this.strategy = CacheStrategy.None;
@@ -181,15 +208,15 @@ public class KVServer implements IKVServer {
             switch (strategy) { // Set cache strategy
                 case "LRU":
                     this.strategy = CacheStrategy.LRU;
-                    this.cache = new Caches.LRUCache(this.cacheSize);
+                    this.cache = new Caches.SynchronizedCache<>(new Caches.LRUCache(this.cacheSize));
                     break;
                 case "LFU":
                     this.strategy = CacheStrategy.LFU;
-                    this.cache = new Caches.LFUCache(this.cacheSize);
+                    this.cache = new Caches.SynchronizedCache<>(new Caches.LFUCache(this.cacheSize));
                     break;
                 case "FIFO":
                     this.strategy = CacheStrategy.FIFO;
-                    this.cache = new Caches.FIFOCache(this.cacheSize);
+                    this.cache = new Caches.SynchronizedCache<>(new Caches.FIFOCache(this.cacheSize));
                     break;
                 default:
                     this.strategy = CacheStrategy.None;
@@ -210,6 +237,8 @@ public class KVServer implements IKVServer {
             }
         }
 
+        initStorage(null);
+
         Thread serverThread = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -221,6 +250,67 @@ public class KVServer implements IKVServer {
     }
 
     public KVServer(int port, int cacheSize, String strategy, String dbPath, String ecsHost, int ecsPort) {
+        this(port, cacheSize, strategy, dbPath, ecsHost, ecsPort, new Config());
+    }
+
+    /**
+     * Settings of a server beyond its port, cache and ECS; each defaults to
+     * the behaviour of a server started without it.
+     */
+    public static class Config {
+        /**
+         * How key-value pairs are persisted: "FILE" (one file per key, the
+         * default), "LOG" (append-only segment files, see
+         * LogStructuredStorage), "MMAP" (the same, read through memory-mapped
+         * segments), "LSM" (memtable and sorted SSTables, see LSMTreeStorage)
+         * or "MEMORY" (not persisted).
+         */
+        public String storageEngine = null;
+
+        /**
+         * When writes in the write-ahead log are fsynced before being
+         * acknowledged: "ALWAYS" (the default; each group of concurrent
+         * writes shares one fsync), a number of milliseconds between periodic
+         * fsyncs, or "OS".
+         */
+        public String fsyncPolicy = null;
+
+        /** Values of at least this many bytes are deflated before being stored; negative to disable. */
+        public int compressThreshold = -1;
+
+        /**
+         * How client connections are served: "THREAD" (the default; a thread
+         * per connection), "VIRTUAL" (a virtual thread per connection on Java
+         * 21+, see Threads) or "NIO" (a few selector event loops and a bounded
+         * worker pool, see NioFrontEnd).
+         */
+        public String frontEnd = null;
+
+        /**
+         * When a write is replicated: "SYNC" (the default; the client is
+         * answered once every replica has applied it) or "ASYNC" (answered
+         * once it is durable here, and sent to the replicas in batches in the
+         * background, see ReplicationQueue).
+         */
+        public String replicationMode = null;
+
+        /**
+         * How many replicas must have applied a write before the client is
+         * answered: "0", "1" or "ALL". Replicas are sent each write at once,
+         * so a write waits for the slowest replica it needs. Defaults to "ALL"
+         * in SYNC replication mode and "0" in ASYNC mode.
+         */
+        public String writeConcern = null;
+
+        /**
+         * Seconds between anti-entropy rounds, in which the server compares
+         * the Merkle tree of its hash range with each replica's and sends them
+         * the pairs that differ; 0 (the default) for none.
+         */
+        public int antiEntropySeconds = DEFAULT_ANTI_ENTROPY_SECONDS;
+    }
+
+    public KVServer(int port, int cacheSize, String strategy, String dbPath, String ecsHost, int ecsPort, Config config) {
         if (port < 1024 || port > 65535){
             logger.error(ConsoleColors.RED_UNDERLINED + "port is out of range." + ConsoleColors.RESET);
             throw new IllegalArgumentException(ConsoleColors.RED_UNDERLINED + "port is out of range." + ConsoleColors.RESET);
@@ -236,7 +326,7 @@ public class KVServer implements IKVServer {
         this.ecsHost = ecsHost;
         this.ecsPort = ecsPort;
         this.replicator = new Replicator(this);
-        this.sqlTables = new HashMap<>();
+        this.sqlTables = new ConcurrentHashMap<>();
 
         if (strategy == null) {
             this.strategy = CacheStrategy.None;
@@ -245,15 +335,15 @@ public class KVServer implements IKVServer {
             switch (strategy) { // Set cache strategy
                 case "LRU":
                     this.strategy = CacheStrategy.LRU;
-                    this.cache = new Caches.LRUCache(this.cacheSize);
+                    this.cache = new Caches.SynchronizedCache<>(new Caches.LRUCache(this.cacheSize));
                     break;
                 case "LFU":
                     this.strategy = CacheStrategy.LFU;
-                    this.cache = new Caches.LFUCache(this.cacheSize);
+                    this.cache = new Caches.SynchronizedCache<>(new Caches.LFUCache(this.cacheSize));
                     break;
                 case "FIFO":
                     this.strategy = CacheStrategy.FIFO;
-                    this.cache = new Caches.FIFOCache(this.cacheSize);
+                    this.cache = new Caches.SynchronizedCache<>(new Caches.FIFOCache(this.cacheSize));
                     break;
                 default:
                     this.strategy = CacheStrategy.None;
@@ -274,6 +364,40 @@ public class KVServer implements IKVServer {
             }
         }
 
+        initStorage(config.storageEngine, config.compressThreshold);
+        initWriteAheadLog(config.fsyncPolicy);
+
+        if (config.frontEnd != null) {
+            try {
+                this.frontEnd = FrontEnd.valueOf(config.frontEnd);
+            } catch (IllegalArgumentException e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Invalid front end " + config.frontEnd + ", using THREAD" + ConsoleColors.RESET);
+            }
+        }
+        if (this.frontEnd == FrontEnd.VIRTUAL && !Threads.hasVirtualThreads()) {
+            logger.warn(ConsoleColors.RED_UNDERLINED + "Virtual threads need Java 21, using THREAD" + ConsoleColors.RESET);
+            this.frontEnd = FrontEnd.THREAD;
+        }
+        if (config.replicationMode != null) {
+            try {
+                this.replicationMode = ReplicationMode.valueOf(config.replicationMode);
+            } catch (IllegalArgumentException e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Invalid replication mode " + config.replicationMode + ", using SYNC" + ConsoleColors.RESET);
+            }
+        }
+        this.writeConcern = this.replicationMode == ReplicationMode.ASYNC ? 0 : ALL_REPLICAS;
+        if (config.writeConcern != null) {
+            try {
+                int concern = config.writeConcern.equals("ALL") ? ALL_REPLICAS : Integer.parseInt(config.writeConcern);
+                if (concern < 0)
+                    throw new NumberFormatException(config.writeConcern);
+                this.writeConcern = concern;
+            } catch (NumberFormatException e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Invalid write concern " + config.writeConcern + ", using the replication mode's default" + ConsoleColors.RESET);
+            }
+        }
+        this.antiEntropySeconds = Math.max(config.antiEntropySeconds, 0);
+
         Thread serverThread = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -284,6 +408,105 @@ public class KVServer implements IKVServer {
         serverThread.start(); // Start the thread
     }
 
+    private void initStorage(String storageEngine) {
+        initStorage(storageEngine, -1);
+    }
+
+    private void initStorage(String storageEngine, int compressThreshold) {
+        StorageEngine engine;
+        try {
+            switch (storageEngine == null ? "FILE" : storageEngine) { // Set storage engine
+                case "LOG":
+                    engine = new LogStructuredStorage(dirPath);
+                    this.storageType = StorageType.LOG;
+                    break;
+                case "MMAP":
+                    engine = new LogStructuredStorage(dirPath, LogStructuredStorage.DEFAULT_MAX_SEGMENT_BYTES, true);
+                    this.storageType = StorageType.MMAP;
+                    break;
+                case "LSM":
+                    engine = new LSMTreeStorage(dirPath);
+                    this.storageType = StorageType.LSM;
+                    break;
+                case "MEMORY":
+                    engine = new MemoryStorage();
+                    this.storageType = StorageType.MEMORY;
+                    break;
+                default:
+                    engine = new FileStorage(dirPath);
+                    this.storageType = StorageType.FILE;
+            }
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Unable to open " + storageEngine + " storage, falling back to file storage" + ConsoleColors.RESET, e);
+            engine = new FileStorage(dirPath);
+            this.storageType = StorageType.FILE;
+        }
+
+        if (compressThreshold >= 0)
+            engine = new CompressedStorage(engine, compressThreshold);
+
+        try {
+            this.storage = new TokenIndexedStorage(engine);
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Unable to index stored keys" + ConsoleColors.RESET, e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void initWriteAheadLog(String fsyncPolicy) {
+        if (storageType == StorageType.MEMORY)
+            return;
+
+        FsyncPolicy policy = FsyncPolicy.ALWAYS;
+        long intervalMs = 0;
+        if (fsyncPolicy != null) {
+            switch (fsyncPolicy) {
+                case "ALWAYS":
+                    break;
+                case "OS":
+                    policy = FsyncPolicy.OS;
+                    break;
+                default:
+                    try {
+                        long interval = Long.parseLong(fsyncPolicy);
+                        if (interval <= 0)
+                            throw new NumberFormatException(fsyncPolicy);
+                        intervalMs = interval;
+                        policy = FsyncPolicy.INTERVAL;
+                    } catch (NumberFormatException e) {
+                        logger.error(ConsoleColors.RED_UNDERLINED + "Invalid fsync policy " + fsyncPolicy + ", using ALWAYS" + ConsoleColors.RESET);
+                    }
+            }
+        }
+
+        try {
+            File walDir = new File(dirPath, WAL_DIR);
+            File walFile = new File(walDir, "log");
+            File legacy = new File(dirPath + ".wal"); // where the log was kept beside the storage directory
+            if (!walDir.isDirectory() && !walDir.mkdirs())
+                throw new IOException("Unable to create " + walDir);
+            if (legacy.isFile() && !walFile.exists())
+                Files.move(legacy.toPath(), walFile.toPath());
+            wal = new WriteAheadLog(walFile.getPath(), policy, intervalMs);
+
+            // re-apply writes that may not have reached storage before a crash
+            List<Map.Entry<String, byte[]>> records = wal.replay();
+            for (Map.Entry<String, byte[]> record : records) {
+                if (record.getValue() == null)
+                    storage.delete(record.getKey());
+                else
+                    storage.put(record.getKey(), record.getValue());
+            }
+            storage.sync();
+            wal.checkpoint();
+            if (!records.isEmpty())
+                logger.info(ConsoleColors.GREEN_UNDERLINED + "Replayed " + records.size() + " write(s) from the write-ahead log" + ConsoleColors.RESET);
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Unable to open write-ahead log, writes will not be synced" + ConsoleColors.RESET, e);
+            wal = null;
+        }
+    }
+
     public static boolean checkValidJson(String str) {
         try {
             jsonParser.parse(str);
@@ -308,47 +531,75 @@ public class KVServer implements IKVServer {
     }
 
     public void removeKeys(){
-        File dir = new File(dirPath);
-        File[] db = dir.listFiles();
-        for (File kv : db) {
-            if(isCoordinatorOrReplicator(kv.getName())) continue;
-            System.out.println(ConsoleColors.YELLOW_BOLD_UNDERLINED + "Deleting " + kv.getName());
-            kv.delete();
-            cache.remove(unescape(kv.getName()));
+        for (String key : keysNotReplicatedHere()) {
+            if(isCoordinatorOrReplicator(key)) continue;
+            System.out.println(ConsoleColors.YELLOW_BOLD_UNDERLINED + "Deleting " + key);
+            try {
+                removeFromStorage(key);
+            } catch (IOException e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Unable to delete " + key + ConsoleColors.RESET, e);
+            }
+            if (cache != null)
+                cache.remove(key);
         }
     }
 
-    public void moveKeys() throws Exception{
-        File dir = new File(dirPath);
-        File[] db = dir.listFiles();
-        for (File kv : db) {
-            String key = kv.getName();
-            if(isCoordinator(key)) {
-                System.out.println(ConsoleColors.YELLOW_BOLD_UNDERLINED + "Moving " + key);
-                this.replicate(unescape(key), getKV(unescape(key)));
+    /*
+     * Send the keys this node coordinates to the replicas that lack them
+     * after a hash ring change: all of them to a replica that is new, or that
+     * a transfer to failed, and only those of the range this node took over
+     * to the others. Nothing is sent if neither its range nor its replicas
+     * changed. The transfers run in the background, see Replicator.transfer.
+     */
+    private void moveKeys(ECSNode prevNode, List<ECSNode> prevReplicas) {
+        List<String> coordinated = new ArrayList<>();
+        List<String> gained = new ArrayList<>();
+        boolean listed = false;
+
+        for (ECSNode replica : this.replicator.getReplicaNodes()) {
+            boolean isNew = true;
+            for (ECSNode prev : prevReplicas)
+                isNew &= !prev.getNodeName().equals(replica.getNodeName());
+            if (!isNew && prevNode != null && prevNode.getNodeHashStartRange().equals(this.getMetadata().getNodeHashStartRange()))
+                continue; // holds the whole range already
+
+            if (!listed) {
+                BigInteger[] range = this.getMetadata().getNodeHashRangeBigInt();
+                for (String key : storage.keysInRange(range[0], range[1])) {
+                    if (!isCoordinator(key))
+                        continue;
+                    coordinated.add(unescape(key));
+                    if (prevNode == null || !prevNode.isKeyInRange(key))
+                        gained.add(unescape(key));
+                }
+                listed = true;
             }
+
+            List<String> keys = isNew ? coordinated : gained;
+            if (keys.isEmpty())
+                continue;
+            System.out.println(ConsoleColors.YELLOW_BOLD_UNDERLINED + "Moving " + keys.size() + " keys to " + replica.getNodeName() + ConsoleColors.RESET);
+            this.replicator.transfer(replica, keys);
         }
     }
 
     public void setHashRing(ECSHashRing newHashRing) throws Exception{
         BigInteger prevStartHash = null, prevEndHash = null;
+        ECSNode prevNode = null;
         ECSNode newNode = newHashRing.getNodeForIdentifier(this.getStringIdentifier());
         
         BigInteger startHash = newNode.getNodeHashStartRange();
         BigInteger endHash = newNode.getNodeHashEndRange();
 
         if (this.hashRing != null){
-            ECSNode prevNode = this.hashRing.getNodeForIdentifier(this.getStringIdentifier());
+            prevNode = this.hashRing.getNodeForIdentifier(this.getStringIdentifier());
             prevStartHash = prevNode.getNodeHashStartRange();
             prevEndHash = prevNode.getNodeHashEndRange();
         }
         HashMap<BigInteger, HashMap<String, String>> serverKvPairs = new HashMap<>();
 
         if (prevStartHash != null && prevEndHash != null){
-            File dir = new File(dirPath);
-            File[] db = dir.listFiles();
-            for (File kv : db) {
-                String key = kv.getName();
+            for (String key : storage.keysInRange(prevStartHash, prevEndHash)) {
                 if (isCoordinator(key) && ECSNode.isKeyInRange(key, prevStartHash, prevEndHash) && !ECSNode.isKeyInRange(key, startHash, endHash)){
                     BigInteger bigIntegerKey = newHashRing.getNodeForKey(key).getNodeIdentifier();
                     serverKvPairs.computeIfAbsent(bigIntegerKey, k -> new HashMap<>()).put(unescape(key), getKV(unescape(key)));
@@ -365,12 +616,14 @@ public class KVServer implements IKVServer {
         }
 
         System.out.println(ConsoleColors.GREEN_UNDERLINED + "setting hash ring" + ConsoleColors.RESET);
+        List<ECSNode> prevReplicas = this.replicator.getInSyncReplicaNodes();
         this.hashRing = newHashRing;
+        this.setMetadata(newNode); // removeKeys and moveKeys go by the new range
         this.replicator.connect(newHashRing);
         this.removeKeys();
 
         try {
-            this.moveKeys();
+            this.moveKeys(prevNode, prevReplicas);
         } catch (Exception e) {
             e.printStackTrace();
             System.out.println(ConsoleColors.RED_UNDERLINED + "Error occured when moving keys" + ConsoleColors.RESET);
@@ -389,6 +642,60 @@ public class KVServer implements IKVServer {
         return metadata;
     }
 
+    public ReplicationMode getReplicationMode() {
+        return replicationMode;
+    }
+
+    /**
+     * @return replicas that must apply a write before it is answered;
+     *         ALL_REPLICAS for all of them
+     */
+    public int getWriteConcern() {
+        return writeConcern;
+    }
+
+    /**
+     * @return seconds between anti-entropy rounds; 0 for none
+     */
+    public int getAntiEntropySeconds() {
+        return antiEntropySeconds;
+    }
+
+    public MerkleTree getMerkleTree() {
+        return storage.getMerkleTree();
+    }
+
+    /**
+     * Run an anti-entropy round now: compare the Merkle tree of this
+     * server's hash range with each replica's, and send the replicas the keys
+     * that differ.
+     *
+     * @return number of keys found to differ, over all replicas
+     */
+    public int reconcile() {
+        if (this.getHashRing() == null || this.getMetadata() == null)
+            return 0;
+        return this.replicator.reconcile();
+    }
+
+    private void startAntiEntropy() {
+        if (antiEntropySeconds <= 0)
+            return;
+        Thread antiEntropy = new Thread(() -> {
+            while (running) {
+                try {
+                    Thread.sleep(antiEntropySeconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (running)
+                    reconcile();
+            }
+        }, "anti-entropy");
+        antiEntropy.setDaemon(true);
+        antiEntropy.start();
+    }
+
     public boolean replicate(String key, String value){
         try {
             return this.replicator.replicate(key, value);
@@ -399,6 +706,26 @@ public class KVServer implements IKVServer {
         return false;
     }
 
+    public boolean replicateBatch(Map<String, String> pairs) {
+        try {
+            return this.replicator.replicateBatch(pairs);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println(ConsoleColors.RED_UNDERLINED + "Error occured when replicating" + ConsoleColors.RESET);
+        }
+        return false;
+    }
+
+    public boolean replicateStream(String key) {
+        try {
+            return this.replicator.replicateStream(key);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println(ConsoleColors.RED_UNDERLINED + "Error occured when replicating" + ConsoleColors.RESET);
+        }
+        return false;
+    }
+
     public boolean replicateSQLCommand(String key, String value, StatusType status) throws Exception {
         try {
             return this.replicator.replicateSQLCommand(key, value, status);
@@ -424,12 +751,8 @@ public class KVServer implements IKVServer {
     }
 
     public boolean isReplicator(String key){
-        ECSNode[] replicaNodes = this.getHashRing().getPrevTwoPredecessors(this.getMetadata());
-        if (replicaNodes[0] != null){
-            if (replicaNodes[0].isKeyInRange(key)) return true;
-        }
-        if (replicaNodes[1] != null){
-            if (replicaNodes[1].isKeyInRange(key)) return true;
+        for (ECSNode replicated : this.getHashRing().getReplicatedNodes(this.getMetadata())){
+            if (replicated.isKeyInRange(key)) return true;
         }
         return false;
     }
@@ -438,6 +761,20 @@ public class KVServer implements IKVServer {
         return this.isCoordinator(key) || this.isReplicator(key);
     }
 
+    /*
+     * Stored keys that may lie outside the ranges this node coordinates or
+     * replicates, i.e. those between its end and the start of its furthest
+     * replicated predecessor; callers still check each key
+     */
+    private List<String> keysNotReplicatedHere() {
+        List<ECSNode> replicated = this.getHashRing().getReplicatedNodes(this.getMetadata());
+        if (replicated.isEmpty() && this.getHashRing().size() == 1)
+            return new ArrayList<>(); // only node in the ring
+
+        ECSNode furthest = replicated.isEmpty() ? this.getMetadata() : replicated.get(replicated.size() - 1);
+        return storage.keysInRange(this.getMetadata().getNodeHashEndRange(), furthest.getNodeHashStartRange());
+    }
+
     public String getStringIdentifier(){
         return getHostaddress() + ":" + String.valueOf(this.getPort());
     }
@@ -478,15 +815,75 @@ public class KVServer implements IKVServer {
         return cacheSize; // Return cache size
     }
 
-    private File getStorageAddressOfKey(String key) {
-        File file = new File(dirPath + File.separator + key);
-        return file;
+    /*
+     * Storage helpers; all keys are passed in escaped form
+     */
+    private List<String> storedKeys() {
+        try {
+            return storage.keys();
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Unable to list stored keys" + ConsoleColors.RESET, e);
+            return new ArrayList<>();
+        }
+    }
+
+    /*
+     * Stored pairs keyed by escaped key, from a single range scan so sorted
+     * engines avoid one read per key
+     */
+    private Map<String, String> storedPairs() throws IOException {
+        Map<String, String> pairs = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, byte[]>> it = storage.range(null, null);
+        while (it.hasNext()) {
+            Map.Entry<String, byte[]> entry = it.next();
+            pairs.put(entry.getKey(), new String(entry.getValue(), StandardCharsets.UTF_8));
+        }
+        return pairs;
+    }
+
+    /*
+     * Stored pairs keyed by escaped key whose token lies in the ring range
+     * [start, end], found through the token index
+     */
+    private Map<String, String> storedPairs(BigInteger start, BigInteger end) throws IOException {
+        Map<String, String> pairs = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : storage.pairsInRange(start, end).entrySet())
+            pairs.put(entry.getKey(), new String(entry.getValue(), StandardCharsets.UTF_8));
+        return pairs;
+    }
+
+    private String readFromStorage(String key) throws IOException {
+        byte[] value = storage.get(key);
+        if (value == null)
+            throw new FileNotFoundException(key);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private void writeToStorage(String key, String value) throws IOException {
+        storage.put(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private boolean removeFromStorage(String key) throws IOException {
+        return storage.delete(key);
+    }
+
+    @Override
+    public StorageType getStorageType() {
+        return storageType;
+    }
+
+    public RequestLanes getRequestLanes() {
+        return requestLanes;
+    }
+
+    @Override
+    public FrontEnd getFrontEnd() {
+        return frontEnd;
     }
 
     @Override
     public boolean inStorage(String key) {
-        File file = getStorageAddressOfKey(key);
-        return file.exists();
+        return storage.contains(key);
     }
 
     @Override
@@ -525,173 +922,269 @@ public class KVServer implements IKVServer {
             throw new Exception(ConsoleColors.RED_UNDERLINED + "tuple not found" + ConsoleColors.RESET);
         }
 
-        if (!inCache(escape(key))) {
-            File path = getStorageAddressOfKey(escape(key));
-            StringBuilder contentBuilder = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
-                String line;
-                while ((line = reader.readLine()) != null)
-                    contentBuilder.append(line).append("\n");
-            }
-
-            return contentBuilder.toString().trim();
-        }
-
-        String value = cache.get(escape(key));
-        if (value == null) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "tuple not found" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "tuple not found" + ConsoleColors.RESET);
-        }
+        String value = inCache(escape(key)) ? cache.get(escape(key)) : null;
+        if (value == null) // not cached, or evicted by a concurrent put since the check
+            return readFromStorage(escape(key));
 
         return value;
     }
 
     @Override
-    public synchronized StatusType putKV(String key, String value) throws Exception {
-        if (write_lock) {
-            return StatusType.SERVER_WRITE_LOCK;
-        }
-
-        if (value.equals("")) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "unable to delete tuple" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "unable to delete tuple" + ConsoleColors.RESET);
-        }
+    public StatusType putKV(String key, String value) throws Exception {
+        return putKV(key, value, false);
+    }
 
-        File file = new File(dirPath + File.separator + escape(key));
+    public StatusType putKV(String key, String value, boolean override) throws Exception {
+        AppliedWrite write = applyPut(key, value, override);
+        awaitWrites(write.sequence);
+        return write.status;
+    }
 
-        if (value.equals("null")) {
-            File fileToDel = new File(dirPath, escape(key));
-            if (!fileToDel.exists() || fileToDel.isDirectory() || !fileToDel.delete()) {
-                logger.error(ConsoleColors.RED_UNDERLINED + "unable to delete tuple" + ConsoleColors.RESET);
-                throw new Exception(ConsoleColors.RED_UNDERLINED + "unable to delete tuple" + ConsoleColors.RESET);
+    /**
+     * Apply several writes and acknowledge them together. Each is logged and
+     * applied as putKV would, then the batch waits once for the write-ahead
+     * log to make the last of them durable, so it costs one sync instead of
+     * one per key.
+     *
+     * @return status per key, in batch order; PUT_ERROR or DELETE_ERROR where
+     *         putKV would have thrown
+     */
+    public Map<String, StatusType> putKVBatch(Map<String, String> pairs, boolean override) throws IOException {
+        Map<String, StatusType> statuses = new LinkedHashMap<>();
+        long last = -1;
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            try {
+                AppliedWrite write = applyPut(pair.getKey(), pair.getValue(), override);
+                statuses.put(pair.getKey(), write.status);
+                last = Math.max(last, write.sequence);
+            } catch (Exception e) {
+                statuses.put(pair.getKey(), "null".equals(pair.getValue()) ? StatusType.DELETE_ERROR : StatusType.PUT_ERROR);
             }
-
-            cache.remove(escape(key));
-
-            return StatusType.DELETE_SUCCESS;
         }
+        awaitWrites(last);
+        return statuses;
+    }
+
+    /**
+     * Start storing a value that arrives in chunks, for values too large to
+     * send or hold as one message. Chunks go to storage as they are written;
+     * the value replaces the key's old one on commitPutStream. Such values
+     * skip the cache, and the write-ahead log only gets a marker for them.
+     *
+     * @return null if the server is write locked
+     */
+    public ValueOutputStream openPutStream(String key, boolean override) throws IOException {
+        if (write_lock & !override)
+            return null;
+        return storage.openWrite(escape(key));
+    }
 
-        if (inStorage(escape(key))) { // Key is already in storage (i.e. UPDATE)
-            try (FileWriter writer = new FileWriter(file, false)) { // overwrite
-                writer.write(value);
+    /**
+     * Store a value from openPutStream in place of the key's old one. Closing
+     * the stream makes the value durable in storage; a stored marker in the
+     * log then keeps older logged writes of the key from being replayed over
+     * it after a crash, so other keys need not be synced.
+     */
+    public StatusType commitPutStream(String key, ValueOutputStream value) throws IOException {
+        boolean update;
+        long sequence = -1;
+        storageLock.readLock().lock();
+        try {
+            synchronized (stripe(keyLocks, escape(key))) {
+                update = inStorage(escape(key));
+                value.close();
                 if (this.cache != null)
-                    cache.put(escape(key), value);
+                    cache.remove(escape(key));
+                if (wal != null)
+                    sequence = wal.appendStored(escape(key));
             }
-
-            return StatusType.PUT_UPDATE;
+        } finally {
+            storageLock.readLock().unlock();
         }
+        awaitWrites(sequence);
+        return update ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS;
+    }
 
-        // Key is not in storage (i.e. PUT)
-        try (FileWriter writer = new FileWriter(file)) {
-            writer.write(value);
-            if (this.cache != null)
-                cache.put(escape(key), value);
-        }
-        return StatusType.PUT_SUCCESS;
+    /**
+     * @return the stored value as a stream, or null if there is none
+     */
+    public InputStream getKVStream(String key) throws IOException {
+        return storage.openRead(escape(key));
     }
 
-    public synchronized StatusType putKV(String key, String value, boolean override) throws Exception {
-        if (write_lock & !override) {
-            return StatusType.SERVER_WRITE_LOCK;
-        }
+    private static class AppliedWrite {
+        final StatusType status;
+        final long sequence; // write-ahead log sequence number, or -1
 
-        if (value.equals("")) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "unable to delete tuple" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "unable to delete tuple" + ConsoleColors.RESET);
+        AppliedWrite(StatusType status, long sequence) {
+            this.status = status;
+            this.sequence = sequence;
         }
+    }
 
-        File file = new File(dirPath + File.separator + escape(key));
+    /*
+     * Log and apply one write under its key's lock, without waiting for the
+     * log to make it durable
+     */
+    private AppliedWrite applyPut(String key, String value, boolean override) throws Exception {
+        StatusType status;
+        long sequence;
+        storageLock.readLock().lock();
+        try {
+            synchronized (stripe(keyLocks, escape(key))) {
+                if (write_lock & !override) {
+                    return new AppliedWrite(StatusType.SERVER_WRITE_LOCK, -1);
+                }
 
-        if (value.equals("null")) {
-            File fileToDel = new File(dirPath, escape(key));
-            if (!fileToDel.exists() || fileToDel.isDirectory() || !fileToDel.delete()) {
-                logger.error(ConsoleColors.RED_UNDERLINED + "unable to delete tuple" + ConsoleColors.RESET);
-                throw new Exception(ConsoleColors.RED_UNDERLINED + "unable to delete tuple" + ConsoleColors.RESET);
-            }
+                if (value.equals("")) {
+                    logger.error(ConsoleColors.RED_UNDERLINED + "unable to delete tuple" + ConsoleColors.RESET);
+                    throw new Exception(ConsoleColors.RED_UNDERLINED + "unable to delete tuple" + ConsoleColors.RESET);
+                }
 
-            cache.remove(escape(key));
+                if (value.equals("null")) {
+                    if (!inStorage(escape(key))) {
+                        logger.error(ConsoleColors.RED_UNDERLINED + "unable to delete tuple" + ConsoleColors.RESET);
+                        throw new Exception(ConsoleColors.RED_UNDERLINED + "unable to delete tuple" + ConsoleColors.RESET);
+                    }
 
-            return StatusType.DELETE_SUCCESS;
-        }
+                    sequence = logWrite(escape(key), null);
+                    removeFromStorage(escape(key));
+                    if (this.cache != null)
+                        cache.remove(escape(key));
 
-        if (inStorage(escape(key))) { // Key is already in storage (i.e. UPDATE)
-            try (FileWriter writer = new FileWriter(file, false)) { // overwrite
-                writer.write(value);
-                if (this.cache != null)
-                    cache.put(escape(key), value);
-            }
+                    status = StatusType.DELETE_SUCCESS;
+                } else {
+                    boolean update = inStorage(escape(key)); // Key is already in storage (i.e. UPDATE)
+                    sequence = logWrite(escape(key), value);
+                    writeToStorage(escape(key), value);
+                    if (this.cache != null)
+                        cache.put(escape(key), value);
 
-            return StatusType.PUT_UPDATE;
+                    status = update ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS;
+                }
+            }
+        } finally {
+            storageLock.readLock().unlock();
         }
+        return new AppliedWrite(status, sequence);
+    }
 
-        // Key is not in storage (i.e. PUT)
-        try (FileWriter writer = new FileWriter(file)) {
-            writer.write(value);
-            if (this.cache != null)
-                cache.put(escape(key), value);
-        }
-        return StatusType.PUT_SUCCESS;
+    /*
+     * Checkpoint the log if due, then wait until the write with the given
+     * sequence number, and so every earlier one, is durable
+     */
+    private void awaitWrites(long sequence) throws IOException {
+        WriteAheadLog log = wal;
+        if (log != null && log.needsCheckpoint())
+            checkpointLog();
+
+        // acknowledge only once the batch holding this write is durable; waiting
+        // outside the lock lets concurrent writers join the same batch
+        if (log != null && sequence >= 0)
+            log.awaitDurable(sequence);
     }
 
-    public synchronized StatusType sqlCreate(String key, String value, boolean override) throws Exception {
-        if (write_lock & !override) {
-            return StatusType.SERVER_WRITE_LOCK;
-        }
+    /*
+     * Pick the lock guarding a key or table name
+     */
+    private static Object stripe(Object[] locks, String name) {
+        int h = name.hashCode();
+        return locks[(h ^ (h >>> 16)) & (locks.length - 1)];
+    }
 
-        if (value.equals("")) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "empty sql create value" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "empty sql create value" + ConsoleColors.RESET);
-        }
+    private static Object[] newLocks(int stripes) {
+        Object[] locks = new Object[stripes];
+        for (int i = 0; i < stripes; ++i)
+            locks[i] = new Object();
+        return locks;
+    }
 
-        if (sqlTables.containsKey(key)) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "A table with the same name already exists" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "A table with the same name already exists" + ConsoleColors.RESET);
+    /*
+     * Truncate the write-ahead log once storage holds everything it covers;
+     * writes are held off so none lands between the sync and the truncation
+     */
+    private void checkpointLog() throws IOException {
+        storageLock.writeLock().lock();
+        try {
+            if (wal == null || !wal.needsCheckpoint())
+                return; // another writer checkpointed first, or the log was closed
+            storage.sync();
+            wal.checkpoint();
+        } finally {
+            storageLock.writeLock().unlock();
         }
+    }
+
+    /*
+     * @return write-ahead log sequence number of the write, or -1 without a log
+     */
+    private long logWrite(String key, String value) throws IOException {
+        if (wal == null)
+            return -1;
+        return wal.append(key, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
 
-        boolean validSqlCreate = true;
-        String[] colPairs = value.split(",");
-        Map<String, String> cols = new HashMap<>();
-        String primaryKey = null;
-        for (String pair : colPairs) {
-            String[] parts = pair.split(":");
-            if (parts.length != 2) {
-                logger.error(ConsoleColors.RED_UNDERLINED + "Invalid column pair: " + pair + ConsoleColors.RESET);
-                throw new Exception(ConsoleColors.RED_UNDERLINED + "Invalid column pair: " + pair + ConsoleColors.RESET);
+    public StatusType sqlCreate(String key, String value, boolean override) throws Exception {
+        synchronized (stripe(tableLocks, key)) {
+            if (write_lock & !override) {
+                return StatusType.SERVER_WRITE_LOCK;
             }
-            String name = parts[0];
-            String type = parts[1];
-            if (!type.equals("int") && !type.equals("text")) {
-                logger.error(ConsoleColors.RED_UNDERLINED + "Invalid type for column " + name + ": "  + ConsoleColors.RESET+ type);
-                throw new Exception(ConsoleColors.RED_UNDERLINED + "Invalid type for column " + name + ": "  + ConsoleColors.RESET+ type);
+
+            if (value.equals("")) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "empty sql create value" + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "empty sql create value" + ConsoleColors.RESET);
             }
-            if (cols.containsKey(name)) {
-                logger.error(ConsoleColors.RED_UNDERLINED + "Column name " + name + " is repeated" + ConsoleColors.RESET);
-                throw new Exception(ConsoleColors.RED_UNDERLINED + "Column name " + name + " is repeated" + ConsoleColors.RESET);
+
+            if (sqlTables.containsKey(key)) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "A table with the same name already exists" + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "A table with the same name already exists" + ConsoleColors.RESET);
             }
-            cols.put(name, type);
-            if (primaryKey == null) {
-                primaryKey = name;
+
+            boolean validSqlCreate = true;
+            String[] colPairs = value.split(",");
+            Map<String, String> cols = new HashMap<>();
+            String primaryKey = null;
+            for (String pair : colPairs) {
+                String[] parts = pair.split(":");
+                if (parts.length != 2) {
+                    logger.error(ConsoleColors.RED_UNDERLINED + "Invalid column pair: " + pair + ConsoleColors.RESET);
+                    throw new Exception(ConsoleColors.RED_UNDERLINED + "Invalid column pair: " + pair + ConsoleColors.RESET);
+                }
+                String name = parts[0];
+                String type = parts[1];
+                if (!type.equals("int") && !type.equals("text")) {
+                    logger.error(ConsoleColors.RED_UNDERLINED + "Invalid type for column " + name + ": "  + ConsoleColors.RESET+ type);
+                    throw new Exception(ConsoleColors.RED_UNDERLINED + "Invalid type for column " + name + ": "  + ConsoleColors.RESET+ type);
+                }
+                if (cols.containsKey(name)) {
+                    logger.error(ConsoleColors.RED_UNDERLINED + "Column name " + name + " is repeated" + ConsoleColors.RESET);
+                    throw new Exception(ConsoleColors.RED_UNDERLINED + "Column name " + name + " is repeated" + ConsoleColors.RESET);
+                }
+                cols.put(name, type);
+                if (primaryKey == null) {
+                    primaryKey = name;
+                }
             }
-        }
 
-        for (Map.Entry<String, String> entry : cols.entrySet()) {
-            String name = entry.getKey();
-            String type = entry.getValue();
-            logger.info(ConsoleColors.YELLOW_BOLD_UNDERLINED+ "Column name: " + name + ", Type: "  + ConsoleColors.RESET+ type);
-        }
+            for (Map.Entry<String, String> entry : cols.entrySet()) {
+                String name = entry.getKey();
+                String type = entry.getValue();
+                logger.info(ConsoleColors.YELLOW_BOLD_UNDERLINED+ "Column name: " + name + ", Type: "  + ConsoleColors.RESET+ type);
+            }
 
-        if (primaryKey == null) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "No primary key found" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "No primary key found" + ConsoleColors.RESET);
-        }
+            if (primaryKey == null) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "No primary key found" + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "No primary key found" + ConsoleColors.RESET);
+            }
         
-        SQLTable table = createSQLTable(key, primaryKey, cols);
-        sqlTables.put(key, table);
+            SQLTable table = createSQLTable(key, primaryKey, cols);
+            sqlTables.put(key, table);
 
-        // Print out the table
-        this.logger.info(ConsoleColors.YELLOW_BOLD_UNDERLINED+ table.toString() + ConsoleColors.RESET);
+            // Print out the table
+            this.logger.info(ConsoleColors.YELLOW_BOLD_UNDERLINED+ table.toString() + ConsoleColors.RESET);
 
-        return StatusType.SQLCREATE_SUCCESS;
+            return StatusType.SQLCREATE_SUCCESS;
+        }
     }
 
     public String sqlSelect(String key, boolean testing) throws Exception {
@@ -772,220 +1265,227 @@ public class KVServer implements IKVServer {
         return selectedTable;
     }
 
-    public synchronized StatusType sqlDrop(String key, boolean override) throws Exception {
-        if (write_lock & !override) {
-            return StatusType.SERVER_WRITE_LOCK;
-        }
+    public StatusType sqlDrop(String key, boolean override) throws Exception {
+        synchronized (stripe(tableLocks, key)) {
+            if (write_lock & !override) {
+                return StatusType.SERVER_WRITE_LOCK;
+            }
 
-        if (!sqlTables.containsKey(key)) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "table does not exist" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "table does not exist" + ConsoleColors.RESET);
-        }
+            if (!sqlTables.containsKey(key)) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "table does not exist" + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "table does not exist" + ConsoleColors.RESET);
+            }
 
-        try {
-            sqlTables.remove(key);
-        } catch (Exception e) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "Error dropping table: " + e.getMessage() + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "Error dropping table: " + e.getMessage() + ConsoleColors.RESET);
-        }
+            try {
+                sqlTables.remove(key);
+            } catch (Exception e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Error dropping table: " + e.getMessage() + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "Error dropping table: " + e.getMessage() + ConsoleColors.RESET);
+            }
 
-        return StatusType.SQLDROP_SUCCESS;
+            return StatusType.SQLDROP_SUCCESS;
+        }
     }
     
-    public synchronized StatusType sqlInsert(String key, String value, boolean override) throws Exception {
-        if (write_lock && !override) {
-            return StatusType.SERVER_WRITE_LOCK;
-        }
+    public StatusType sqlInsert(String key, String value, boolean override) throws Exception {
+        synchronized (stripe(tableLocks, key)) {
+            if (write_lock && !override) {
+                return StatusType.SERVER_WRITE_LOCK;
+            }
 
-        if (value.equals("")) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "empty sql insert value" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "empty sql insert value" + ConsoleColors.RESET);
-        }
+            if (value.equals("")) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "empty sql insert value" + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "empty sql insert value" + ConsoleColors.RESET);
+            }
 
-        if (!sqlTables.containsKey(key)) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "table does not exist" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "table does not exist" + ConsoleColors.RESET);
-        }
+            if (!sqlTables.containsKey(key)) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "table does not exist" + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "table does not exist" + ConsoleColors.RESET);
+            }
 
-        if (!checkValidJson(value)) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "table row has invalid formatting" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "table row has invalid formatting" + ConsoleColors.RESET);
-        }
+            if (!checkValidJson(value)) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "table row has invalid formatting" + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "table row has invalid formatting" + ConsoleColors.RESET);
+            }
 
-        SQLTable table = sqlTables.get(key);
-        Map<String, String> rowMap = new HashMap<>();
+            SQLTable table = sqlTables.get(key);
+            Map<String, String> rowMap = new HashMap<>();
 
-        JsonElement jsonElement = null;
-        try {
-            jsonElement = jsonParser.parse(value);
-        } catch (JsonParseException e) {
-            this.logger.error(ConsoleColors.RED_UNDERLINED + "Invalid JSON format: " + e.getMessage() + ConsoleColors.RESET);
-            logger.error(ConsoleColors.RED_UNDERLINED + "Invalid JSON format: " + e.getMessage() + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "Invalid JSON format: " + e.getMessage() + ConsoleColors.RESET);
-        }
+            JsonElement jsonElement = null;
+            try {
+                jsonElement = jsonParser.parse(value);
+            } catch (JsonParseException e) {
+                this.logger.error(ConsoleColors.RED_UNDERLINED + "Invalid JSON format: " + e.getMessage() + ConsoleColors.RESET);
+                logger.error(ConsoleColors.RED_UNDERLINED + "Invalid JSON format: " + e.getMessage() + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "Invalid JSON format: " + e.getMessage() + ConsoleColors.RESET);
+            }
 
-        try {
-            if (jsonElement != null && jsonElement.isJsonObject()) {
-                JsonObject jsonObject = jsonElement.getAsJsonObject();
-                for (String jsonKey : jsonObject.keySet()) {
-                    try {
-                        JsonElement elem = jsonObject.get(jsonKey);
-                        if (table.cols.contains(jsonKey)) {
-                            String colValue = elem.getAsString();
-                            if (table.colTypes.get(jsonKey).equals("int")) {
-                                try {
-                                    Integer.parseInt(colValue);
-                                } catch (NumberFormatException e) {
-                                    logger.error(ConsoleColors.RED_UNDERLINED + "Value for column " + jsonKey + " must be an integer" + ConsoleColors.RESET);
-                                    throw new Exception(ConsoleColors.RED_UNDERLINED + "Value for column " + jsonKey + " must be an integer" + ConsoleColors.RESET);
+            try {
+                if (jsonElement != null && jsonElement.isJsonObject()) {
+                    JsonObject jsonObject = jsonElement.getAsJsonObject();
+                    for (String jsonKey : jsonObject.keySet()) {
+                        try {
+                            JsonElement elem = jsonObject.get(jsonKey);
+                            if (table.cols.contains(jsonKey)) {
+                                String colValue = elem.getAsString();
+                                if (table.colTypes.get(jsonKey).equals("int")) {
+                                    try {
+                                        Integer.parseInt(colValue);
+                                    } catch (NumberFormatException e) {
+                                        logger.error(ConsoleColors.RED_UNDERLINED + "Value for column " + jsonKey + " must be an integer" + ConsoleColors.RESET);
+                                        throw new Exception(ConsoleColors.RED_UNDERLINED + "Value for column " + jsonKey + " must be an integer" + ConsoleColors.RESET);
+                                    }
                                 }
+                                rowMap.put(jsonKey, colValue);
+                            } else {
+                                logger.error(ConsoleColors.RED_UNDERLINED + jsonKey + " is not a column in table" + key + ConsoleColors.RESET);
+                                throw new Exception(ConsoleColors.RED_UNDERLINED + jsonKey + " is not a column in table" + key + ConsoleColors.RESET);
                             }
-                            rowMap.put(jsonKey, colValue);
-                        } else {
-                            logger.error(ConsoleColors.RED_UNDERLINED + jsonKey + " is not a column in table" + key + ConsoleColors.RESET);
-                            throw new Exception(ConsoleColors.RED_UNDERLINED + jsonKey + " is not a column in table" + key + ConsoleColors.RESET);
+                        } catch (Exception e) {
+                            logger.error(ConsoleColors.RED_UNDERLINED + e.getMessage() + ConsoleColors.RESET);
+                            throw new Exception(ConsoleColors.RED_UNDERLINED + e.getMessage() + ConsoleColors.RESET);
                         }
-                    } catch (Exception e) {
-                        logger.error(ConsoleColors.RED_UNDERLINED + e.getMessage() + ConsoleColors.RESET);
-                        throw new Exception(ConsoleColors.RED_UNDERLINED + e.getMessage() + ConsoleColors.RESET);
                     }
                 }
+            } catch (Exception e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Error adding row to table: " + e.getMessage() + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "Error adding row to table: " + e.getMessage() + ConsoleColors.RESET);
             }
-        } catch (Exception e) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "Error adding row to table: " + e.getMessage() + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "Error adding row to table: " + e.getMessage() + ConsoleColors.RESET);
-        }
 
-        try {
-            table.addRow(rowMap);
-        } catch (Exception e) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "Error adding row to table: " + e.getMessage() + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "Error adding row to table: " + e.getMessage() + ConsoleColors.RESET);
-        }
+            try {
+                table.addRow(rowMap);
+            } catch (Exception e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Error adding row to table: " + e.getMessage() + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "Error adding row to table: " + e.getMessage() + ConsoleColors.RESET);
+            }
 
-        this.logger.info(ConsoleColors.BLUE_BOLD_UNDERLINED + table.toString() + ConsoleColors.RESET);
-        return StatusType.SQLINSERT_SUCCESS;
+            this.logger.info(ConsoleColors.BLUE_BOLD_UNDERLINED + table.toString() + ConsoleColors.RESET);
+            return StatusType.SQLINSERT_SUCCESS;
+        }
     }
     
-    public synchronized StatusType sqlUpdate(String key, String value, boolean override) throws Exception {
-        if (write_lock && !override) {
-            return StatusType.SERVER_WRITE_LOCK;
-        }
+    public StatusType sqlUpdate(String key, String value, boolean override) throws Exception {
+        synchronized (stripe(tableLocks, key)) {
+            if (write_lock && !override) {
+                return StatusType.SERVER_WRITE_LOCK;
+            }
 
-        if (value.equals("")) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "empty sql insert value" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "empty sql insert value" + ConsoleColors.RESET);
-        }
+            if (value.equals("")) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "empty sql insert value" + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "empty sql insert value" + ConsoleColors.RESET);
+            }
 
-        if (!sqlTables.containsKey(key)) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "table does not exist" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "table does not exist" + ConsoleColors.RESET);
-        }
+            if (!sqlTables.containsKey(key)) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "table does not exist" + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "table does not exist" + ConsoleColors.RESET);
+            }
 
-        if (!checkValidJson(value)) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "table row has invalid formatting" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "table row has invalid formatting" + ConsoleColors.RESET);
-        }
+            if (!checkValidJson(value)) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "table row has invalid formatting" + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "table row has invalid formatting" + ConsoleColors.RESET);
+            }
 
-        SQLTable table = sqlTables.get(key);
-        Map<String, String> rowMap = new HashMap<>();
+            SQLTable table = sqlTables.get(key);
+            Map<String, String> rowMap = new HashMap<>();
 
-        JsonElement jsonElement = null;
-        try {
-            jsonElement = jsonParser.parse(value);
-        } catch (JsonParseException e) {
-            this.logger.error(ConsoleColors.RED_UNDERLINED + "Invalid JSON format: " + e.getMessage() + ConsoleColors.RESET);
-        }
+            JsonElement jsonElement = null;
+            try {
+                jsonElement = jsonParser.parse(value);
+            } catch (JsonParseException e) {
+                this.logger.error(ConsoleColors.RED_UNDERLINED + "Invalid JSON format: " + e.getMessage() + ConsoleColors.RESET);
+            }
 
-        try {
-            if (jsonElement != null && jsonElement.isJsonObject()) {
-                JsonObject jsonObject = jsonElement.getAsJsonObject();
-                for (String jsonKey : jsonObject.keySet()) {
-                    try {
-                        JsonElement elem = jsonObject.get(jsonKey);
-                        if (table.cols.contains(jsonKey)) {
-                            String colValue = elem.getAsString();
-                            if (table.colTypes.get(jsonKey).equals("int")) {
-                                try {
-                                    Integer.parseInt(colValue);
-                                } catch (NumberFormatException e) {
-                                    logger.error(ConsoleColors.RED_UNDERLINED + "Value for column " + jsonKey + " must be an integer" + ConsoleColors.RESET);
-                                    throw new Exception(ConsoleColors.RED_UNDERLINED + "Value for column " + jsonKey + " must be an integer" + ConsoleColors.RESET);
+            try {
+                if (jsonElement != null && jsonElement.isJsonObject()) {
+                    JsonObject jsonObject = jsonElement.getAsJsonObject();
+                    for (String jsonKey : jsonObject.keySet()) {
+                        try {
+                            JsonElement elem = jsonObject.get(jsonKey);
+                            if (table.cols.contains(jsonKey)) {
+                                String colValue = elem.getAsString();
+                                if (table.colTypes.get(jsonKey).equals("int")) {
+                                    try {
+                                        Integer.parseInt(colValue);
+                                    } catch (NumberFormatException e) {
+                                        logger.error(ConsoleColors.RED_UNDERLINED + "Value for column " + jsonKey + " must be an integer" + ConsoleColors.RESET);
+                                        throw new Exception(ConsoleColors.RED_UNDERLINED + "Value for column " + jsonKey + " must be an integer" + ConsoleColors.RESET);
+                                    }
                                 }
+                                rowMap.put(jsonKey, colValue);
+                            } else {
+                                logger.error(ConsoleColors.RED_UNDERLINED + jsonKey + " is not a column in table" + key + ConsoleColors.RESET);
+                                throw new Exception(ConsoleColors.RED_UNDERLINED + jsonKey + " is not a column in table" + key + ConsoleColors.RESET);
                             }
-                            rowMap.put(jsonKey, colValue);
-                        } else {
-                            logger.error(ConsoleColors.RED_UNDERLINED + jsonKey + " is not a column in table" + key + ConsoleColors.RESET);
-                            throw new Exception(ConsoleColors.RED_UNDERLINED + jsonKey + " is not a column in table" + key + ConsoleColors.RESET);
+                        } catch (Exception e) {
+                            logger.error(ConsoleColors.RED_UNDERLINED + e.getMessage() + ConsoleColors.RESET);
+                            throw new Exception(ConsoleColors.RED_UNDERLINED + e.getMessage() + ConsoleColors.RESET);
                         }
-                    } catch (Exception e) {
-                        logger.error(ConsoleColors.RED_UNDERLINED + e.getMessage() + ConsoleColors.RESET);
-                        throw new Exception(ConsoleColors.RED_UNDERLINED + e.getMessage() + ConsoleColors.RESET);
                     }
                 }
+            } catch (Exception e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Error updating row in table: " + e.getMessage() + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "Error updating row in table: " + e.getMessage() + ConsoleColors.RESET);
             }
-        } catch (Exception e) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "Error updating row in table: " + e.getMessage() + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "Error updating row in table: " + e.getMessage() + ConsoleColors.RESET);
-        }
 
-        try {
-            table.updateRow(rowMap);
-        } catch (Exception e) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "Error updating row in table: " + e.getMessage() + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "Error updating row in table: " + e.getMessage() + ConsoleColors.RESET);
-        }
+            try {
+                table.updateRow(rowMap);
+            } catch (Exception e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Error updating row in table: " + e.getMessage() + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "Error updating row in table: " + e.getMessage() + ConsoleColors.RESET);
+            }
 
-        this.logger.info(ConsoleColors.YELLOW_BOLD_UNDERLINED + table.toString() + ConsoleColors.RESET);
-        return StatusType.SQLUPDATE_SUCCESS;
+            this.logger.info(ConsoleColors.YELLOW_BOLD_UNDERLINED + table.toString() + ConsoleColors.RESET);
+            return StatusType.SQLUPDATE_SUCCESS;
+        }
     }
 
-    public synchronized StatusType sqlReplace(String key, String value, boolean override) throws Exception {
-        if (write_lock && !override) {
-            return StatusType.SERVER_WRITE_LOCK;
-        }
+    public StatusType sqlReplace(String key, String value, boolean override) throws Exception {
+        synchronized (stripe(tableLocks, key)) {
+            if (write_lock && !override) {
+                return StatusType.SERVER_WRITE_LOCK;
+            }
 
-        if (value.equals("")) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "empty sql insert value" + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "empty sql insert value" + ConsoleColors.RESET);
-        }
+            if (value.equals("")) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "empty sql insert value" + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "empty sql insert value" + ConsoleColors.RESET);
+            }
 
-        if (sqlTables.containsKey(key)) {
-            sqlTables.remove(key);
-        }
+            if (sqlTables.containsKey(key)) {
+                sqlTables.remove(key);
+            }
 
-        try {
-            SQLTable table = SQLTable.fromString(value);
-        } catch (Exception e) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "Error building table: " + e.getMessage() + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "Error building table: " + e.getMessage() + ConsoleColors.RESET);
-        }
+            try {
+                SQLTable table = SQLTable.fromString(value);
+            } catch (Exception e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Error building table: " + e.getMessage() + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "Error building table: " + e.getMessage() + ConsoleColors.RESET);
+            }
 
-        try {
-            sqlTables.put(key, SQLTable.fromString(value));
-        } catch (Exception e) {
-            logger.error(ConsoleColors.RED_UNDERLINED + "Error putting table: " + e.getMessage() + ConsoleColors.RESET);
-            throw new Exception(ConsoleColors.RED_UNDERLINED + "Error putting table: " + e.getMessage() + ConsoleColors.RESET);
-        }
+            try {
+                sqlTables.put(key, SQLTable.fromString(value));
+            } catch (Exception e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Error putting table: " + e.getMessage() + ConsoleColors.RESET);
+                throw new Exception(ConsoleColors.RED_UNDERLINED + "Error putting table: " + e.getMessage() + ConsoleColors.RESET);
+            }
 
-        return StatusType.SQLREPLICATE_SUCCESS;
+            return StatusType.SQLREPLICATE_SUCCESS;
+        }
     }
 
     /*
      * Helper Function to Monitor the State of Current KVs in Storage and Cache
      */
     public void printStorageAndCache() {
-        File dir = new File(dirPath);
-        File[] db = dir.listFiles();
+        List<String> db = storedKeys();
 
         System.out.println(ConsoleColors.YELLOW_UNDERLINED + "Storage: ");
-        if (db == null || db.length == 0)
+        if (db.isEmpty())
             System.out.println(ConsoleColors.RED_UNDERLINED + "\tStorage is Empty." + ConsoleColors.RESET);
         else {
-            for (File kv : db) {
-                System.out.print("\t" + "Key: " + kv.getName() + ", "); // key
+            for (String key : db) {
+                System.out.print("\t" + "Key: " + key + ", "); // key
                 try {
-                    String content = new String(Files.readAllBytes(kv.toPath()));
+                    String content = readFromStorage(key);
                     System.out.println(ConsoleColors.YELLOW_UNDERLINED + "Value: " + content); // value
                 } catch (IOException e) {
                     System.out.println(ConsoleColors.RED_UNDERLINED + "<Error>"); // could not access value for whatever reas + ConsoleColors.RESETon
@@ -996,8 +1496,14 @@ public class KVServer implements IKVServer {
         System.out.println(ConsoleColors.YELLOW_UNDERLINED + "Cache: ");
         if (cache == null || cache.size() == 0)
             System.out.println(ConsoleColors.RED_UNDERLINED + "\tCache is Empty." + ConsoleColors.RESET);
-        for (Map.Entry<String, String> kv : cache.entrySet())
-            System.out.println(ConsoleColors.YELLOW_UNDERLINED + "\t" + "Key: " + kv.getKey() + ", Value: " + kv.getValue());
+        else {
+            for (Map.Entry<String, String> kv : cache.entrySet())
+                System.out.println(ConsoleColors.YELLOW_UNDERLINED + "\t" + "Key: " + kv.getKey() + ", Value: " + kv.getValue());
+        }
+
+        System.out.println(ConsoleColors.YELLOW_UNDERLINED + "Metrics: ");
+        for (Map.Entry<String, Number> metric : Metrics.snapshot().entrySet())
+            System.out.println(ConsoleColors.YELLOW_UNDERLINED + "\t" + metric.getKey() + ": " + metric.getValue());
 
         for (int i = 0; i < 40; ++i) // Divider for readability
             System.out.print("-");
@@ -1014,13 +1520,15 @@ public class KVServer implements IKVServer {
 
     @Override
     public void clearStorage() {
-        File dir = new File(dirPath);
-        for (File file : dir.listFiles()) {
-            if (file.isDirectory()) {
-                for (File kv : file.listFiles())
-                    kv.delete();
-            }
-            file.delete();
+        storageLock.writeLock().lock();
+        try {
+            storage.clear();
+            if (wal != null)
+                wal.checkpoint(); // nothing left to replay
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Unable to clear storage" + ConsoleColors.RESET, e);
+        } finally {
+            storageLock.writeLock().unlock();
         }
     }
 
@@ -1195,8 +1703,14 @@ public class KVServer implements IKVServer {
     @Override
     public void run() {
         running = true;
+        requestLanes = new RequestLanes();
         try {
-            serverSocket = new ServerSocket(port);
+            if (frontEnd == FrontEnd.NIO) {
+                nioFrontEnd = new NioFrontEnd(this, port);
+                serverSocket = nioFrontEnd.getServerSocket();
+            } else {
+                serverSocket = new ServerSocket(port);
+            }
             if (ecsHost != null && ecsPort >= 0)
                 this.logger.info(ConsoleColors.YELLOW_BOLD_UNDERLINED+ "Started server listening at: " + "(" + serverSocket.getInetAddress().getHostName() + ")"
                         + serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort()
@@ -1217,14 +1731,17 @@ public class KVServer implements IKVServer {
         if (this.connectEcs){
             connectECS();
         }
+        startAntiEntropy();
 
-        if (serverSocket != null) {
+        if (nioFrontEnd != null) {
+            nioFrontEnd.run(); // until kill()
+        } else if (serverSocket != null) {
             while (running) {
                 try {
                     clientSocket = serverSocket.accept();
                     ClientConnection connection = new ClientConnection(this, clientSocket);
                     connections.add(connection);
-                    new Thread(connection).start();
+                    Threads.start(connection, frontEnd == FrontEnd.VIRTUAL);
                     this.logger.info(ConsoleColors.GREEN_UNDERLINED+ "Connected to " + "(" + clientSocket.getInetAddress().getHostName() + ") "
                             + clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort() + ConsoleColors.RESET);
                 } catch (IOException e) {
@@ -1239,6 +1756,10 @@ public class KVServer implements IKVServer {
     @Override
     public void kill() {
         running = false;
+        if (nioFrontEnd != null)
+            nioFrontEnd.close();
+        if (requestLanes != null)
+            requestLanes.close();
         try {
             serverSocket.close();
         } catch (IOException e) {
@@ -1253,7 +1774,23 @@ public class KVServer implements IKVServer {
         for (ClientConnection conn : connections)
             conn.close();
         clearCache();
+        replicator.flush(); // writes still queued for the replicas
         // clearStorage(); // are not supposed to clear storage on server start/quit
+        storageLock.writeLock().lock();
+        try {
+            storage.sync(); // left open for the shutdown hook
+            if (wal != null) {
+                // storage now holds every logged write; the shutdown hook's
+                // writes go to storage alone
+                wal.checkpoint();
+                wal.close();
+                wal = null;
+            }
+        } catch (IOException e) {
+            this.logger.error(ConsoleColors.RED_UNDERLINED + "Unable to sync storage" + ConsoleColors.RESET, e);
+        } finally {
+            storageLock.writeLock().unlock();
+        }
         kill();
     }
 
@@ -1263,7 +1800,7 @@ public class KVServer implements IKVServer {
         System.out.println(ConsoleColors.RED_UNDERLINED + "Running shutdown hook" + ConsoleColors.RESET);
         try {
             kvPairs = getAllKVPairs();
-            tables = sqlTables;
+            tables = new HashMap<>(sqlTables);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -1295,13 +1832,10 @@ public class KVServer implements IKVServer {
 
     public HashMap<String, String> getKVPairsNotResponsibleFor() throws Exception {
         HashMap<String, String> kvPairs = new HashMap<>();
-        File dir = new File(dirPath);
-        if (dir.isDirectory()) {
-            for (File kv : dir.listFiles()) {
-                String key = kv.getName();
-                if (!metadata.isKeyInRange(key)) {
-                    kvPairs.put(unescape(key), getKV(unescape(key)));
-                }
+        BigInteger[] range = metadata.getNodeHashRangeBigInt();
+        for (Map.Entry<String, String> entry : storedPairs(range[1], range[0]).entrySet()) {
+            if (!metadata.isKeyInRange(entry.getKey())) {
+                kvPairs.put(unescape(entry.getKey()), entry.getValue());
             }
         }
         this.logger.info(ConsoleColors.YELLOW + "KVPairs not responsible for: " + kvPairs.toString() + ConsoleColors.RESET);
@@ -1322,13 +1856,10 @@ public class KVServer implements IKVServer {
 
     public HashMap<String, String> getAllKvPairsResponsibleFor() throws Exception {
         HashMap<String, String> kvPairs = new HashMap<>();
-        File dir = new File(dirPath);
-        if (dir.isDirectory()) {
-            for (File kv : dir.listFiles()) {
-                String key = kv.getName();
-                if (metadata.isKeyInRange(key)) {
-                    kvPairs.put(unescape(key), getKV(unescape(key)));
-                }
+        BigInteger[] range = metadata.getNodeHashRangeBigInt();
+        for (Map.Entry<String, String> entry : storedPairs(range[0], range[1]).entrySet()) {
+            if (metadata.isKeyInRange(entry.getKey())) {
+                kvPairs.put(unescape(entry.getKey()), entry.getValue());
             }
         }
         return kvPairs;
@@ -1347,12 +1878,8 @@ public class KVServer implements IKVServer {
 
     public HashMap<String, String> getAllKVPairs() throws Exception { 
         HashMap<String, String> kvPairs = new HashMap<>();
-        File dir = new File(dirPath);
-        if (dir.isDirectory()) {
-            for (File kv : dir.listFiles()) {
-                String key = kv.getName();
-                kvPairs.put(unescape(key), getKV(unescape(key)));
-            }
+        for (Map.Entry<String, String> entry : storedPairs().entrySet()) {
+            kvPairs.put(unescape(entry.getKey()), entry.getValue());
         }
         this.logger.info(ConsoleColors.YELLOW_BOLD_UNDERLINED + "KVPairs responsible for: " + kvPairs.toString() + ConsoleColors.RESET);
         return kvPairs;
@@ -1381,6 +1908,34 @@ public class KVServer implements IKVServer {
         cacheStrategy.setRequired(false);
         options.addOption(cacheStrategy);
 
+        Option storageEngine = new Option("se", "storageEngine", true, "storage engine");
+        storageEngine.setRequired(false);
+        options.addOption(storageEngine);
+
+        Option fsync = new Option("fs", "fsync", true, "write-ahead log fsync policy");
+        fsync.setRequired(false);
+        options.addOption(fsync);
+
+        Option compressThreshold = new Option("z", "compressThreshold", true, "compress values of at least this many bytes");
+        compressThreshold.setRequired(false);
+        options.addOption(compressThreshold);
+
+        Option frontEnd = new Option("fe", "frontEnd", true, "client connection front end");
+        frontEnd.setRequired(false);
+        options.addOption(frontEnd);
+
+        Option replication = new Option("r", "replication", true, "replication mode");
+        replication.setRequired(false);
+        options.addOption(replication);
+
+        Option writeConcern = new Option("w", "writeConcern", true, "replicas to wait for per write");
+        writeConcern.setRequired(false);
+        options.addOption(writeConcern);
+
+        Option antiEntropy = new Option("ae", "antiEntropy", true, "seconds between anti-entropy rounds with the replicas");
+        antiEntropy.setRequired(false);
+        options.addOption(antiEntropy);
+
         Option logFile = new Option("l", "logFile", true, "log file path");
         logFile.setRequired(false);
         options.addOption(logFile);
@@ -1420,6 +1975,13 @@ public class KVServer implements IKVServer {
         String serverPort = (cmd.getOptionValue("port", "20010"));
         String serverCacheSize = (cmd.getOptionValue("cacheSize", "10"));
         String serverCacheStrategy = (cmd.getOptionValue("cacheStrategy", "FIFO"));
+        String serverStorageEngine = (cmd.getOptionValue("storageEngine", "FILE"));
+        String serverFsyncPolicy = (cmd.getOptionValue("fsync", "ALWAYS"));
+        String serverCompressThreshold = (cmd.getOptionValue("compressThreshold", "-1"));
+        String serverFrontEnd = (cmd.getOptionValue("frontEnd", "THREAD"));
+        String serverReplicationMode = (cmd.getOptionValue("replication", "SYNC"));
+        String serverWriteConcern = (cmd.getOptionValue("writeConcern", null));
+        String serverAntiEntropy = (cmd.getOptionValue("antiEntropy", String.valueOf(DEFAULT_ANTI_ENTROPY_SECONDS)));
         String serverLogFile = cmd.getOptionValue("logFile", "logs/server.log");
         String serverLogLevel = cmd.getOptionValue("logLevel", "ALL");
 
@@ -1445,8 +2007,16 @@ public class KVServer implements IKVServer {
             new LogSetup(serverLogFile, LogSetup.getLogLevel(serverLogLevel));
             KVServer server;
 
+            Config serverConfig = new Config();
+            serverConfig.storageEngine = serverStorageEngine;
+            serverConfig.fsyncPolicy = serverFsyncPolicy;
+            serverConfig.compressThreshold = Integer.parseInt(serverCompressThreshold);
+            serverConfig.frontEnd = serverFrontEnd;
+            serverConfig.replicationMode = serverReplicationMode;
+            serverConfig.writeConcern = serverWriteConcern;
+            serverConfig.antiEntropySeconds = Integer.parseInt(serverAntiEntropy);
             server = new KVServer(Integer.parseInt(serverPort), Integer.parseInt(serverCacheSize), serverCacheStrategy,
-                    dbPath, ecsHostCli, ecsPortCli);
+                    dbPath, ecsHostCli, ecsPortCli, serverConfig);
             // server.clearStorage(); // are not supposed to clear storage
             // on server start/quit
         } catch (Exception e) {
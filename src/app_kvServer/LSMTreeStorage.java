@@ -0,0 +1,880 @@
+package app_kvServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import shared.ConsoleColors;
+
+/**
+ * LSM-tree storage.
+ *
+ * Writes go to a commit log and a sorted in-memory memtable. Once the memtable
+ * grows past memtableBytes it is frozen and flushed in the background to an
+ * immutable, sorted SSTable file with a sparse block index. Reads check the
+ * memtables and then the SSTables from newest to oldest.
+ *
+ * SSTables are compacted size-tiered: each run falls in a tier by its size,
+ * tier t holding runs of about compactionThreshold^t memtables, and once a
+ * tier holds compactionThreshold runs they are merged into one run of the next
+ * tier, dropping overwritten values (and tombstones, if nothing older is left
+ * for them to hide). A value is so rewritten about once per tier rather than
+ * once per compaction. Only runs adjacent in age can be merged, since the
+ * merged run takes the place of its inputs in the newest-to-oldest order, so
+ * a run smaller than a newer one is counted in the newer one's tier.
+ *
+ * The merged run is written under a new name recording the sequence numbers
+ * it covers (sst-first-last.sst) before its inputs are deleted, so after a
+ * crash in between recovery keeps the merged run and drops the inputs it
+ * supersedes.
+ *
+ * Since everything is kept sorted by key, range() walks live pairs in key
+ * order with one sequential pass over each SSTable, starting at the index
+ * block that holds the lower bound.
+ */
+public class LSMTreeStorage implements StorageEngine {
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final long DEFAULT_MEMTABLE_BYTES = 4L * 1024 * 1024; // 4 MB
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+
+    private static final String SSTABLE_PREFIX = "sst-";
+    private static final String SSTABLE_SUFFIX = ".sst";
+    private static final String LOG_PREFIX = "memtable-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int INDEX_INTERVAL_BYTES = 4 * 1024;
+    private static final int FOOTER_SIZE = 8 + 8 + 4 + 4 + 8;
+    private static final long SSTABLE_MAGIC = 0x4C534D5353544232L; // "LSMSSTB2"
+    private static final int DELETED = -1;
+
+    /* Marks a deleted key in memtables and merge iterators (compared by identity) */
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    /* Scan of an SSTable; holds the file open until exhausted or closed */
+    private interface Scan extends Iterator<Map.Entry<String, byte[]>>, Closeable {
+        @Override
+        void close();
+    }
+
+    private static void closeAll(List<Scan> scans) {
+        for (Scan scan : scans)
+            scan.close();
+    }
+
+    /**
+     * Immutable sorted run of key-value pairs on disk.
+     * Layout: entries (key length, value length or -1, key, value) | sparse
+     * index (key length, key, offset) | Bloom filter over the keys | footer
+     * (index offset, filter offset, entry count, index count, magic).
+     */
+    private static final class SSTable {
+        final long first; // oldest flushed run merged into this one
+        final long seq;
+        final File file;
+        final FileChannel channel;
+        final TreeMap<String, Long> index = new TreeMap<>();
+        final BloomFilter filter;
+        final long dataEnd;
+        final int count;
+        final long bytes;
+
+        SSTable(long first, long seq, File file) throws IOException {
+            this.first = first;
+            this.seq = seq;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+            this.bytes = channel.size();
+            ByteBuffer footer = readAt(bytes - FOOTER_SIZE, FOOTER_SIZE);
+            this.dataEnd = footer.getLong();
+            long filterOffset = footer.getLong();
+            this.count = footer.getInt();
+            int indexCount = footer.getInt();
+            if (footer.getLong() != SSTABLE_MAGIC) {
+                channel.close();
+                throw new IOException("Corrupt SSTable " + file.getName());
+            }
+
+            ByteBuffer indexBytes = readAt(dataEnd, (int) (filterOffset - dataEnd));
+            for (int i = 0; i < indexCount; i++) {
+                byte[] key = new byte[indexBytes.getInt()];
+                indexBytes.get(key);
+                index.put(new String(key, StandardCharsets.UTF_8), indexBytes.getLong());
+            }
+
+            ByteBuffer filterBytes = readAt(filterOffset, (int) (channel.size() - FOOTER_SIZE - filterOffset));
+            this.filter = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(filterBytes.array())));
+        }
+
+        ByteBuffer readAt(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0)
+                    throw new EOFException("Unexpected end of " + file.getName());
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * @param record whether to count the lookup in the filter's metrics
+         * @return the value, TOMBSTONE if the key was deleted in this run, or
+         *         null if this run knows nothing about the key
+         */
+        byte[] get(String key, boolean record) throws IOException {
+            if (!filter.mightContain(key)) {
+                if (record)
+                    BloomFilter.record(false, false);
+                return null;
+            }
+            byte[] value = find(key);
+            if (record)
+                BloomFilter.record(true, value != null);
+            return value;
+        }
+
+        private byte[] find(String key) throws IOException {
+            Map.Entry<String, Long> block = index.floorEntry(key);
+            if (block == null)
+                return null;
+
+            Map.Entry<String, Long> next = index.higherEntry(block.getKey());
+            long end = next == null ? dataEnd : next.getValue();
+            ByteBuffer buffer = readAt(block.getValue(), (int) (end - block.getValue()));
+            while (buffer.hasRemaining()) {
+                byte[] keyBytes = new byte[buffer.getInt()];
+                int valueLength = buffer.getInt();
+                buffer.get(keyBytes);
+                int cmp = new String(keyBytes, StandardCharsets.UTF_8).compareTo(key);
+                if (cmp == 0) {
+                    if (valueLength == DELETED)
+                        return TOMBSTONE;
+                    byte[] value = new byte[valueLength];
+                    buffer.get(value);
+                    return value;
+                }
+                if (cmp > 0)
+                    return null;
+                buffer.position(buffer.position() + Math.max(valueLength, 0));
+            }
+            return null;
+        }
+
+        /* Sequential scan starting at the block that may hold fromKey */
+        Scan iterator(String fromKey) throws IOException {
+            Map.Entry<String, Long> block = fromKey == null ? null : index.floorEntry(fromKey);
+            final long start = block == null ? 0 : block.getValue();
+            FileInputStream fis = new FileInputStream(file);
+            fis.getChannel().position(start);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 1 << 16));
+            return new Scan() {
+                private long position = start;
+
+                @Override
+                public boolean hasNext() {
+                    if (position < dataEnd)
+                        return true;
+                    close();
+                    return false;
+                }
+
+                @Override
+                public void close() {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // nothing left to read anyway
+                    }
+                }
+
+                @Override
+                public Map.Entry<String, byte[]> next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    try {
+                        byte[] key = new byte[in.readInt()];
+                        int valueLength = in.readInt();
+                        in.readFully(key);
+                        byte[] value = TOMBSTONE;
+                        if (valueLength != DELETED) {
+                            value = new byte[valueLength];
+                            in.readFully(value);
+                        }
+                        position += 8 + key.length + Math.max(valueLength, 0);
+                        return new AbstractMap.SimpleImmutableEntry<>(new String(key, StandardCharsets.UTF_8), value);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Error reading " + file.getName(), e);
+                    }
+                }
+            };
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close " + file.getName());
+            }
+        }
+    }
+
+    /*
+     * K-way merge of sorted sources; sources earlier in the list win on equal
+     * keys. Tombstones are returned unless dropTombstones is set.
+     */
+    private static final class MergeIterator implements Iterator<Map.Entry<String, byte[]>> {
+        private static final class Head {
+            final int rank;
+            final Iterator<Map.Entry<String, byte[]>> source;
+            Map.Entry<String, byte[]> entry;
+
+            Head(int rank, Iterator<Map.Entry<String, byte[]>> source) {
+                this.rank = rank;
+                this.source = source;
+                this.entry = source.next();
+            }
+        }
+
+        private final PriorityQueue<Head> heads = new PriorityQueue<>((a, b) -> {
+            int cmp = a.entry.getKey().compareTo(b.entry.getKey());
+            return cmp != 0 ? cmp : Integer.compare(a.rank, b.rank);
+        });
+        private final boolean dropTombstones;
+        private Map.Entry<String, byte[]> nextEntry;
+
+        MergeIterator(List<Iterator<Map.Entry<String, byte[]>>> sources, boolean dropTombstones) {
+            this.dropTombstones = dropTombstones;
+            for (int i = 0; i < sources.size(); i++) {
+                if (sources.get(i).hasNext())
+                    heads.add(new Head(i, sources.get(i)));
+            }
+            advance();
+        }
+
+        private void advance() {
+            nextEntry = null;
+            while (nextEntry == null && !heads.isEmpty()) {
+                Head head = heads.poll();
+                Map.Entry<String, byte[]> winner = head.entry;
+                reinsert(head);
+                // drop older versions of the same key
+                while (!heads.isEmpty() && heads.peek().entry.getKey().equals(winner.getKey()))
+                    reinsert(heads.poll());
+
+                if (!(dropTombstones && winner.getValue() == TOMBSTONE))
+                    nextEntry = winner;
+            }
+        }
+
+        private void reinsert(Head head) {
+            if (head.source.hasNext()) {
+                head.entry = head.source.next();
+                heads.add(head);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextEntry != null;
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (nextEntry == null)
+                throw new NoSuchElementException();
+            Map.Entry<String, byte[]> result = nextEntry;
+            advance();
+            return result;
+        }
+    }
+
+    private final File dir;
+    private final long memtableBytes;
+    private final int compactionThreshold;
+    private final ExecutorService background = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "lsm-flush-compaction");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile ConcurrentSkipListMap<String, byte[]> memtable = new ConcurrentSkipListMap<>();
+    private volatile ConcurrentSkipListMap<String, byte[]> immutable = null; // memtable being flushed
+    private volatile List<SSTable> tables = Collections.emptyList(); // newest first
+    private long memtableSize = 0;
+    private long nextSeq = 1;
+    private long logGeneration = 0;
+    private FileChannel log;
+    private long epoch = 0; // bumped by clear() so in-flight flushes are discarded
+
+    public LSMTreeStorage(String dirPath) throws IOException {
+        this(dirPath, DEFAULT_MEMTABLE_BYTES, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    public LSMTreeStorage(String dirPath, long memtableBytes, int compactionThreshold) throws IOException {
+        this.dir = new File(dirPath);
+        this.memtableBytes = memtableBytes;
+        this.compactionThreshold = compactionThreshold;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException(ConsoleColors.RED_UNDERLINED + "Unable to create a directory." + ConsoleColors.RESET);
+        }
+        recover();
+    }
+
+    private List<Long> listNumbered(String prefix, String suffix) {
+        List<Long> ids = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null)
+            return ids;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TMP_SUFFIX)) {
+                file.delete(); // left over from an interrupted flush or compaction
+            } else if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                try {
+                    ids.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected file in storage directory: " + name);
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /* Sequence ranges (first, last) of the SSTable files, newest first */
+    private List<long[]> listTables() {
+        List<long[]> ranges = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null)
+            return ranges;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SSTABLE_PREFIX) || !name.endsWith(SSTABLE_SUFFIX))
+                continue;
+            String[] parts = name.substring(SSTABLE_PREFIX.length(), name.length() - SSTABLE_SUFFIX.length()).split("-");
+            try {
+                long first = Long.parseLong(parts[0]);
+                long last = parts.length == 2 ? Long.parseLong(parts[1]) : first;
+                if (parts.length > 2 || last < first)
+                    throw new NumberFormatException(name);
+                ranges.add(new long[] { first, last });
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring unexpected file in storage directory: " + name);
+            }
+        }
+        // on equal last sequence numbers the wider (merged) run comes first
+        ranges.sort((a, b) -> a[1] != b[1] ? Long.compare(b[1], a[1]) : Long.compare(a[0], b[0]));
+        return ranges;
+    }
+
+    private File tableFile(long first, long seq) {
+        if (first == seq)
+            return new File(dir, String.format("%s%012d%s", SSTABLE_PREFIX, seq, SSTABLE_SUFFIX));
+        return new File(dir, String.format("%s%012d-%012d%s", SSTABLE_PREFIX, first, seq, SSTABLE_SUFFIX));
+    }
+
+    private File logFile(long generation) {
+        return new File(dir, String.format("%s%012d%s", LOG_PREFIX, generation, LOG_SUFFIX));
+    }
+
+    private void recover() throws IOException {
+        listNumbered(SSTABLE_PREFIX, SSTABLE_SUFFIX); // drops temporary files
+        List<SSTable> recovered = new ArrayList<>();
+        for (long[] range : listTables()) {
+            File file = tableFile(range[0], range[1]);
+            if (superseded(recovered, range)) {
+                // input of a compaction that completed before a crash
+                logger.info("Deleting " + file.getName() + ", already merged");
+                file.delete();
+                continue;
+            }
+            recovered.add(new SSTable(range[0], range[1], file));
+            nextSeq = Math.max(nextSeq, range[1] + 1);
+        }
+        tables = Collections.unmodifiableList(recovered);
+
+        // replay commit logs of memtables that never made it into an SSTable
+        List<Long> generations = listNumbered(LOG_PREFIX, LOG_SUFFIX);
+        for (long generation : generations) {
+            replayLog(logFile(generation));
+            logGeneration = Math.max(logGeneration, generation + 1);
+        }
+
+        if (!memtable.isEmpty()) {
+            ConcurrentSkipListMap<String, byte[]> replayed = memtable;
+            memtable = new ConcurrentSkipListMap<>();
+            long seq = nextSeq++;
+            publish(writeTable(seq, seq, replayed.entrySet().iterator(), replayed.size()), Collections.<SSTable>emptyList());
+        }
+        for (long generation : generations)
+            logFile(generation).delete();
+
+        log = FileChannel.open(logFile(logGeneration).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        logger.info(ConsoleColors.GREEN_UNDERLINED + "Opened LSM storage with " + tables.size() + " SSTable(s)" + ConsoleColors.RESET);
+    }
+
+    private static boolean superseded(List<SSTable> tables, long[] range) {
+        for (SSTable table : tables) {
+            if (table.first <= range[0] && range[1] <= table.seq)
+                return true;
+        }
+        return false;
+    }
+
+    private void replayLog(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                try {
+                    int checksum = in.readInt();
+                    int keyLength = in.readInt();
+                    int valueLength = in.readInt();
+                    if (keyLength < 0 || valueLength < DELETED)
+                        break;
+                    byte[] key = new byte[keyLength];
+                    in.readFully(key);
+                    byte[] value = valueLength == DELETED ? TOMBSTONE : new byte[valueLength];
+                    in.readFully(value);
+
+                    crc.reset();
+                    crc.update(key);
+                    crc.update(value);
+                    if ((int) crc.getValue() != checksum)
+                        break; // torn write at the tail of the log
+                    memtable.put(new String(key, StandardCharsets.UTF_8), value);
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void appendLog(byte[] key, byte[] value) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(value);
+
+        ByteBuffer record = ByteBuffer.allocate(12 + key.length + value.length);
+        record.putInt((int) crc.getValue());
+        record.putInt(key.length).putInt(value == TOMBSTONE ? DELETED : value.length);
+        record.put(key).put(value);
+        record.flip();
+        while (record.hasRemaining())
+            log.write(record);
+    }
+
+    /* Write sorted entries to a new SSTable, via a temporary file */
+    private SSTable writeTable(long first, long seq, Iterator<Map.Entry<String, byte[]>> entries, int expected) throws IOException {
+        File file = tableFile(first, seq);
+        File tmp = new File(dir, file.getName() + TMP_SUFFIX);
+        List<Map.Entry<String, Long>> index = new ArrayList<>();
+        BloomFilter filter = new BloomFilter(expected, BloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
+        int count = 0;
+        long position = 0, lastIndexed = -INDEX_INTERVAL_BYTES;
+
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            while (entries.hasNext()) {
+                Map.Entry<String, byte[]> entry = entries.next();
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = entry.getValue();
+                if (position - lastIndexed >= INDEX_INTERVAL_BYTES) {
+                    index.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), position));
+                    lastIndexed = position;
+                }
+                out.writeInt(key.length);
+                out.writeInt(value == TOMBSTONE ? DELETED : value.length);
+                out.write(key);
+                out.write(value);
+                filter.add(entry.getKey());
+                position += 8 + key.length + value.length;
+                count++;
+            }
+
+            long indexOffset = position;
+            for (Map.Entry<String, Long> entry : index) {
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(entry.getValue());
+                position += 4 + key.length + 8;
+            }
+            long filterOffset = position;
+            filter.writeTo(out);
+            out.writeLong(indexOffset);
+            out.writeLong(filterOffset);
+            out.writeInt(count);
+            out.writeInt(index.size());
+            out.writeLong(SSTABLE_MAGIC);
+            out.flush();
+            fos.getFD().sync();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new SSTable(first, seq, file);
+    }
+
+    /* Replace the tables in retired with added, keeping newest-first order */
+    private synchronized void publish(SSTable added, List<SSTable> retired) {
+        List<SSTable> updated = new ArrayList<>();
+        for (SSTable table : tables) {
+            if (!retired.contains(table))
+                updated.add(table);
+        }
+        updated.add(added);
+        updated.sort((a, b) -> Long.compare(b.seq, a.seq));
+        tables = Collections.unmodifiableList(updated);
+    }
+
+    private void flush(final ConcurrentSkipListMap<String, byte[]> frozen, final long seq, final File frozenLog, final long flushEpoch) {
+        try {
+            SSTable table = writeTable(seq, seq, frozen.entrySet().iterator(), frozen.size());
+            synchronized (this) {
+                if (flushEpoch != epoch) { // storage was cleared meanwhile
+                    table.close();
+                    table.file.delete();
+                    return;
+                }
+                publish(table, Collections.<SSTable>emptyList());
+                immutable = null;
+                notifyAll();
+            }
+            frozenLog.delete();
+            maybeCompact();
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Error flushing memtable" + ConsoleColors.RESET, e);
+            synchronized (this) {
+                if (flushEpoch != epoch)
+                    return;
+                // fold the frozen memtable back in; its log still protects it
+                for (Map.Entry<String, byte[]> entry : frozen.entrySet())
+                    memtable.putIfAbsent(entry.getKey(), entry.getValue());
+                immutable = null;
+                notifyAll();
+            }
+        }
+    }
+
+    private int tier(SSTable table) {
+        int tier = 0;
+        for (long size = memtableBytes * compactionThreshold; table.bytes >= size && tier < 62; size *= compactionThreshold)
+            tier++;
+        return tier;
+    }
+
+    /*
+     * The newest run of adjacent tables that fills a tier, or null if no tier
+     * is full. Tables are newest first, and a table in a lower tier than a
+     * newer one counts in the newer one's tier.
+     */
+    private List<SSTable> pickCompaction(List<SSTable> tables) {
+        int start = 0;
+        int tier = -1;
+        for (int i = 0; i <= tables.size(); i++) {
+            int next = i < tables.size() ? Math.max(tier, tier(tables.get(i))) : Integer.MAX_VALUE;
+            if (next != tier) {
+                if (i - start >= compactionThreshold)
+                    return tables.subList(start, i);
+                start = i;
+                tier = next;
+            }
+        }
+        return null;
+    }
+
+    private void maybeCompact() throws IOException {
+        while (compactOnce()) {
+            // merging a tier may fill the next one
+        }
+    }
+
+    private boolean compactOnce() throws IOException {
+        List<SSTable> all = tables;
+        long compactionEpoch;
+        synchronized (this) {
+            compactionEpoch = epoch;
+        }
+        List<SSTable> inputs = pickCompaction(all);
+        if (inputs == null)
+            return false;
+
+        List<Scan> scans = new ArrayList<>();
+        int expected = 0;
+        SSTable merged;
+        try {
+            for (SSTable table : inputs) {
+                scans.add(table.iterator(null));
+                expected += table.count;
+            }
+
+            // the merged run takes the newest input's sequence number so runs
+            // flushed later still shadow it, but a file of its own so the inputs
+            // stay intact until it is complete; tombstones can only go once no
+            // older run is left for them to hide values in
+            boolean oldest = inputs.get(inputs.size() - 1) == all.get(all.size() - 1);
+            merged = writeTable(inputs.get(inputs.size() - 1).first, inputs.get(0).seq, new MergeIterator(new ArrayList<>(scans), oldest), expected);
+        } finally {
+            closeAll(scans);
+        }
+        synchronized (this) {
+            if (compactionEpoch != epoch) {
+                merged.close();
+                merged.file.delete();
+                return false;
+            }
+            publish(merged, inputs);
+        }
+        for (SSTable table : inputs) {
+            table.close();
+            table.file.delete();
+        }
+        logger.info(ConsoleColors.GREEN_UNDERLINED + "Compacted " + inputs.size() + " SSTables into " + merged.file.getName() + ConsoleColors.RESET);
+        return true;
+    }
+
+    private void write(String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        appendLog(keyBytes, value);
+        memtable.put(key, value);
+        memtableSize += keyBytes.length + value.length + 32;
+
+        if (memtableSize < memtableBytes)
+            return;
+
+        // at most one memtable is flushed at a time; writers wait for it
+        while (immutable != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for memtable flush", e);
+            }
+        }
+
+        final ConcurrentSkipListMap<String, byte[]> frozen = memtable;
+        final File frozenLog = logFile(logGeneration);
+        final long seq = nextSeq++;
+        final long flushEpoch = epoch;
+        immutable = frozen;
+        memtable = new ConcurrentSkipListMap<>();
+        memtableSize = 0;
+
+        log.close();
+        log = FileChannel.open(logFile(++logGeneration).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        background.submit(() -> flush(frozen, seq, frozenLog, flushEpoch));
+    }
+
+    /**
+     * @return the latest value stored for the key, or null if there is none
+     */
+    @Override
+    public byte[] get(String key) throws IOException {
+        return get(key, true);
+    }
+
+    /*
+     * contains passes record = false, so that only reads show in the Bloom
+     * filter metrics, as in FileStorage
+     */
+    private byte[] get(String key, boolean record) throws IOException {
+        byte[] value = memtable.get(key);
+        if (value == null) {
+            ConcurrentSkipListMap<String, byte[]> frozen = immutable;
+            if (frozen != null)
+                value = frozen.get(key);
+        }
+
+        if (value == null) {
+            for (SSTable table : tables) {
+                try {
+                    value = table.get(key, record);
+                } catch (ClosedChannelException e) {
+                    return get(key, record); // table compacted away mid-read, retry on the new set
+                }
+                if (value != null)
+                    break;
+            }
+        }
+        return value == TOMBSTONE ? null : value;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        try {
+            return get(key, false) != null;
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Unable to read " + key + ConsoleColors.RESET, e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, byte[] value) throws IOException {
+        write(key, value);
+    }
+
+    /**
+     * @return true if the key existed and was removed
+     */
+    @Override
+    public synchronized boolean delete(String key) throws IOException {
+        if (!contains(key))
+            return false;
+        write(key, TOMBSTONE);
+        return true;
+    }
+
+    private static NavigableMap<String, byte[]> bounded(NavigableMap<String, byte[]> map, String fromKey, String toKey) {
+        if (fromKey != null)
+            map = map.tailMap(fromKey, true);
+        if (toKey != null)
+            map = map.headMap(toKey, false);
+        return map;
+    }
+
+    /**
+     * Live key-value pairs with fromKey <= key < toKey, in key order.
+     */
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> range(final String fromKey, final String toKey) throws IOException {
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+        sources.add(bounded(memtable, fromKey, toKey).entrySet().iterator());
+        ConcurrentSkipListMap<String, byte[]> frozen = immutable;
+        if (frozen != null)
+            sources.add(bounded(frozen, fromKey, toKey).entrySet().iterator());
+        final List<Scan> scans = new ArrayList<>();
+        for (SSTable table : tables) {
+            try {
+                scans.add(table.iterator(fromKey));
+            } catch (FileNotFoundException e) {
+                closeAll(scans);
+                return range(fromKey, toKey); // table compacted away meanwhile, retry on the new set
+            }
+        }
+        sources.addAll(scans);
+        final MergeIterator merged = new MergeIterator(sources, true);
+
+        // SSTable scans start at a block boundary and run to the end of the
+        // file, so they are closed once the range ends before they do
+        return new Iterator<Map.Entry<String, byte[]>>() {
+            private Map.Entry<String, byte[]> nextEntry = advance();
+
+            private Map.Entry<String, byte[]> advance() {
+                while (merged.hasNext()) {
+                    Map.Entry<String, byte[]> entry = merged.next();
+                    if (fromKey != null && entry.getKey().compareTo(fromKey) < 0)
+                        continue;
+                    if (toKey != null && entry.getKey().compareTo(toKey) >= 0)
+                        break;
+                    return entry;
+                }
+                closeAll(scans);
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextEntry != null;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (nextEntry == null)
+                    throw new NoSuchElementException();
+                Map.Entry<String, byte[]> result = nextEntry;
+                nextEntry = advance();
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Live keys in key order.
+     */
+    @Override
+    public List<String> keys() throws IOException {
+        List<String> keys = new ArrayList<>();
+        Iterator<Map.Entry<String, byte[]>> it = range(null, null);
+        while (it.hasNext())
+            keys.add(it.next().getKey());
+        return keys;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        epoch++; // an in-flight flush or compaction discards its output
+
+        for (SSTable table : tables) {
+            table.close();
+            table.file.delete();
+        }
+        tables = Collections.emptyList();
+        memtable = new ConcurrentSkipListMap<>();
+        immutable = null;
+        memtableSize = 0;
+        notifyAll();
+
+        log.close();
+        for (long generation : listNumbered(LOG_PREFIX, LOG_SUFFIX))
+            logFile(generation).delete();
+        log = FileChannel.open(logFile(++logGeneration).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        log.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdown();
+        try {
+            background.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            log.force(false);
+            log.close();
+            for (SSTable table : tables)
+                table.close();
+        }
+    }
+}
@@ -0,0 +1,868 @@
+package app_kvServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+
+import shared.ConsoleColors;
+import shared.MD5;
+
+/**
+ * Bitcask-style log-structured storage.
+ *
+ * Every write is appended to the active segment file and an in-memory key
+ * directory maps each key to the segment, offset and length of its latest
+ * value, so a GET costs a single positioned read. Segments are rolled once they
+ * reach maxSegmentBytes, and the immutable segments are merged in the
+ * background once most of their records have been superseded.
+ *
+ * In mmap mode segments are read through read-only MappedByteBuffers instead,
+ * so a GET of page-cache-resident data is a bounds-checked copy with no
+ * syscall. The mapping of a segment is refreshed whenever a read reaches past
+ * its end, i.e. after the active segment has grown.
+ *
+ * Record layout: crc32 (4) | version (8) | key length (4) | value length (4,
+ * -1 for a tombstone) | key | value. The checksum covers everything after it.
+ *
+ * Values written with openWrite are staged in a temporary file, then appended
+ * as one record by a kernel-side copy on close, so a large value never has to
+ * be held in memory; openRead streams a value out of its segment the same way.
+ *
+ * When a segment is sealed a hint file is written next to it in the background,
+ * holding key, MD5 token, version, value offset and length of every record but
+ * not the values. On restart the hint files are loaded in parallel instead of
+ * reading the sealed segments, so only the active segment is scanned.
+ */
+public class LogStructuredStorage implements StorageEngine {
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 64L * 1024 * 1024; // 64 MB
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int HINT_MAGIC = 0x48494E54; // "HINT"
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+    private static final int TOMBSTONE = -1;
+
+    /* Location of the latest value of a key */
+    private static final class KeyDirEntry {
+        final int segmentId;
+        final long valueOffset;
+        final int valueLength;
+        final long version;
+        final int recordSize;
+
+        KeyDirEntry(int segmentId, long valueOffset, int valueLength, long version, int recordSize) {
+            this.segmentId = segmentId;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+            this.version = version;
+            this.recordSize = recordSize;
+        }
+    }
+
+    /* Key directory entry as persisted in a hint file */
+    private static final class Hint {
+        final String key;
+        final BigInteger token;
+        final long version;
+        final long valueOffset;
+        final int valueLength;
+
+        Hint(String key, BigInteger token, long version, long valueOffset, int valueLength) {
+            this.key = key;
+            this.token = token;
+            this.version = version;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+        }
+    }
+
+    private final File dir;
+    private final long maxSegmentBytes;
+    private final ConcurrentHashMap<String, KeyDirEntry> keyDir = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, FileChannel> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<Integer, MappedByteBuffer> mappings = new ConcurrentHashMap<>();
+    private final boolean mmap;
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "log-storage-merge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private FileChannel activeSegment;
+    private int activeId = 0;
+    private long activeSize = 0;
+    private long lastVersion = 0;
+    private long totalBytes = 0; // bytes across all segments
+    private long liveBytes = 0; // bytes of records referenced by the key directory
+    private boolean merging = false;
+    private long clears = 0; // bumped by clear() so in-flight hint files are dropped
+    private Map<String, BigInteger> recoveredTokens = new HashMap<>();
+
+    public LogStructuredStorage(String dirPath) throws IOException {
+        this(dirPath, DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    public LogStructuredStorage(String dirPath, long maxSegmentBytes) throws IOException {
+        this(dirPath, maxSegmentBytes, false);
+    }
+
+    /**
+     * @param mmap read values through memory-mapped segments
+     */
+    public LogStructuredStorage(String dirPath, long maxSegmentBytes, boolean mmap) throws IOException {
+        this.dir = new File(dirPath);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.mmap = mmap;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException(ConsoleColors.RED_UNDERLINED + "Unable to create a directory." + ConsoleColors.RESET);
+        }
+        recover();
+    }
+
+    private static String segmentName(int id) {
+        return String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX);
+    }
+
+    private static String hintName(int id) {
+        return String.format("%s%08d%s", SEGMENT_PREFIX, id, HINT_SUFFIX);
+    }
+
+    private List<Integer> listSegmentIds() {
+        List<Integer> ids = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null)
+            return ids;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TMP_SUFFIX)) {
+                file.delete(); // left over from an interrupted hint file or streamed value
+            } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected file in storage directory: " + name);
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /*
+     * Rebuild the key directory from oldest to newest segment, using hint files
+     * (loaded in parallel) where present and scanning the segment otherwise. A
+     * torn record at the tail of the newest segment is truncated away.
+     */
+    private void recover() throws IOException {
+        List<Integer> ids = listSegmentIds();
+        Map<Integer, Future<List<Hint>>> hints = new HashMap<>();
+        ExecutorService loaders = Executors.newFixedThreadPool(Math.max(1, Math.min(ids.size(), Runtime.getRuntime().availableProcessors())));
+        for (int i = 0; i < ids.size() - 1; i++) { // the newest segment is still being appended to
+            final int id = ids.get(i);
+            if (new File(dir, hintName(id)).exists())
+                hints.put(id, loaders.submit(() -> readHint(id)));
+        }
+        loaders.shutdown();
+
+        List<Integer> unhinted = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            File file = new File(dir, segmentName(id));
+            List<Hint> hint = awaitHint(hints.get(id));
+            long validLength;
+            if (hint != null) {
+                applyHint(id, hint);
+                validLength = file.length();
+            } else {
+                validLength = scanSegment(id, file);
+                if (i < ids.size() - 1)
+                    unhinted.add(id);
+            }
+            if (validLength < file.length()) {
+                logger.warn(ConsoleColors.RED_UNDERLINED + "Truncating corrupt tail of " + file.getName() + " at offset " + validLength + ConsoleColors.RESET);
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                }
+            }
+            segments.put(id, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+            totalBytes += validLength;
+            activeId = id;
+            activeSize = validLength;
+        }
+
+        if (ids.isEmpty()) {
+            openActiveSegment(0);
+        } else {
+            // reopen newest segment for appending
+            activeSegment = FileChannel.open(new File(dir, segmentName(activeId)).toPath(), StandardOpenOption.WRITE);
+            if (activeSize >= maxSegmentBytes) {
+                unhinted.add(activeId);
+                openActiveSegment(activeId + 1);
+            }
+        }
+
+        for (int id : unhinted)
+            submitHint(id);
+        logger.info(ConsoleColors.GREEN_UNDERLINED + "Recovered " + keyDir.size() + " keys from " + segments.size() + " segment(s), " + hints.size() + " via hint files" + ConsoleColors.RESET);
+    }
+
+    private List<Hint> awaitHint(Future<List<Hint>> hint) {
+        if (hint == null)
+            return null;
+        try {
+            return hint.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            logger.warn("Unable to read hint file, scanning segment instead", e.getCause());
+            return null;
+        }
+    }
+
+    private void applyHint(int id, List<Hint> hint) {
+        for (Hint entry : hint) {
+            int recordSize = HEADER_SIZE + entry.key.getBytes(StandardCharsets.UTF_8).length + Math.max(entry.valueLength, 0);
+            KeyDirEntry previous;
+            if (entry.valueLength == TOMBSTONE) {
+                previous = keyDir.remove(entry.key);
+                recoveredTokens.remove(entry.key);
+            } else {
+                previous = keyDir.put(entry.key, new KeyDirEntry(id, entry.valueOffset, entry.valueLength, entry.version, recordSize));
+                recoveredTokens.put(entry.key, entry.token);
+                liveBytes += recordSize;
+            }
+            if (previous != null)
+                liveBytes -= previous.recordSize;
+            lastVersion = Math.max(lastVersion, entry.version);
+        }
+    }
+
+    /*
+     * Hint file layout: magic | entries of (key length, key, token (16),
+     * version, value offset, value length or -1) | -1 | segment length | entry
+     * count | crc32 of everything before it. Returns null if the hint does not
+     * match its segment.
+     */
+    private List<Hint> readHint(int id) throws IOException {
+        File segment = new File(dir, segmentName(id));
+        CRC32 crc = new CRC32();
+        List<Hint> hint = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(new File(dir, hintName(id))), 1 << 16), crc))) {
+            if (in.readInt() != HINT_MAGIC)
+                return null;
+            while (true) {
+                int keyLength = in.readInt();
+                if (keyLength < 0)
+                    break;
+                byte[] key = new byte[keyLength];
+                in.readFully(key);
+                byte[] token = new byte[16];
+                in.readFully(token);
+                hint.add(new Hint(new String(key, StandardCharsets.UTF_8), new BigInteger(1, token), in.readLong(), in.readLong(), in.readInt()));
+            }
+            long segmentLength = in.readLong();
+            int count = in.readInt();
+            long expected = crc.getValue();
+            if (in.readLong() != expected || count != hint.size() || segmentLength != segment.length())
+                return null;
+        } catch (EOFException e) {
+            return null; // torn hint file
+        }
+        return hint;
+    }
+
+    private synchronized void submitHint(final int id) {
+        final long generation = clears;
+        merger.submit(() -> writeHint(id, generation));
+    }
+
+    /*
+     * Write the hint file of a sealed segment by reading its record headers
+     */
+    private void writeHint(int id, long generation) {
+        File segment = new File(dir, segmentName(id));
+        File tmp = new File(dir, hintName(id) + TMP_SUFFIX);
+        try {
+            long length = segment.length();
+            CRC32 crc = new CRC32();
+            try (FileOutputStream fos = new FileOutputStream(tmp);
+                    DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), crc));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 1 << 16))) {
+                out.writeInt(HINT_MAGIC);
+                long offset = 0;
+                int count = 0;
+                while (offset < length) {
+                    in.readInt(); // checksum, verified when the record was recovered or written
+                    long version = in.readLong();
+                    int keyLength = in.readInt();
+                    int valueLength = in.readInt();
+                    byte[] key = new byte[keyLength];
+                    in.readFully(key);
+                    int skip = Math.max(valueLength, 0);
+                    while (skip > 0)
+                        skip -= in.skipBytes(skip);
+
+                    byte[] token = MD5.getHash(new String(key, StandardCharsets.UTF_8)).toByteArray();
+                    out.writeInt(keyLength);
+                    out.write(key);
+                    out.write(new byte[16 - Math.min(token.length, 16)]); // left-pad to 16 bytes
+                    out.write(token, Math.max(token.length - 16, 0), Math.min(token.length, 16));
+                    out.writeLong(version);
+                    out.writeLong(offset + HEADER_SIZE + keyLength);
+                    out.writeInt(valueLength);
+                    offset += HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+                    count++;
+                }
+                out.writeInt(-1);
+                out.writeLong(length);
+                out.writeInt(count);
+                out.writeLong(crc.getValue());
+                out.flush();
+                fos.getFD().sync();
+            }
+
+            synchronized (this) {
+                if (generation != clears || !segment.exists()) {
+                    tmp.delete(); // segment was cleared or merged away meanwhile
+                    return;
+                }
+                if (!tmp.renameTo(new File(dir, hintName(id))))
+                    throw new IOException("Unable to rename " + tmp.getName());
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            logger.warn("Unable to write hint file for segment " + id, e);
+        }
+    }
+
+    /**
+     * Wait for the merges and hint files queued so far to be written, for
+     * callers that look at the files on disk.
+     */
+    public void awaitBackgroundWork() throws InterruptedException {
+        try {
+            merger.submit(() -> { }).get(); // the merger runs its tasks in order
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * MD5 tokens of the keys recovered from hint files, so callers indexing by
+     * token need not hash them again. Handed out once.
+     */
+    @Override
+    public synchronized Map<String, BigInteger> knownTokens() {
+        Map<String, BigInteger> tokens = recoveredTokens;
+        recoveredTokens = new HashMap<>();
+        return tokens;
+    }
+
+    private long scanSegment(int id, File file) throws IOException {
+        long offset = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                int checksum;
+                try {
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                long version;
+                int keyLength, valueLength;
+                byte[] keyBytes, valueBytes;
+                try {
+                    version = in.readLong();
+                    keyLength = in.readInt();
+                    valueLength = in.readInt();
+                    if (keyLength < 0 || valueLength < TOMBSTONE || offset + HEADER_SIZE + keyLength + Math.max(valueLength, 0) > file.length())
+                        break;
+                    keyBytes = new byte[keyLength];
+                    in.readFully(keyBytes);
+                    valueBytes = new byte[Math.max(valueLength, 0)];
+                    in.readFully(valueBytes);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                crc.reset();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE - 4);
+                header.putLong(version).putInt(keyLength).putInt(valueLength);
+                crc.update(header.array());
+                crc.update(keyBytes);
+                crc.update(valueBytes);
+                if ((int) crc.getValue() != checksum)
+                    break;
+
+                int recordSize = HEADER_SIZE + keyLength + valueBytes.length;
+                String key = new String(keyBytes, StandardCharsets.UTF_8);
+                KeyDirEntry previous;
+                if (valueLength == TOMBSTONE) {
+                    previous = keyDir.remove(key);
+                } else {
+                    previous = keyDir.put(key, new KeyDirEntry(id, offset + HEADER_SIZE + keyLength, valueLength, version, recordSize));
+                    liveBytes += recordSize;
+                }
+                if (previous != null)
+                    liveBytes -= previous.recordSize;
+
+                lastVersion = Math.max(lastVersion, version);
+                offset += recordSize;
+            }
+        }
+        return offset;
+    }
+
+    private void openActiveSegment(int id) throws IOException {
+        if (activeSegment != null)
+            activeSegment.force(false);
+
+        File file = new File(dir, segmentName(id));
+        activeSegment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segments.put(id, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        activeId = id;
+        activeSize = 0;
+    }
+
+    private static ByteBuffer encode(long version, byte[] keyBytes, byte[] valueBytes) {
+        int valueLength = valueBytes == null ? TOMBSTONE : valueBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + Math.max(valueLength, 0));
+        record.putInt(0); // checksum placeholder
+        record.putLong(version).putInt(keyBytes.length).putInt(valueLength);
+        record.put(keyBytes);
+        if (valueBytes != null)
+            record.put(valueBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    /* Append an encoded record to the active segment, returning its offset */
+    private long append(ByteBuffer record) throws IOException {
+        long offset = activeSize;
+        long position = offset;
+        while (record.hasRemaining())
+            position += activeSegment.write(record, position);
+        activeSize = position;
+        totalBytes += position - offset;
+        return offset;
+    }
+
+    private void rollIfNeeded() throws IOException {
+        if (activeSize < maxSegmentBytes)
+            return;
+
+        submitHint(activeId);
+        openActiveSegment(activeId + 1);
+
+        // merge once more than half of what is on disk is garbage
+        if (!merging && segments.size() > 2 && totalBytes - liveBytes > totalBytes / 2) {
+            merging = true;
+            final long generation = clears;
+            final List<Integer> merged = new ArrayList<>(segments.headMap(activeId).keySet());
+            merger.submit(() -> merge(merged, generation));
+        }
+    }
+
+    private KeyDirEntry write(String key, byte[] keyBytes, byte[] value, long version) throws IOException {
+        ByteBuffer record = encode(version, keyBytes, value);
+        int recordSize = record.remaining();
+        long offset = append(record);
+        KeyDirEntry entry = new KeyDirEntry(activeId, offset + HEADER_SIZE + keyBytes.length, value.length, version, recordSize);
+        liveBytes += recordSize;
+        return entry;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return keyDir.containsKey(key);
+    }
+
+    @Override
+    public List<String> keys() {
+        return new ArrayList<>(keyDir.keySet());
+    }
+
+    public int size() {
+        return keyDir.size();
+    }
+
+    /**
+     * @return the latest value stored for the key, or null if there is none
+     */
+    @Override
+    public byte[] get(String key) throws IOException {
+        // a concurrent merge may retire the segment between lookup and read, in
+        // which case the key directory already points at the new location
+        for (int attempt = 0; attempt < 3; attempt++) {
+            KeyDirEntry entry = keyDir.get(key);
+            if (entry == null)
+                return null;
+
+            FileChannel channel = segments.get(entry.segmentId);
+            if (channel == null)
+                continue;
+
+            try {
+                if (mmap) {
+                    byte[] value = new byte[entry.valueLength];
+                    ByteBuffer view = mapping(entry.segmentId, channel, entry.valueOffset + entry.valueLength).duplicate();
+                    view.position((int) entry.valueOffset);
+                    view.get(value);
+                    return value;
+                }
+
+                ByteBuffer value = ByteBuffer.allocate(entry.valueLength);
+                long position = entry.valueOffset;
+                while (value.hasRemaining()) {
+                    int read = channel.read(value, position);
+                    if (read < 0)
+                        throw new EOFException("Unexpected end of segment " + entry.segmentId);
+                    position += read;
+                }
+                return value.array();
+            } catch (ClosedChannelException e) {
+                // retry against the merged location
+            }
+        }
+        throw new IOException(ConsoleColors.RED_UNDERLINED + "Unable to read value for " + key + ConsoleColors.RESET);
+    }
+
+    /*
+     * Mapping covering at least the first end bytes of the segment; remapped to
+     * the current file size when the segment has grown past the old mapping
+     */
+    private MappedByteBuffer mapping(int segmentId, FileChannel channel, long end) throws IOException {
+        MappedByteBuffer mapping = mappings.get(segmentId);
+        if (mapping != null && mapping.capacity() >= end)
+            return mapping;
+
+        synchronized (channel) {
+            mapping = mappings.get(segmentId);
+            if (mapping == null || mapping.capacity() < end) {
+                long size = channel.size();
+                if (size < end)
+                    throw new EOFException("Unexpected end of segment " + segmentId);
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                mappings.put(segmentId, mapping);
+            }
+        }
+        return mapping;
+    }
+
+    @Override
+    public synchronized void put(String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        KeyDirEntry entry = write(key, keyBytes, value, ++lastVersion);
+        KeyDirEntry previous = keyDir.put(key, entry);
+        if (previous != null)
+            liveBytes -= previous.recordSize;
+        rollIfNeeded();
+    }
+
+    /**
+     * Stage the value in a temporary file as it is written, then append it as
+     * one record on close, copying it into the active segment without reading
+     * it into memory. The segment is forced once the record is in.
+     */
+    @Override
+    public ValueOutputStream openWrite(final String key) throws IOException {
+        final File staged = File.createTempFile("stream-", TMP_SUFFIX, dir);
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(staged), STREAM_BUFFER_SIZE);
+        return new ValueOutputStream() {
+            private boolean done = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (done)
+                    return;
+                done = true;
+                try {
+                    out.close();
+                    appendStaged(key, staged);
+                } finally {
+                    staged.delete();
+                }
+            }
+
+            @Override
+            public void abort() throws IOException {
+                if (done)
+                    return;
+                done = true;
+                out.close();
+                staged.delete();
+            }
+        };
+    }
+
+    private void appendStaged(String key, File staged) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long length = staged.length();
+        if (HEADER_SIZE + keyBytes.length + length > Integer.MAX_VALUE)
+            throw new IOException(ConsoleColors.RED_UNDERLINED + "Value for " + key + " is too large for a log record" + ConsoleColors.RESET);
+        int recordSize = (int) (HEADER_SIZE + keyBytes.length + length);
+
+        long version;
+        synchronized (this) {
+            version = ++lastVersion;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length);
+        header.putInt(0); // checksum placeholder
+        header.putLong(version).putInt(keyBytes.length).putInt((int) length);
+        header.put(keyBytes);
+
+        // checksum the staged value before taking the lock the copy runs under
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 4, header.capacity() - 4);
+        try (InputStream in = new FileInputStream(staged)) {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            for (int read = in.read(buffer); read > 0; read = in.read(buffer))
+                crc.update(buffer, 0, read);
+        }
+        header.putInt(0, (int) crc.getValue());
+        header.flip();
+
+        try (FileChannel source = FileChannel.open(staged.toPath(), StandardOpenOption.READ)) {
+            synchronized (this) {
+                // nothing is accounted until the whole record is in, so after a
+                // failure the next write goes over what was copied
+                long offset = activeSize;
+                long position = offset;
+                while (header.hasRemaining())
+                    position += activeSegment.write(header, position);
+                long end = offset + recordSize;
+                while (position < end) {
+                    long copied = activeSegment.transferFrom(source, position, end - position);
+                    if (copied <= 0)
+                        throw new EOFException("Staged value for " + key + " ended early");
+                    position += copied;
+                }
+                activeSegment.force(false);
+                activeSize = end;
+                totalBytes += recordSize;
+
+                KeyDirEntry entry = new KeyDirEntry(activeId, offset + HEADER_SIZE + keyBytes.length, (int) length, version, recordSize);
+                liveBytes += recordSize;
+                KeyDirEntry previous = keyDir.put(key, entry);
+                if (previous != null)
+                    liveBytes -= previous.recordSize;
+                rollIfNeeded();
+            }
+        }
+    }
+
+    /**
+     * Stream the value out of its segment with positioned reads; if a merge
+     * moves it meanwhile, reading goes on at its new location.
+     */
+    @Override
+    public InputStream openRead(final String key) throws IOException {
+        final KeyDirEntry first = keyDir.get(key);
+        if (first == null)
+            return null;
+
+        return new BufferedInputStream(new InputStream() {
+            private KeyDirEntry entry = first;
+            private long position = 0; // within the value
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= entry.valueLength)
+                    return -1;
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, entry.valueLength - position));
+                for (int attempt = 0; attempt < 3; attempt++) {
+                    FileChannel channel = segments.get(entry.segmentId);
+                    try {
+                        if (channel != null) {
+                            int read = channel.read(buffer, entry.valueOffset + position);
+                            if (read < 0)
+                                throw new EOFException("Unexpected end of segment " + entry.segmentId);
+                            position += read;
+                            return read;
+                        }
+                    } catch (ClosedChannelException e) {
+                        // merged away, look up the new location
+                    }
+                    KeyDirEntry moved = keyDir.get(key);
+                    if (moved == null || moved.version != entry.version)
+                        throw new IOException(ConsoleColors.RED_UNDERLINED + "Value for " + key + " was replaced while being read" + ConsoleColors.RESET);
+                    entry = moved;
+                }
+                throw new IOException(ConsoleColors.RED_UNDERLINED + "Unable to read value for " + key + ConsoleColors.RESET);
+            }
+        }, STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * @return true if the key existed and was removed
+     */
+    @Override
+    public synchronized boolean delete(String key) throws IOException {
+        KeyDirEntry previous = keyDir.get(key);
+        if (previous == null)
+            return false;
+
+        append(encode(++lastVersion, key.getBytes(StandardCharsets.UTF_8), null));
+        keyDir.remove(key);
+        liveBytes -= previous.recordSize;
+        rollIfNeeded();
+        return true;
+    }
+
+    /*
+     * Copy every live record held by the given segments into the active
+     * segment, then drop their files. Gives up if the storage is cleared
+     * meanwhile (generation no longer matches clears), as the ids may then
+     * name new segments.
+     */
+    private void merge(List<Integer> ids, long generation) {
+        int upTo = ids.isEmpty() ? 0 : ids.get(ids.size() - 1) + 1;
+        try {
+            for (Map.Entry<String, KeyDirEntry> kv : keyDir.entrySet()) {
+                KeyDirEntry entry = kv.getValue();
+                if (entry.segmentId >= upTo)
+                    continue;
+
+                byte[] value = get(kv.getKey());
+                if (value == null)
+                    continue;
+
+                synchronized (this) {
+                    if (generation != clears)
+                        return;
+                    // skip keys rewritten or deleted while we were reading
+                    if (keyDir.get(kv.getKey()) != entry)
+                        continue;
+                    KeyDirEntry moved = write(kv.getKey(), kv.getKey().getBytes(StandardCharsets.UTF_8), value, entry.version);
+                    keyDir.put(kv.getKey(), moved);
+                    liveBytes -= entry.recordSize;
+                    rollIfNeeded();
+                }
+            }
+
+            synchronized (this) {
+                if (generation != clears)
+                    return;
+                activeSegment.force(false);
+                for (Integer id : ids) {
+                    if (id == activeId)
+                        continue;
+                    FileChannel channel = segments.remove(id);
+                    if (channel == null)
+                        continue;
+                    mappings.remove(id);
+                    File file = new File(dir, segmentName(id));
+                    totalBytes -= file.length();
+                    channel.close();
+                    if (!file.delete())
+                        logger.warn("Unable to delete merged segment " + file.getName());
+                    new File(dir, hintName(id)).delete();
+                }
+            }
+            logger.info(ConsoleColors.GREEN_UNDERLINED + "Merged log segments below " + upTo + ConsoleColors.RESET);
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Error merging log segments" + ConsoleColors.RESET, e);
+        } finally {
+            synchronized (this) {
+                merging = false;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        for (FileChannel channel : segments.values())
+            channel.close();
+        segments.clear();
+        mappings.clear();
+        activeSegment.close();
+        activeSegment = null;
+        keyDir.clear();
+
+        clears++;
+        for (Integer id : listSegmentIds()) {
+            new File(dir, segmentName(id)).delete();
+            new File(dir, hintName(id)).delete();
+        }
+
+        totalBytes = 0;
+        liveBytes = 0;
+        openActiveSegment(0);
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        activeSegment.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        merger.shutdownNow();
+        activeSegment.force(false);
+        activeSegment.close();
+        for (FileChannel channel : segments.values())
+            channel.close();
+        segments.clear();
+        mappings.clear();
+    }
+}
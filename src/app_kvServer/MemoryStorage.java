@@ -0,0 +1,70 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Volatile in-memory storage, mainly for benchmarks and tests; nothing
+ * survives a restart.
+ */
+public class MemoryStorage implements StorageEngine {
+    private final ConcurrentSkipListMap<String, byte[]> pairs = new ConcurrentSkipListMap<>();
+
+    @Override
+    public byte[] get(String key) {
+        return pairs.get(key);
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+        pairs.put(key, value);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        return pairs.remove(key) != null;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return pairs.containsKey(key);
+    }
+
+    @Override
+    public List<String> keys() {
+        return new ArrayList<>(pairs.keySet());
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> range(String fromKey, String toKey) {
+        NavigableMap<String, byte[]> view = pairs;
+        if (fromKey != null)
+            view = view.tailMap(fromKey, true);
+        if (toKey != null)
+            view = view.headMap(toKey, false);
+        return view.entrySet().iterator();
+    }
+
+    @Override
+    public Map<String, byte[]> snapshot() {
+        return new TreeMap<>(pairs);
+    }
+
+    @Override
+    public void clear() {
+        pairs.clear();
+    }
+
+    @Override
+    public void sync() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,217 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ecs.ECSNode;
+
+/**
+ * Merkle tree over the pairs of a TokenIndexedStorage, so a coordinator and
+ * its replicas can find where their copies of a hash range differ by
+ * exchanging digests rather than pairs (see Replicator.reconcile).
+ *
+ * The tree has a fixed shape over the whole token space: each child of the
+ * root covers 1/FANOUT of the tokens, each of its children 1/FANOUT of that,
+ * and so on down to LEAVES leaves at DEPTH. The tree of a hash range is the
+ * same tree leaving out the pairs outside the range. A pair's digest is 64
+ * bits of the MD5 of its key and value, and a node's the XOR of the digests
+ * of the pairs below it, so two copies holding the same pairs have the same
+ * digests whatever order they were written in.
+ *
+ * Leaf digests are cached and dropped when a key in the leaf is written, so
+ * storage is only read for leaves written since they were last compared, and
+ * for the at most two leaves a range boundary cuts.
+ */
+public class MerkleTree {
+    private static final int BITS_PER_LEVEL = 4;
+    public static final int FANOUT = 1 << BITS_PER_LEVEL;
+    public static final int DEPTH = 3;
+    public static final int LEAVES = 1 << (BITS_PER_LEVEL * DEPTH);
+    private static final int LEAF_SHIFT = 128 - BITS_PER_LEVEL * DEPTH; // token bits below a leaf
+
+    private static final ObjectMapper om = new ObjectMapper();
+
+    private final TokenIndexedStorage storage;
+    private final long[] digests = new long[LEAVES]; // of whole leaves, where cached
+    private final boolean[] cached = new boolean[LEAVES];
+    private final long[] versions = new long[LEAVES]; // writes to each leaf so far
+
+    /**
+     * Payload of MERKLE_TREE and MERKLE_KEYS requests: the nodes of the tree
+     * of the ring range [start, end] at the given level whose children's
+     * digests (or, for leaves, whose pairs' digests) are asked for.
+     */
+    public static class Request {
+        public BigInteger start;
+        public BigInteger end;
+        public int level;
+        public List<Integer> nodes;
+    }
+
+    MerkleTree(TokenIndexedStorage storage) {
+        this.storage = storage;
+    }
+
+    /*
+     * Called by the storage after each write of a key with the given token
+     */
+    synchronized void invalidate(BigInteger token) {
+        int leaf = token.shiftRight(LEAF_SHIFT).intValue();
+        cached[leaf] = false;
+        versions[leaf]++;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(cached, false);
+        for (int leaf = 0; leaf < LEAVES; leaf++)
+            versions[leaf]++;
+    }
+
+    /**
+     * Digests of the children of the given nodes at a level, FANOUT per node
+     * in order, counting only the pairs whose tokens lie in the ring range
+     * [start, end]. The root is node 0 of level 0, and child j of node i is
+     * node i * FANOUT + j of the next level.
+     */
+    public long[] childDigests(BigInteger start, BigInteger end, int level, List<Integer> nodes) throws IOException {
+        if (level < 0 || level >= DEPTH)
+            throw new IllegalArgumentException("No children at level " + level);
+        int leavesPerChild = LEAVES >> (BITS_PER_LEVEL * (level + 1));
+        long[] result = new long[nodes.size() * FANOUT];
+        for (int n = 0; n < nodes.size(); n++) {
+            checkNode(level, nodes.get(n));
+            for (int j = 0; j < FANOUT; j++) {
+                int first = (nodes.get(n) * FANOUT + j) * leavesPerChild;
+                long digest = 0;
+                for (int leaf = first; leaf < first + leavesPerChild; leaf++)
+                    digest ^= leafDigest(leaf, start, end);
+                result[n * FANOUT + j] = digest;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Digests of the stored pairs in the given leaves whose tokens lie in the
+     * ring range [start, end], by stored (escaped) key.
+     */
+    public Map<String, Long> pairDigests(BigInteger start, BigInteger end, List<Integer> leaves) throws IOException {
+        Map<String, Long> pairs = new LinkedHashMap<>();
+        for (int leaf : leaves) {
+            checkNode(DEPTH, leaf);
+            pairs.putAll(pairDigests(leaf, start, end));
+        }
+        return pairs;
+    }
+
+    private static void checkNode(int level, int node) {
+        if (node < 0 || node >= 1 << (BITS_PER_LEVEL * level))
+            throw new IllegalArgumentException("No node " + node + " at level " + level);
+    }
+
+    private long leafDigest(int leaf, BigInteger start, BigInteger end) throws IOException {
+        BigInteger first = BigInteger.valueOf(leaf).shiftLeft(LEAF_SHIFT);
+        BigInteger last = BigInteger.valueOf(leaf + 1).shiftLeft(LEAF_SHIFT).subtract(BigInteger.ONE);
+        boolean cut = !start.equals(end) && (within(start, first, last) || within(end, first, last));
+        if (cut) {
+            long digest = 0;
+            for (long pair : pairDigests(leaf, start, end).values())
+                digest ^= pair;
+            return digest;
+        }
+        if (!ECSNode.isKeyInRange(first, start, end))
+            return 0; // the whole leaf is outside the range
+
+        long version;
+        synchronized (this) {
+            if (cached[leaf])
+                return digests[leaf];
+            version = versions[leaf];
+        }
+        long digest = 0;
+        for (long pair : pairDigests(leaf, null, null).values())
+            digest ^= pair;
+        synchronized (this) {
+            if (versions[leaf] == version) { // not written meanwhile
+                digests[leaf] = digest;
+                cached[leaf] = true;
+            }
+        }
+        return digest;
+    }
+
+    private static boolean within(BigInteger token, BigInteger first, BigInteger last) {
+        return token.compareTo(first) >= 0 && token.compareTo(last) <= 0;
+    }
+
+    /*
+     * Pairs of one leaf, of those in [start, end] unless start is null
+     */
+    private Map<String, Long> pairDigests(int leaf, BigInteger start, BigInteger end) throws IOException {
+        BigInteger first = BigInteger.valueOf(leaf).shiftLeft(LEAF_SHIFT);
+        BigInteger last = BigInteger.valueOf(leaf + 1).shiftLeft(LEAF_SHIFT).subtract(BigInteger.ONE);
+        Map<String, Long> pairs = new LinkedHashMap<>();
+        for (String key : storage.keysInRange(first, last)) {
+            if (start != null && !ECSNode.isKeyInRange(key, start, end))
+                continue;
+            byte[] value = storage.get(key);
+            if (value != null) // deleted since listing
+                pairs.put(key, digest(key, value));
+        }
+        return pairs;
+    }
+
+    private static long digest(String key, byte[] value) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(key.getBytes(StandardCharsets.UTF_8));
+            md5.update((byte) 0);
+            byte[] hash = md5.digest(value);
+            long digest = 0;
+            for (int i = 0; i < 8; i++)
+                digest = digest << 8 | (hash[i] & 0xFF);
+            return digest;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String encodeRequest(BigInteger start, BigInteger end, int level, List<Integer> nodes) throws IOException {
+        Request request = new Request();
+        request.start = start;
+        request.end = end;
+        request.level = level;
+        request.nodes = nodes;
+        return om.writeValueAsString(request);
+    }
+
+    public static Request decodeRequest(String json) throws IOException {
+        return om.readValue(json, Request.class);
+    }
+
+    public static String encodeDigests(long[] digests) throws IOException {
+        return om.writeValueAsString(digests);
+    }
+
+    public static long[] decodeDigests(String json) throws IOException {
+        return om.readValue(json, long[].class);
+    }
+
+    public static String encodePairDigests(Map<String, Long> pairs) throws IOException {
+        return om.writeValueAsString(pairs);
+    }
+
+    public static Map<String, Long> decodePairDigests(String json) throws IOException {
+        return om.readValue(json, new TypeReference<LinkedHashMap<String, Long>>() { });
+    }
+}
@@ -0,0 +1,520 @@
+package app_kvServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import shared.BufferPool;
+import shared.ConsoleColors;
+import shared.messages.BasicKVMessage;
+import shared.messages.BinaryProtocol;
+
+/**
+ * Non-blocking front end: an acceptor hands each connection to one of a few
+ * selector event loops, which read into a per-connection buffer, cut it into
+ * frames (binary frames, see BinaryProtocol, or CR LF terminated text, as
+ * MessageService reads them) and pass the frames to a bounded pool of workers
+ * running the RequestHandler.
+ *
+ * Requests from other servers (see RequestHandler.isPeerRequest) run on a
+ * pool of their own. A client write holds its worker until its replicas have
+ * answered; if the replicas answered from the same pools, the workers of
+ * every server around the ring could end up waiting for each other.
+ *
+ * Binary replies are encoded into pooled direct buffers, written to the
+ * channel from there and returned to the pool once sent.
+ *
+ * The thread count stays at loops + 2 * workers however many clients connect.
+ * A connection has at most one request in a worker at a time, so its replies go
+ * out in request order. Requests wait in a backlog per connection; once it
+ * holds MAX_BACKLOG requests the loop stops reading the connection until a
+ * worker has drained it to half that. Requests with a request ID are
+ * pipelined: a worker hands them to the connection's RequestLanes in the
+ * order they arrived, and their replies go out as they complete. Chunked
+ * transfers are never pipelined, since streaming a value out waits for the
+ * client to read it.
+ *
+ * The event loops never run requests or wait for anything but the selector,
+ * since only they write replies out. Chunked transfers of large values go to
+ * the connection's ChunkedTransfer in request order like other requests; a
+ * worker streaming a value out waits while more than QUEUED_CHUNKS replies
+ * are queued, so the value is never buffered whole.
+ */
+public class NioFrontEnd {
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final int DEFAULT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static final int DEFAULT_WORKERS = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int DROP_SIZE = 128 * 1024; // longest frame, as in MessageService
+    private static final int MAX_BACKLOG = 256; // requests read from a connection and not yet run
+    private static final int REPLY_BUFFER_SIZE = 4 * 1024;
+    private static final int POOLED_REPLY_BUFFERS = 1024;
+    private static final int QUEUED_CHUNKS = 16; // replies a chunked transfer may queue before it waits for the socket
+
+    private final KVServer server;
+    private final RequestHandler handler;
+    private final RequestLanes requestLanes;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor peerWorkers; // runs requests from other servers
+    private final BufferPool replyBuffers = new BufferPool(REPLY_BUFFER_SIZE, POOLED_REPLY_BUFFERS, true);
+    private volatile boolean running = true;
+
+    public NioFrontEnd(KVServer server, int port) throws IOException {
+        this(server, port, DEFAULT_LOOPS, DEFAULT_WORKERS);
+    }
+
+    public NioFrontEnd(KVServer server, int port, int loopCount, int workerCount) throws IOException {
+        this.server = server;
+        this.handler = new RequestHandler(server);
+        this.requestLanes = server.getRequestLanes();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+
+        // a connection queues at most one task at a time, see dispatch
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), daemonThreads("nio-worker"));
+        this.peerWorkers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), daemonThreads("nio-peer"));
+
+        this.loops = new EventLoop[loopCount];
+        ThreadFactory loopThreads = daemonThreads("nio-loop");
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            loopThreads.newThread(loops[i]).start();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    public ServerSocket getServerSocket() {
+        return serverChannel.socket();
+    }
+
+    /**
+     * Accept connections on the calling thread until close() is called.
+     */
+    public void run() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                loops[next++ % loops.length].register(channel);
+                logger.info(ConsoleColors.GREEN_UNDERLINED + "Connected to " + channel.getRemoteAddress() + ConsoleColors.RESET);
+            } catch (ClosedChannelException e) {
+                break; // closed by close()
+            } catch (IOException e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Unable to establish connection." + ConsoleColors.RESET, e);
+            }
+        }
+    }
+
+    public void close() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Unable to close server channel" + ConsoleColors.RESET, e);
+        }
+        for (EventLoop loop : loops)
+            loop.selector.wakeup();
+        workers.shutdownNow();
+        peerWorkers.shutdownNow();
+    }
+
+    /**
+     * One selector and the connections registered with it. Only the loop's
+     * thread touches the selector; other threads queue work and wake it up.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> flushes = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> resumes = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE); // shared by the loop's connections
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        void flushLater(Connection connection) {
+            flushes.add(connection);
+            selector.wakeup();
+        }
+
+        void resumeLater(Connection connection) {
+            resumes.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        try {
+                            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                            key.attach(new Connection(this, channel, key));
+                        } catch (IOException e) {
+                            channel.close();
+                        }
+                    }
+
+                    Connection connection;
+                    while ((connection = flushes.poll()) != null)
+                        connection.flush();
+                    while ((connection = resumes.poll()) != null)
+                        connection.resume();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isReadable())
+                            connection.read(readBuffer);
+                        if (key.isValid() && key.isWritable())
+                            connection.flush();
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running)
+                    logger.error(ConsoleColors.RED_UNDERLINED + "Event loop stopped" + ConsoleColors.RESET, e);
+            } finally {
+                for (SelectionKey key : selector.keys())
+                    ((Connection) key.attachment()).close();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // nothing left to release
+                }
+            }
+        }
+    }
+
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+
+        // event loop only
+        private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        private boolean frameStart = true; // next byte read starts a frame
+        private boolean binary = false; // frame being read is a binary one, see BinaryProtocol
+        private final byte[] header = new byte[BinaryProtocol.MAX_HEADER_SIZE];
+        private int headerLength = 0; // header bytes of a binary frame read so far
+        private int frameLength = -1; // length of a binary frame, once its header is in
+        private byte last = 0; // last byte of a partial text frame, to find a CR LF split across reads
+        private boolean paused = false; // not reading until the backlog drains
+
+        // guarded by this
+        private final Queue<BasicKVMessage> requests = new ArrayDeque<>();
+        private boolean busy = false; // a worker is processing this connection's requests
+
+        private final Queue<ByteBuffer> replies = new ConcurrentLinkedQueue<>();
+        private final ChunkedTransfer transfer;
+        private final RequestLanes.Lanes lanes;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.transfer = new ChunkedTransfer(server);
+            this.lanes = requestLanes.open();
+        }
+
+        void read(ByteBuffer buffer) {
+            buffer.clear();
+            int n;
+            try {
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+
+            byte[] bytes = buffer.array();
+            int i = 0;
+            try {
+                while (i < n) {
+                    if (frameStart) {
+                        binary = BinaryProtocol.isFrameStart(bytes[i]);
+                        headerLength = 0;
+                        frameLength = -1;
+                        frameStart = false;
+                    }
+                    i = binary ? readBinary(bytes, i, n) : readText(bytes, i, n);
+                }
+            } catch (IOException e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Malformed frame: " + e.getMessage() + ConsoleColors.RESET);
+                close();
+            }
+        }
+
+        /*
+         * @return index after the bytes taken for the current text frame
+         */
+        private int readText(byte[] bytes, int start, int end) {
+            byte prev = last;
+            for (int i = start; i < end; i++) {
+                byte b = bytes[i];
+                boolean crlf = b == '\n' && prev == '\r';
+                if (crlf || partial.size() + i + 1 - start >= DROP_SIZE) {
+                    partial.write(bytes, start, crlf ? i - start : i + 1 - start); // frame keeps the CR, as MessageService does
+                    last = 0;
+                    dispatch();
+                    return i + 1;
+                }
+                prev = b;
+            }
+            partial.write(bytes, start, end - start);
+            last = prev;
+            return end;
+        }
+
+        /*
+         * @return index after the bytes taken for the current binary frame
+         */
+        private int readBinary(byte[] bytes, int start, int end) throws IOException {
+            int i = start;
+            while (frameLength < 0) { // header is variable length, take it a byte at a time
+                if (i == end)
+                    return end;
+                header[headerLength++] = bytes[i++];
+                int headerSize = BinaryProtocol.headerSize(header, 0, headerLength);
+                if (headerSize >= 0) {
+                    frameLength = headerSize + BinaryProtocol.payloadLength(header, 0);
+                    partial.write(header, 0, headerSize);
+                }
+            }
+            int take = Math.min(frameLength - partial.size(), end - i);
+            partial.write(bytes, i, take);
+            if (partial.size() == frameLength)
+                dispatch();
+            return i + take;
+        }
+
+        private void dispatch() {
+            byte[] frame = partial.toByteArray();
+            partial.reset();
+            frameStart = true;
+            BasicKVMessage request = BinaryProtocol.isFrameStart(frame[0])
+                    ? BinaryProtocol.decode(frame, 0)
+                    : new BasicKVMessage(frame);
+
+            synchronized (this) {
+                requests.add(request);
+                if (requests.size() >= MAX_BACKLOG && !paused) {
+                    paused = true;
+                    updateInterest(!replies.isEmpty());
+                }
+                if (busy)
+                    return;
+                busy = true;
+            }
+            schedule(RequestHandler.isPeerRequest(request.getStatus()));
+        }
+
+        private void schedule(boolean peer) {
+            try {
+                (peer ? peerWorkers : workers).execute(() -> process(peer));
+            } catch (RejectedExecutionException e) {
+                close(); // shutting down
+            }
+        }
+
+        /*
+         * Run the queued requests in order until one belongs on the other
+         * pool, then hand the rest over to it
+         */
+        private void process(boolean peer) {
+            while (true) {
+                BasicKVMessage request;
+                synchronized (this) {
+                    request = requests.peek();
+                    if (request == null) {
+                        busy = false;
+                        return;
+                    }
+                    if (RequestHandler.isPeerRequest(request.getStatus()) == peer) {
+                        requests.poll();
+                        if (paused && requests.size() == MAX_BACKLOG / 2)
+                            loop.resumeLater(this);
+                    }
+                }
+                if (RequestHandler.isPeerRequest(request.getStatus()) != peer) {
+                    schedule(!peer); // still busy, the other pool takes over
+                    return;
+                }
+                if (peer || request.getRequestId() == 0 || ChunkedTransfer.isChunked(request.getStatus())) {
+                    reply(request);
+                    continue;
+                }
+                try { // pipelined, may be answered out of order
+                    lanes.execute(request.getKey(), () -> reply(request));
+                } catch (InterruptedException | RejectedExecutionException e) {
+                    close(); // closed, or shutting down
+                    return;
+                }
+            }
+        }
+
+        /*
+         * Event loop only: read again once the backlog has drained
+         */
+        void resume() {
+            synchronized (this) {
+                if (!paused || requests.size() >= MAX_BACKLOG)
+                    return;
+                paused = false;
+            }
+            updateInterest(!replies.isEmpty());
+        }
+
+        /*
+         * Event loop only
+         */
+        private void updateInterest(boolean writing) {
+            if (!key.isValid())
+                return;
+            int ops = writing ? SelectionKey.OP_WRITE : 0;
+            synchronized (this) {
+                if (!paused)
+                    ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        private void reply(BasicKVMessage request) {
+            try {
+                if (ChunkedTransfer.isChunked(request.getStatus()))
+                    transfer.handle(request, this::sendChunk);
+                else
+                    send(handler.handle(request));
+            } catch (Exception e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Error! while processing message" + ConsoleColors.RESET, e);
+            }
+        }
+
+        private void send(BasicKVMessage reply) {
+            replies.add(encode(reply));
+            loop.flushLater(this);
+        }
+
+        private ByteBuffer encode(BasicKVMessage reply) {
+            return reply.getBinaryProtocol()
+                    ? BinaryProtocol.encode(reply, replyBuffers).flip()
+                    : ByteBuffer.wrap(reply.getMsgBytes());
+        }
+
+        private void sendChunk(BasicKVMessage reply) throws IOException {
+            send(reply);
+            synchronized (replies) {
+                while (replies.size() > QUEUED_CHUNKS) {
+                    if (!channel.isOpen())
+                        throw new IOException("Connection closed");
+                    try {
+                        replies.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted sending chunks", e);
+                    }
+                }
+            }
+        }
+
+        void flush() {
+            if (!channel.isOpen())
+                return;
+            try {
+                ByteBuffer buffer;
+                while ((buffer = replies.peek()) != null) {
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) { // socket buffer full, finish when writable
+                        updateInterest(true);
+                        return;
+                    }
+                    replyBuffers.release(replies.poll());
+                }
+                updateInterest(false);
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            } finally {
+                synchronized (replies) {
+                    replies.notifyAll(); // room for a chunked transfer's next chunks
+                }
+            }
+        }
+
+        void close() {
+            if (!channel.isOpen())
+                return;
+            key.cancel();
+            lanes.close();
+            try {
+                logger.info(ConsoleColors.RED_UNDERLINED + "Connection closed for " + channel.getRemoteAddress() + ConsoleColors.RESET);
+                channel.close();
+            } catch (IOException e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Error! closing connection" + ConsoleColors.RESET, e);
+            }
+            synchronized (replies) {
+                replies.notifyAll(); // a chunked transfer waiting for room gives up
+            }
+            try {
+                workers.execute(transfer::close); // waits for a transfer in progress
+            } catch (RejectedExecutionException e) {
+                transfer.close(); // shutting down
+            }
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.*;
+
+import shared.messages.Batch;
+import shared.messages.BasicKVMessage;
+import shared.messages.KVMessage.StatusType;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import shared.ConsoleColors;
+
+/**
+ * Turns a client request into its reply. Shared by the front ends that own
+ * the sockets: one ClientConnection thread per client, or NioFrontEnd's
+ * event loops and worker pool. It keeps no per-connection state, so one
+ * handler can serve requests from any number of threads.
+ */
+public class RequestHandler {
+
+    private static Logger logger = Logger.getRootLogger();
+    private ObjectMapper om = new ObjectMapper();
+    private KVServer server;
+
+    public RequestHandler(KVServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Whether a request comes from another server (replication, anti-entropy
+     * or a key transfer) rather than a client. Answering one never waits for a
+     * further server, so a front end can run them apart from client requests,
+     * which may wait for replicas.
+     */
+    public static boolean isPeerRequest(StatusType status) {
+        switch (status) {
+            case REPLICATE:
+            case REPLICATE_BATCH:
+            case REPLICATE_STREAM:
+            case REPLICATE_STREAM_END:
+            case MERKLE_TREE:
+            case MERKLE_KEYS:
+            case SQLREPLICATE:
+            case SQLCREATE_REPLICATE:
+            case SQLSELECT_REPLICATE:
+            case SQLDROP_REPLICATE:
+            case SQLINSERT_REPLICATE:
+            case SQLUPDATE_REPLICATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean checkKeyInRange(String key) {
+        return this.server.getMetadata().isKeyInRange(key);
+    }
+
+    /**
+     * Processes a received message and returns the reply for the client.
+     */
+    public BasicKVMessage handle(BasicKVMessage recv) throws Exception {
+        BasicKVMessage res;
+        StatusType recvStatus = recv.getStatus();
+        String recvKey = recv.getKey();
+        String recvVal = recv.getValue();
+        Boolean recvLocolProtocol = recv.getLocalProtocol();
+
+        if (recvStatus == StatusType.GET_ALL_KEYS){
+            res = new BasicKVMessage(StatusType.GET_ALL_KEYS, this.server.getAllKvPairsResponsibleFor().toString(), null);
+        }
+        else if (recvStatus == StatusType.KEYRANGE_READ){
+            res = new BasicKVMessage(StatusType.KEYRANGE_READ_SUCCESS, this.server.getHashRing().keyrangeRead(), null);
+        }
+        else if (recvStatus == StatusType.KEYRANGE){
+            res = new BasicKVMessage(StatusType.KEYRANGE_SUCCESS, this.server.getHashRing().toString(), null);
+        } 
+        else if (recvStatus == StatusType.REPLICATE){
+            System.out.println(ConsoleColors.GREEN_UNDERLINED + "[KVServer] Received REPLICATE command (" + recvKey + "," + recvVal + ")");
+
+            try {
+                // the coordinator already applied the write, so a write lock does not hold it back
+                server.putKV(recvKey, recvVal, true);
+                res = new BasicKVMessage(StatusType.REPLICATE_SUCCESS, recvKey, recvVal);
+            } catch (Exception e) { 
+                if (recvVal.equals("null"))
+                    res = new BasicKVMessage(StatusType.DELETE_ERROR, recvKey, recvVal);
+                else
+                    res = new BasicKVMessage(StatusType.PUT_ERROR, recvKey, recvVal);
+            }
+
+        } 
+        else if (recvStatus == StatusType.REPLICATE_BATCH && recvVal != null){
+            try {
+                Map<String, String> pairs = Batch.decodePairs(recvVal);
+                System.out.println(ConsoleColors.GREEN_UNDERLINED + "[KVServer] Received REPLICATE_BATCH command (" + pairs.size() + " pairs)");
+
+                boolean failed = false;
+                // applied despite a write lock, as with REPLICATE
+                for (Map.Entry<String, StatusType> result : server.putKVBatch(pairs, true).entrySet()) {
+                    StatusType status = result.getValue();
+                    // deleting a pair this replica does not hold leaves it as the coordinator wants
+                    failed |= status == StatusType.PUT_ERROR || status == StatusType.SERVER_WRITE_LOCK
+                            || status == StatusType.DELETE_ERROR && server.inStorage(KVServer.escape(result.getKey()));
+                }
+                // the key is the sequence number of an asynchronous batch, echoed as its acknowledgement
+                res = new BasicKVMessage(failed ? StatusType.PUT_ERROR : StatusType.REPLICATE_BATCH_SUCCESS, recvKey, null);
+            } catch (IOException e) {
+                res = new BasicKVMessage(StatusType.INVALID_FORMAT, "Malformed batch", null);
+            }
+
+        } 
+        else if (recvStatus == StatusType.MERKLE_TREE && recvVal != null){
+            try {
+                MerkleTree.Request request = MerkleTree.decodeRequest(recvVal);
+                long[] digests = server.getMerkleTree().childDigests(request.start, request.end, request.level, request.nodes);
+                res = new BasicKVMessage(StatusType.MERKLE_TREE_SUCCESS, null, MerkleTree.encodeDigests(digests));
+            } catch (IOException | IllegalArgumentException e) {
+                res = new BasicKVMessage(StatusType.INVALID_FORMAT, "Malformed tree request", null);
+            }
+
+        }
+        else if (recvStatus == StatusType.MERKLE_KEYS && recvVal != null){
+            try {
+                MerkleTree.Request request = MerkleTree.decodeRequest(recvVal);
+                Map<String, Long> digests = server.getMerkleTree().pairDigests(request.start, request.end, request.nodes);
+                res = new BasicKVMessage(StatusType.MERKLE_KEYS_SUCCESS, null, MerkleTree.encodePairDigests(digests));
+            } catch (IOException | IllegalArgumentException e) {
+                res = new BasicKVMessage(StatusType.INVALID_FORMAT, "Malformed tree request", null);
+            }
+
+        }
+        else if (recvStatus == StatusType.MPUT && recvVal != null) {
+            try {
+                Map<String, String> pairs = Batch.decodePairs(recvVal);
+                Map<String, BasicKVMessage> results = new LinkedHashMap<>();
+                Map<String, String> responsible = new LinkedHashMap<>();
+                boolean notResponsible = false;
+                for (Map.Entry<String, String> pair : pairs.entrySet()) {
+                    results.put(pair.getKey(), null); // keeps batch order
+                    if (this.server.isCoordinator(KVServer.escape(pair.getKey()))) {
+                        responsible.put(pair.getKey(), pair.getValue());
+                    } else {
+                        results.put(pair.getKey(), new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, pair.getKey(), null));
+                        notResponsible = true;
+                    }
+                }
+
+                // one storage batch, then one replication message for what was applied
+                Map<String, String> applied = new LinkedHashMap<>();
+                for (Map.Entry<String, StatusType> put : server.putKVBatch(responsible, false).entrySet()) {
+                    String value = responsible.get(put.getKey());
+                    results.put(put.getKey(), new BasicKVMessage(put.getValue(), put.getKey(), value));
+                    if (put.getValue() != StatusType.SERVER_WRITE_LOCK && put.getValue() != StatusType.PUT_ERROR
+                            && put.getValue() != StatusType.DELETE_ERROR)
+                        applied.put(put.getKey(), value);
+                }
+                if (!applied.isEmpty()) {
+                    if (this.server.replicateBatch(applied)){
+                        this.logger.info(ConsoleColors.GREEN_UNDERLINED + "Replication success" + ConsoleColors.RESET);
+                    } else {
+                        this.logger.info(ConsoleColors.GREEN_UNDERLINED + "Replication failure" + ConsoleColors.RESET);
+                    }
+                }
+
+                res = new BasicKVMessage(StatusType.MPUT_SUCCESS,
+                        notResponsible ? this.om.writeValueAsString(this.server.getHashRing()) : null, Batch.encodeResults(results));
+            } catch (IOException e) {
+                res = new BasicKVMessage(StatusType.INVALID_FORMAT, "Malformed batch", null);
+            }
+
+        } 
+        else if (recvStatus == StatusType.MGET && recvVal != null) {
+            try {
+                Map<String, BasicKVMessage> results = new LinkedHashMap<>();
+                boolean notResponsible = false;
+                for (String key : Batch.decodeKeys(recvVal)) {
+                    if (this.server.isCoordinatorOrReplicator(KVServer.escape(key))) {
+                        try {
+                            String value = server.getKV(key);
+                            results.put(key, new BasicKVMessage(value == null ? StatusType.GET_ERROR : StatusType.GET_SUCCESS, key, value));
+                        } catch (Exception e) {
+                            results.put(key, new BasicKVMessage(StatusType.GET_ERROR, key, null));
+                        }
+                    } else {
+                        results.put(key, new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, key, null));
+                        notResponsible = true;
+                    }
+                }
+
+                res = new BasicKVMessage(StatusType.MGET_SUCCESS,
+                        notResponsible ? this.om.writeValueAsString(this.server.getHashRing()) : null, Batch.encodeResults(results));
+            } catch (IOException e) {
+                res = new BasicKVMessage(StatusType.INVALID_FORMAT, "Malformed batch", null);
+            }
+
+        } 
+        else if (recvStatus == StatusType.PUT && recvKey != null && recvVal != null) { // PUT
+            if(this.server.isCoordinator(KVServer.escape(recvKey))){
+                /*
+                * tuple successfully inserted, send acknowledgement to client: PUT_SUCCESS
+                * <key> <value>
+                * tuple successfully updated, send acknowledgement to client: PUT_UPDATE <key>
+                * <value>
+                * unable to insert tuple, send error message to client: PUT_ERROR <key> <value>
+                */
+
+                try {
+                    StatusType putStatus;
+                    putStatus = server.putKV(recvKey, recvVal);
+                    res = new BasicKVMessage(putStatus, recvKey, recvVal);
+
+                    if (putStatus != StatusType.SERVER_WRITE_LOCK){
+                        if (this.server.replicate(recvKey, recvVal)){
+                            this.logger.info(ConsoleColors.GREEN_UNDERLINED + "Replication success" + ConsoleColors.RESET);
+                        } else {
+                            this.logger.info(ConsoleColors.GREEN_UNDERLINED + "Replication failure" + ConsoleColors.RESET);
+                        }
+                    }
+
+                } catch (Exception e) {
+                    if (recvVal.equals("null"))
+                        res = new BasicKVMessage(StatusType.DELETE_ERROR, recvKey, recvVal);
+                    else
+                        res = new BasicKVMessage(StatusType.PUT_ERROR, recvKey, recvVal);
+                }
+            } else {
+                if(recvLocolProtocol){
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, this.om.writeValueAsString(this.server.getHashRing()), null);
+                } else{
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
+                }
+            }
+
+        } 
+        else if (recvStatus == StatusType.PUT && recvVal == null) {
+            if(this.server.isCoordinator(KVServer.escape(recvKey))){
+                res = new BasicKVMessage(StatusType.PUT_ERROR, recvKey, recvVal);
+            } else {
+                if(recvLocolProtocol){
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, this.om.writeValueAsString(this.server.getHashRing()), null);
+                } else{
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
+                }
+            }
+
+        } 
+        else if (recvStatus == StatusType.GET && recvKey != null) { // GET
+            if(this.server.isCoordinatorOrReplicator(KVServer.escape(recvKey))){
+                try {
+                    String value = server.getKV(recvKey);
+    
+                    if (value == null) // tuple not found, send error message to client: GET_ERROR <key>
+                        res = new BasicKVMessage(StatusType.GET_ERROR, recvKey, null);
+                    else // tuple found: GET_SUCCESS <key> <value> to client.
+                        res = new BasicKVMessage(StatusType.GET_SUCCESS, recvKey, value);
+                } catch (Exception e) { // Something is wrong.
+                    res = new BasicKVMessage(StatusType.GET_ERROR, recvKey, null);
+                }
+            } else {
+                if(recvLocolProtocol){
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, this.om.writeValueAsString(this.server.getHashRing()), null);
+                } else{
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
+                }
+            }
+
+        } 
+        else if (recvStatus == StatusType.SQLCREATE && recvKey != null && recvVal != null) {
+            if(this.server.isCoordinator(KVServer.escape(recvKey))){
+
+                try {
+                    StatusType sqlCreateStatus;
+                    sqlCreateStatus = server.sqlCreate(recvKey, recvVal, false);
+                    res = new BasicKVMessage(sqlCreateStatus, recvKey, recvVal);
+
+                    if (sqlCreateStatus != StatusType.SERVER_WRITE_LOCK){
+                        if (this.server.replicateSQLCommand(recvKey, recvVal, StatusType.SQLCREATE_REPLICATE)){
+                            this.logger.info(ConsoleColors.GREEN_UNDERLINED + "SQLCREATE_REPLICATE Replication success" + ConsoleColors.RESET);
+                        } else {
+                            this.logger.info(ConsoleColors.GREEN_UNDERLINED + "SQLCREATE_REPLICATE Replication failure" + ConsoleColors.RESET);
+                        }
+                    }
+
+                } catch (Exception e) {
+                    res = new BasicKVMessage(StatusType.SQLCREATE_ERROR, recvKey, recvVal);
+                }
+            } else {
+                if(recvLocolProtocol){
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, this.om.writeValueAsString(this.server.getHashRing()), null);
+                } else{
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
+                }
+            }
+
+        } 
+        else if (recvStatus == StatusType.SQLSELECT && recvKey != null) {
+            if(this.server.isCoordinatorOrReplicator(KVServer.escape(recvKey))){
+                try {
+                    boolean testing = false;
+                    if (recvVal != null) {
+                        testing = true;
+                    }
+                    String value = server.sqlSelect(recvKey, testing);
+
+                    if (value == null) // table not found, send error message to client: SQLSELECT_ERROR <tablename>
+                        res = new BasicKVMessage(StatusType.SQLSELECT_ERROR, recvKey, null);
+                    else // table found: SQLSELECT_SUCCESS <tablename> <tablecontents> to client.
+                        res = new BasicKVMessage(StatusType.SQLSELECT_SUCCESS, recvKey, value);
+
+                } catch (Exception e) {
+                    res = new BasicKVMessage(StatusType.SQLSELECT_ERROR, recvKey, recvVal);
+                }
+            } else {
+                if(recvLocolProtocol){
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, this.om.writeValueAsString(this.server.getHashRing()), null);
+                } else{
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
+                }
+            }
+
+        } 
+        else if (recvStatus == StatusType.SQLDROP && recvKey != null) {
+            if(this.server.isCoordinator(KVServer.escape(recvKey))){
+                try {
+                    StatusType sqlDropStatus;
+                    sqlDropStatus = server.sqlDrop(recvKey, false);
+                    res = new BasicKVMessage(sqlDropStatus, recvKey, null);
+
+                    if (sqlDropStatus != StatusType.SERVER_WRITE_LOCK){
+                        if (this.server.replicateSQLCommand(recvKey, null, StatusType.SQLDROP_REPLICATE)){
+                            this.logger.info(ConsoleColors.GREEN_UNDERLINED + "SQLDROP_REPLICATE Replication success" + ConsoleColors.RESET);
+                        } else {
+                            this.logger.info(ConsoleColors.GREEN_UNDERLINED + "SQLDROP_REPLICATE Replication failure" + ConsoleColors.RESET);
+                        }
+                    }
+
+                } catch (Exception e) {
+                    res = new BasicKVMessage(StatusType.SQLDROP_ERROR, recvKey, null);
+                }
+            } else {
+                if(recvLocolProtocol){
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, this.om.writeValueAsString(this.server.getHashRing()), null);
+                } else{
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
+                }
+            }
+        } 
+        else if (recvStatus == StatusType.SQLINSERT && recvKey != null && recvVal != null) {
+            if(this.server.isCoordinator(KVServer.escape(recvKey))){
+
+                try {
+                    StatusType sqlInsertStatus;
+                    sqlInsertStatus = server.sqlInsert(recvKey, recvVal, false);
+                    res = new BasicKVMessage(sqlInsertStatus, recvKey, recvVal);
+
+                    if (sqlInsertStatus != StatusType.SERVER_WRITE_LOCK){
+                        if (this.server.replicateSQLCommand(recvKey, recvVal, StatusType.SQLINSERT_REPLICATE)){
+                            this.logger.info(ConsoleColors.GREEN_UNDERLINED + "SQLINSERT_REPLICATE Replication success" + ConsoleColors.RESET);
+                        } else {
+                            this.logger.info(ConsoleColors.GREEN_UNDERLINED + "SQLINSERT_REPLICATE Replication failure" + ConsoleColors.RESET);
+                        }
+                    }
+
+                } catch (Exception e) {
+                    res = new BasicKVMessage(StatusType.SQLINSERT_ERROR, recvKey, recvVal);
+                    this.logger.error(ConsoleColors.RED_UNDERLINED + "Error occurred during SQLINSERT: " + e.getMessage() + ConsoleColors.RESET);
+                }
+            } else {
+                if(recvLocolProtocol){
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, this.om.writeValueAsString(this.server.getHashRing()), null);
+                } else{
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
+                }
+            }
+
+        } 
+        else if (recvStatus == StatusType.SQLUPDATE && recvKey != null && recvVal != null) {
+            if(this.server.isCoordinator(KVServer.escape(recvKey))){
+
+                try {
+                    StatusType sqlUpdateStatus;
+                    sqlUpdateStatus = server.sqlUpdate(recvKey, recvVal, false);
+                    res = new BasicKVMessage(sqlUpdateStatus, recvKey, recvVal);
+
+                    if (sqlUpdateStatus != StatusType.SERVER_WRITE_LOCK){
+                        if (this.server.replicateSQLCommand(recvKey, recvVal, StatusType.SQLUPDATE_REPLICATE)){
+                            this.logger.info(ConsoleColors.GREEN_UNDERLINED + "SQLUPDATE_REPLICATE Replication success" + ConsoleColors.RESET);
+                        } else {
+                            this.logger.info(ConsoleColors.GREEN_UNDERLINED + "SQLUPDATE_REPLICATE Replication failure" + ConsoleColors.RESET);
+                        }
+                    }
+
+                } catch (Exception e) {
+                    res = new BasicKVMessage(StatusType.SQLUPDATE_ERROR, recvKey, recvVal);
+                    this.logger.error(ConsoleColors.RED_UNDERLINED + "Error occurred during SQLUPDATE: " + e.getMessage() + ConsoleColors.RESET);
+                }
+            } else {
+                if(recvLocolProtocol){
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, this.om.writeValueAsString(this.server.getHashRing()), null);
+                } else{
+                    res = new BasicKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
+                }
+            }
+
+        } 
+        else if (recvStatus == StatusType.SQLCREATE_REPLICATE && recvKey != null && recvVal != null) {
+            System.out.println(ConsoleColors.GREEN_UNDERLINED + "[KVServer] Received SQLCREATE_REPLICATE command (" + recvKey + "," + recvVal + ")");
+
+            try {
+                StatusType sqlCreateStatus;
+                sqlCreateStatus = server.sqlCreate(recvKey, recvVal, false);
+                res = new BasicKVMessage(sqlCreateStatus, recvKey, recvVal);
+            } catch (Exception e) {
+                res = new BasicKVMessage(StatusType.SQLCREATE_REPLICATE_ERROR, recvKey, recvVal);
+                this.logger.error(ConsoleColors.RED_UNDERLINED + "Error occurred during SQLCREATE_REPLICATE_ERROR: " + e.getMessage() + ConsoleColors.RESET);
+            }
+
+        } 
+        else if (recvStatus == StatusType.SQLDROP_REPLICATE && recvKey != null) {
+            System.out.println(ConsoleColors.GREEN_UNDERLINED + "[KVServer] Received SQLDROP_REPLICATE command (" + recvKey + ")");
+
+            try {
+                StatusType sqlDropStatus;
+                sqlDropStatus = server.sqlDrop(recvKey, false);
+                res = new BasicKVMessage(sqlDropStatus, recvKey, null);
+            } catch (Exception e) {
+                res = new BasicKVMessage(StatusType.SQLDROP_REPLICATE_ERROR, recvKey, null);
+                this.logger.error(ConsoleColors.RED_UNDERLINED + "Error occurred during SQLDROP_REPLICATE_ERROR: " + e.getMessage() + ConsoleColors.RESET);
+            }
+
+        } 
+        else if (recvStatus == StatusType.SQLINSERT_REPLICATE && recvKey != null && recvVal != null) {
+            System.out.println(ConsoleColors.GREEN_UNDERLINED + "[KVServer] Received SQLINSERT_REPLICATE command (" + recvKey + "," + recvVal + ")");
+
+            try {
+                StatusType sqlInsertStatus;
+                sqlInsertStatus = server.sqlInsert(recvKey, recvVal, false);
+                res = new BasicKVMessage(sqlInsertStatus, recvKey, recvVal);
+            } catch (Exception e) {
+                res = new BasicKVMessage(StatusType.SQLINSERT_REPLICATE_ERROR, recvKey, recvVal);
+                this.logger.error(ConsoleColors.RED_UNDERLINED + "Error occurred during SQLINSERT_REPLICATE: " + e.getMessage() + ConsoleColors.RESET);
+            }
+            
+        } 
+        else if (recvStatus == StatusType.SQLUPDATE_REPLICATE && recvKey != null && recvVal != null) {
+            System.out.println(ConsoleColors.GREEN_UNDERLINED + "[KVServer] Received SQLUPDATE_REPLICATE command (" + recvKey + "," + recvVal + ")");
+
+            try {
+                StatusType sqlUpdateStatus;
+                sqlUpdateStatus = server.sqlUpdate(recvKey, recvVal, false);
+                res = new BasicKVMessage(sqlUpdateStatus, recvKey, recvVal);
+            } catch (Exception e) {
+                res = new BasicKVMessage(StatusType.SQLUPDATE_REPLICATE_ERROR, recvKey, recvVal);
+                this.logger.error(ConsoleColors.RED_UNDERLINED + "Error occurred during SQLUPDATE_REPLICATE: " + e.getMessage() + ConsoleColors.RESET);
+            }
+            
+        }
+        else if (recvStatus == StatusType.INVALID_KEY || recvStatus == StatusType.INVALID_VALUE) { 
+            // message size exceeded
+            res = new BasicKVMessage(StatusType.FAILED, recvKey, null);
+        } 
+        else { // Message format unknown
+            res = new BasicKVMessage(StatusType.FAILED, "Message format is unknown.", null);
+        }
+
+        res.setLocalProtocl(recvLocolProtocol);
+        res.setBinaryProtocol(recv.getBinaryProtocol()); // reply the way the client asked
+        res.setRequestId(recv.getRequestId());
+        return res;
+    }
+}
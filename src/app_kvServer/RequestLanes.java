@@ -0,0 +1,174 @@
+package app_kvServer;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import shared.ConsoleColors;
+
+/**
+ * Runs pipelined requests (those with a request ID) off the connection that
+ * read them, on a pool shared by all connections. Each connection opens its
+ * own Lanes: a key hashes to one of the connection's lanes, which runs its
+ * requests one at a time and in the order they arrived, so a client's writes
+ * to a key are applied in the order it sent them while its requests for
+ * different keys run in parallel. Requests without a key take the lanes in
+ * turn.
+ *
+ * A lane gives its pool thread back after every request, so a connection with
+ * a long queue cannot hold the pool from the others. Tasks should hand their
+ * replies to the connection rather than write them out themselves, since a
+ * client that stops reading would otherwise hold a pool thread.
+ */
+public class RequestLanes {
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final int DEFAULT_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+    private static final int LANES_PER_CONNECTION = 16;
+    private static final int MAX_PENDING = 1024; // requests a connection may have queued or running
+
+    private final ThreadPoolExecutor pool;
+
+    public RequestLanes() {
+        this(DEFAULT_THREADS);
+    }
+
+    public RequestLanes(int threadCount) {
+        final AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread t = new Thread(r, "request-lane-" + count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * @return the lanes of a new connection
+     */
+    public Lanes open() {
+        return new Lanes();
+    }
+
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * One connection's lanes.
+     */
+    public class Lanes {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition drained = lock.newCondition();
+        private final Lane[] lanes = new Lane[LANES_PER_CONNECTION];
+        private int next = 0; // lane of the next request without a key
+        private int pending = 0;
+        private boolean closed = false;
+
+        private Lanes() { }
+
+        /**
+         * Queue a task on the key's lane, blocking while the connection has
+         * MAX_PENDING requests queued or running, which stops it reading until
+         * its lanes catch up.
+         *
+         * @param key the request's key, or null for requests without one
+         * @throws RejectedExecutionException once the lanes or the pool are closed
+         */
+        public void execute(String key, Runnable task) throws InterruptedException {
+            Lane lane;
+            boolean start;
+            lock.lock();
+            try {
+                while (pending >= MAX_PENDING && !closed)
+                    drained.await();
+                if (closed || pool.isShutdown())
+                    throw new RejectedExecutionException("Request lanes closed");
+                int i;
+                if (key == null) {
+                    i = next;
+                    next = (next + 1) % lanes.length;
+                } else {
+                    int h = key.hashCode();
+                    h ^= h >>> 16;
+                    i = (h & 0x7FFFFFFF) % lanes.length;
+                }
+                if (lanes[i] == null)
+                    lanes[i] = new Lane();
+                lane = lanes[i];
+                lane.tasks.add(task);
+                pending++;
+                start = !lane.scheduled;
+                lane.scheduled = true;
+            } finally {
+                lock.unlock();
+            }
+            if (start)
+                schedule(lane);
+        }
+
+        /**
+         * Stop taking requests; the queued ones still run.
+         */
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+                drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void schedule(Lane lane) {
+            try {
+                pool.execute(() -> runNext(lane));
+            } catch (RejectedExecutionException e) {
+                // shutting down, the queued requests are dropped
+            }
+        }
+
+        private void runNext(Lane lane) {
+            Runnable task;
+            lock.lock();
+            try {
+                task = lane.tasks.poll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Error! while processing pipelined request" + ConsoleColors.RESET, e);
+            }
+            boolean more;
+            lock.lock();
+            try {
+                pending--;
+                drained.signal();
+                more = !lane.tasks.isEmpty();
+                lane.scheduled = more;
+            } finally {
+                lock.unlock();
+            }
+            if (more)
+                schedule(lane); // behind the other connections' queued requests
+        }
+    }
+
+    /*
+     * Guarded by the owning Lanes' lock
+     */
+    private static class Lane {
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        boolean scheduled = false; // a task of this lane is queued on or running in the pool
+    }
+}
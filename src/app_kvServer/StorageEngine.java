@@ -0,0 +1,143 @@
+package app_kvServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Persistence backend of a KVServer. Keys are passed in escaped form and
+ * values are raw bytes; the server handles caching, locking and replication.
+ */
+public interface StorageEngine {
+
+    /**
+     * @return the value stored for the key, or null if there is none
+     */
+    public byte[] get(String key) throws IOException;
+
+    /**
+     * Insert or overwrite the value stored for the key
+     */
+    public void put(String key, byte[] value) throws IOException;
+
+    /**
+     * Store a value written in pieces, for values too large to hold as one
+     * array. Engines that can write a value incrementally override this; by
+     * default the pieces are collected, put and synced when the stream is
+     * closed, which suits engines that hold values in memory anyway.
+     */
+    public default ValueOutputStream openWrite(final String key) throws IOException {
+        return new ValueOutputStream() {
+            private ByteArrayOutputStream value = new ByteArrayOutputStream();
+
+            @Override
+            public void write(int b) {
+                value.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                value.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (value == null)
+                    return;
+                put(key, value.toByteArray());
+                value = null;
+                sync();
+            }
+
+            @Override
+            public void abort() {
+                value = null;
+            }
+        };
+    }
+
+    /**
+     * @return the value stored for the key as a stream, or null if there is
+     *         none; engines that can read a value incrementally override this
+     */
+    public default InputStream openRead(String key) throws IOException {
+        byte[] value = get(key);
+        return value == null ? null : new ByteArrayInputStream(value);
+    }
+
+    /**
+     * @return true if the key existed and was removed
+     */
+    public boolean delete(String key) throws IOException;
+
+    public boolean contains(String key);
+
+    /**
+     * @return all stored keys, in no particular order
+     */
+    public List<String> keys() throws IOException;
+
+    /**
+     * Iterate over stored pairs with fromKey <= key < toKey in key order; a
+     * null bound is open. Engines that keep keys sorted override this with a
+     * streaming scan.
+     */
+    public default Iterator<Map.Entry<String, byte[]>> range(String fromKey, String toKey) throws IOException {
+        List<String> keys = new ArrayList<>();
+        for (String key : keys()) {
+            if ((fromKey == null || key.compareTo(fromKey) >= 0) && (toKey == null || key.compareTo(toKey) < 0))
+                keys.add(key);
+        }
+        Collections.sort(keys);
+
+        List<Map.Entry<String, byte[]>> entries = new ArrayList<>();
+        for (String key : keys) {
+            byte[] value = get(key);
+            if (value != null) // deleted since listing
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+        }
+        return entries.iterator();
+    }
+
+    /**
+     * @return a copy of all stored pairs in key order
+     */
+    public default Map<String, byte[]> snapshot() throws IOException {
+        Map<String, byte[]> pairs = new TreeMap<>();
+        Iterator<Map.Entry<String, byte[]>> it = range(null, null);
+        while (it.hasNext()) {
+            Map.Entry<String, byte[]> entry = it.next();
+            pairs.put(entry.getKey(), entry.getValue());
+        }
+        return pairs;
+    }
+
+    /**
+     * MD5 tokens of stored keys the engine already knows, e.g. from files it
+     * recovered on startup; keys missing here have to be hashed by the caller.
+     */
+    public default Map<String, BigInteger> knownTokens() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Remove every stored pair
+     */
+    public void clear() throws IOException;
+
+    /**
+     * Force buffered writes to disk
+     */
+    public void sync() throws IOException;
+
+    public void close() throws IOException;
+}
@@ -0,0 +1,190 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import shared.MD5;
+
+/**
+ * Wraps a storage engine with an index of its keys ordered by MD5 token, so
+ * finding the keys of one hash range (e.g. when the ring changes) costs time
+ * proportional to the size of that range instead of hashing every stored key.
+ *
+ * The index is rebuilt with one pass over the keys when the storage is opened,
+ * reusing tokens the engine recovered (see StorageEngine.knownTokens), and kept
+ * up to date on every put and delete, as is the Merkle tree of the pairs.
+ */
+public class TokenIndexedStorage implements StorageEngine {
+    private final StorageEngine engine;
+    private final ConcurrentSkipListMap<BigInteger, Set<String>> tokens = new ConcurrentSkipListMap<>();
+    private final MerkleTree tree = new MerkleTree(this);
+
+    public TokenIndexedStorage(StorageEngine engine) throws IOException {
+        this.engine = engine;
+        Map<String, BigInteger> known = engine.knownTokens();
+        for (String key : engine.keys()) {
+            BigInteger token = known.get(key);
+            index(key, token != null ? token : MD5.getHash(key));
+        }
+    }
+
+    private void index(String key) {
+        index(key, MD5.getHash(key));
+    }
+
+    private void index(String key, BigInteger token) {
+        tokens.computeIfAbsent(token, t -> ConcurrentHashMap.newKeySet()).add(key);
+        tree.invalidate(token);
+    }
+
+    private void unindex(String key) {
+        BigInteger token = MD5.getHash(key);
+        tokens.computeIfPresent(token, (t, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+        tree.invalidate(token);
+    }
+
+    /**
+     * Keys whose token lies in the ring range [start, end]; like
+     * ECSNode.isKeyInRange, the range wraps around when start >= end.
+     */
+    public List<String> keysInRange(BigInteger start, BigInteger end) {
+        List<String> keys = new ArrayList<>();
+        int cmp = start.compareTo(end);
+        if (cmp == 0) {
+            collect(tokens.values(), keys);
+        } else if (cmp > 0) {
+            collect(tokens.tailMap(start, true).values(), keys);
+            collect(tokens.headMap(end, true).values(), keys);
+        } else {
+            collect(tokens.subMap(start, true, end, true).values(), keys);
+        }
+        return keys;
+    }
+
+    private static void collect(Collection<Set<String>> buckets, List<String> keys) {
+        for (Set<String> bucket : buckets)
+            keys.addAll(bucket);
+    }
+
+    /**
+     * Stored pairs whose token lies in the ring range [start, end].
+     */
+    public Map<String, byte[]> pairsInRange(BigInteger start, BigInteger end) throws IOException {
+        Map<String, byte[]> pairs = new LinkedHashMap<>();
+        for (String key : keysInRange(start, end)) {
+            byte[] value = engine.get(key);
+            if (value != null) // deleted since listing
+                pairs.put(key, value);
+        }
+        return pairs;
+    }
+
+    public MerkleTree getMerkleTree() {
+        return tree;
+    }
+
+    public StorageEngine getEngine() {
+        return engine;
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+        return engine.get(key);
+    }
+
+    @Override
+    public void put(String key, byte[] value) throws IOException {
+        engine.put(key, value);
+        index(key);
+    }
+
+    @Override
+    public ValueOutputStream openWrite(final String key) throws IOException {
+        final ValueOutputStream value = engine.openWrite(key);
+        return new ValueOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                value.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                value.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                value.close();
+                index(key);
+            }
+
+            @Override
+            public void abort() throws IOException {
+                value.abort();
+            }
+        };
+    }
+
+    @Override
+    public InputStream openRead(String key) throws IOException {
+        return engine.openRead(key);
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        boolean deleted = engine.delete(key);
+        if (deleted)
+            unindex(key);
+        return deleted;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return engine.contains(key);
+    }
+
+    @Override
+    public List<String> keys() throws IOException {
+        return engine.keys();
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> range(String fromKey, String toKey) throws IOException {
+        return engine.range(fromKey, toKey);
+    }
+
+    @Override
+    public Map<String, byte[]> snapshot() throws IOException {
+        return engine.snapshot();
+    }
+
+    @Override
+    public void clear() throws IOException {
+        engine.clear();
+        tokens.clear();
+        tree.clear();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        engine.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        engine.close();
+    }
+}
@@ -0,0 +1,15 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A value being written to storage piecemeal, see StorageEngine.openWrite.
+ * close() stores it in place of any value stored for the key before and makes
+ * it durable; until then readers see the old value. abort() drops what was
+ * written.
+ */
+public abstract class ValueOutputStream extends OutputStream {
+
+    public abstract void abort() throws IOException;
+}
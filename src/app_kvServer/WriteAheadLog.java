@@ -0,0 +1,331 @@
+package app_kvServer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import app_kvServer.IKVServer.FsyncPolicy;
+import shared.ConsoleColors;
+
+/**
+ * Write-ahead log with group commit.
+ *
+ * Writers append a record and get back its sequence number without doing any
+ * IO. A single writer thread drains everything appended so far into one
+ * gathered write (and, under FsyncPolicy.ALWAYS, one fsync), so concurrent
+ * writers share the cost of the syscalls. awaitDurable blocks until the batch
+ * holding a record has reached the durability the policy promises:
+ *
+ * - ALWAYS: written and fsynced
+ * - INTERVAL: written to the OS; fsynced by a timer every intervalMs
+ * - OS: written to the OS; the OS decides when to flush
+ *
+ * Once the storage engine has synced everything the log covers, checkpoint()
+ * truncates it. Record layout: crc32 (4) | key length (4) | value length (4,
+ * -1 for a delete, -2 for a stored marker) | key | value.
+ *
+ * A stored marker (see appendStored) records that a key's value was written
+ * to storage directly and made durable there, so earlier records of the key
+ * are not replayed over it.
+ */
+public class WriteAheadLog {
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final long DEFAULT_CHECKPOINT_BYTES = 64L * 1024 * 1024; // 64 MB
+
+    private static final int HEADER_SIZE = 4 + 4 + 4;
+    private static final int DELETED = -1;
+    private static final int STORED = -2;
+
+    private final File file;
+    private final FileChannel channel;
+    private final FsyncPolicy policy;
+    private final long checkpointBytes;
+    private final Object io = new Object(); // serializes writes, fsyncs and truncation
+    private final Thread writer;
+    private ScheduledExecutorService syncer = null;
+
+    private List<ByteBuffer> pending = new ArrayList<>();
+    private long appendedSeq = 0;
+    private long writtenSeq = 0;
+    private long durableSeq = 0;
+    private long logBytes = 0;
+    private IOException failure = null;
+    private boolean running = true;
+
+    public WriteAheadLog(String path, FsyncPolicy policy, long intervalMs) throws IOException {
+        this(path, policy, intervalMs, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    public WriteAheadLog(String path, FsyncPolicy policy, long intervalMs, long checkpointBytes) throws IOException {
+        this.file = new File(path);
+        this.policy = policy;
+        this.checkpointBytes = checkpointBytes;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.logBytes = channel.size();
+        channel.position(logBytes);
+
+        this.writer = new Thread(this::writeLoop, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        if (policy == FsyncPolicy.INTERVAL) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "wal-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleWithFixedDelay(this::syncWritten, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Records left over from before a crash, oldest first; a null value is a
+     * delete. Records of a key followed by a stored marker for it are left out.
+     * A torn record at the tail ends the replay.
+     */
+    public List<Map.Entry<String, byte[]>> replay() throws IOException {
+        List<Map.Entry<String, byte[]>> records = new ArrayList<>();
+        Map<String, Integer> stored = new HashMap<>(); // records of each key before its last stored marker
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                try {
+                    int checksum = in.readInt();
+                    int keyLength = in.readInt();
+                    int valueLength = in.readInt();
+                    if (keyLength < 0 || valueLength < STORED)
+                        break;
+                    byte[] key = new byte[keyLength];
+                    in.readFully(key);
+                    byte[] value = valueLength < 0 ? null : new byte[valueLength];
+                    if (value != null)
+                        in.readFully(value);
+
+                    crc.reset();
+                    crc.update(key);
+                    if (value != null)
+                        crc.update(value);
+                    if ((int) crc.getValue() != checksum)
+                        break;
+                    String recordKey = new String(key, StandardCharsets.UTF_8);
+                    if (valueLength == STORED)
+                        stored.put(recordKey, records.size());
+                    else
+                        records.add(new AbstractMap.SimpleImmutableEntry<>(recordKey, value));
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+        if (stored.isEmpty())
+            return records;
+
+        List<Map.Entry<String, byte[]>> replayed = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            Integer storedBefore = stored.get(records.get(i).getKey());
+            if (storedBefore == null || i >= storedBefore)
+                replayed.add(records.get(i));
+        }
+        return replayed;
+    }
+
+    /**
+     * Queue a record for the next batch.
+     * @param value new value, or null for a delete
+     * @return sequence number to pass to awaitDurable
+     */
+    public long append(String key, byte[] value) throws IOException {
+        return append(key, value, value == null ? DELETED : value.length);
+    }
+
+    /**
+     * Queue a stored marker for the key, once the caller has made the key's
+     * current value durable in storage itself.
+     * @return sequence number to pass to awaitDurable
+     */
+    public long appendStored(String key) throws IOException {
+        return append(key, null, STORED);
+    }
+
+    private long append(String key, byte[] value, int valueLength) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        if (value != null)
+            crc.update(value);
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + (value == null ? 0 : value.length));
+        record.putInt((int) crc.getValue());
+        record.putInt(keyBytes.length).putInt(valueLength);
+        record.put(keyBytes);
+        if (value != null)
+            record.put(value);
+        record.flip();
+
+        synchronized (this) {
+            if (failure != null)
+                throw failure;
+            if (!running)
+                throw new IOException("Write-ahead log is closed");
+            pending.add(record);
+            notifyAll();
+            return ++appendedSeq;
+        }
+    }
+
+    /**
+     * Block until the record with the given sequence number is durable under
+     * the configured policy.
+     */
+    public synchronized void awaitDurable(long sequence) throws IOException {
+        while ((policy == FsyncPolicy.ALWAYS ? durableSeq : writtenSeq) < sequence) {
+            if (failure != null)
+                throw failure;
+            if (!running)
+                throw new IOException("Write-ahead log is closed");
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for write-ahead log", e);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<ByteBuffer> batch;
+            long upTo;
+            synchronized (this) {
+                while (pending.isEmpty() && running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // close() clears running
+                    }
+                }
+                if (pending.isEmpty())
+                    return;
+                batch = pending;
+                pending = new ArrayList<>();
+                upTo = appendedSeq;
+            }
+
+            try {
+                long bytes = 0;
+                synchronized (io) {
+                    ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                    for (ByteBuffer buffer : buffers)
+                        bytes += buffer.remaining();
+                    long remaining = bytes;
+                    while (remaining > 0)
+                        remaining -= channel.write(buffers);
+                    if (policy == FsyncPolicy.ALWAYS)
+                        channel.force(false);
+                }
+                synchronized (this) {
+                    logBytes += bytes;
+                    writtenSeq = upTo;
+                    if (policy == FsyncPolicy.ALWAYS)
+                        durableSeq = upTo;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Unable to write to write-ahead log" + ConsoleColors.RESET, e);
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private void syncWritten() {
+        long upTo;
+        synchronized (this) {
+            upTo = writtenSeq;
+        }
+        try {
+            synchronized (io) {
+                channel.force(false);
+            }
+            synchronized (this) {
+                durableSeq = Math.max(durableSeq, upTo);
+            }
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Unable to sync write-ahead log" + ConsoleColors.RESET, e);
+        }
+    }
+
+    public synchronized boolean needsCheckpoint() {
+        return logBytes >= checkpointBytes;
+    }
+
+    /**
+     * Discard the log once the caller has synced every write it covers to
+     * storage. The caller must keep new appends out until this returns.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (this) {
+            while (writtenSeq < appendedSeq && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for write-ahead log", e);
+                }
+            }
+            if (failure != null)
+                throw failure;
+        }
+
+        synchronized (io) {
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(false);
+        }
+        synchronized (this) {
+            logBytes = 0;
+            durableSeq = writtenSeq; // covered by the storage sync
+            notifyAll();
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (syncer != null)
+            syncer.shutdownNow();
+        synchronized (io) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+}
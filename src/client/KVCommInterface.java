@@ -1,5 +1,11 @@
 package client;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 import shared.messages.KVMessage;
 
 public interface KVCommInterface {
@@ -42,4 +48,88 @@ public interface KVCommInterface {
 	 *             KV server).
 	 */
 	public KVMessage get(String key) throws Exception;
+
+	/**
+	 * Inserts a key-value pair whose value is read from a stream and sent in
+	 * chunks, for values of any size. put() sends values over 120 kB this way.
+	 *
+	 * @param key
+	 *            the key that identifies the given value.
+	 * @param value
+	 *            the value that is indexed by the given key, read to its end.
+	 * @return a message that confirms the insertion of the tuple or an error.
+	 * @throws Exception
+	 *             if put command cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public KVMessage putStream(String key, InputStream value) throws Exception;
+
+	/**
+	 * Retrieves the value for a given key in chunks, written to a stream as
+	 * they arrive rather than returned, for values of any size.
+	 *
+	 * @param key
+	 *            the key that identifies the value.
+	 * @param value
+	 *            the stream the value is written to.
+	 * @return a message with the status of the request and no value.
+	 * @throws Exception
+	 *             if get command cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public KVMessage getStream(String key, OutputStream value) throws Exception;
+
+	/**
+	 * Inserts a key-value pair into the KVServer without waiting for the
+	 * reply. Requests to the same server share one connection.
+	 *
+	 * @param key
+	 *            the key that identifies the given value.
+	 * @param value
+	 *            the value that is indexed by the given key.
+	 * @return a future of the message that confirms the insertion of the
+	 *         tuple or an error, completed exceptionally if the request could
+	 *         not be sent or the connection closed before the reply.
+	 */
+	public CompletableFuture<KVMessage> putAsync(String key, String value);
+
+	/**
+	 * Retrieves the value for a given key from the KVServer without waiting
+	 * for the reply. Requests to the same server share one connection.
+	 *
+	 * @param key
+	 *            the key that identifies the value.
+	 * @return a future of the value, which is indexed by the given key,
+	 *         completed exceptionally if the request could not be sent or the
+	 *         connection closed before the reply.
+	 */
+	public CompletableFuture<KVMessage> getAsync(String key);
+
+	/**
+	 * Inserts several key-value pairs, with one request to each KVServer
+	 * responsible for some of the keys.
+	 *
+	 * @param pairs
+	 *            the key-value pairs; a value of "null" deletes the key.
+	 * @return a message per key that confirms the insertion of the tuple or
+	 *         an error, in the order of the given pairs.
+	 * @throws Exception
+	 *             if the batch cannot be sent (e.g. not connected to any KV
+	 *             server).
+	 */
+	public Map<String, KVMessage> mput(Map<String, String> pairs) throws Exception;
+
+	/**
+	 * Retrieves the values for several keys, with one request to each
+	 * KVServer responsible for some of the keys.
+	 *
+	 * @param keys
+	 *            the keys that identify the values.
+	 * @return a message per key with its value or an error, in the order of
+	 *         the given keys.
+	 * @throws Exception
+	 *             if the batch cannot be sent (e.g. not connected to any KV
+	 *             server).
+	 */
+	public Map<String, KVMessage> mget(Collection<String> keys) throws Exception;
 }
@@ -1,14 +1,26 @@
 package client;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import org.apache.log4j.Logger; // import Logger
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import shared.messages.Batch;
 import shared.messages.BasicKVMessage;
 import shared.messages.KVMessage;
 import shared.messages.KVMessage.StatusType;
@@ -28,8 +40,10 @@ public class KVStore implements KVCommInterface {
     private ObjectMapper om = new ObjectMapper();
     private String serverAddress;
     private int serverPort;
-    private CommunicationService communicationService;
-    private ECSHashRing metaData;
+    private final Map<String, CommunicationService> connections = new HashMap<>(); // one per node, by "host:port"
+    private boolean connected = false; // between connect() and disconnect()
+    private volatile ECSHashRing metaData;
+    private final Map<String, PipelinedConnection> asyncConnections = new ConcurrentHashMap<>();
 
     private static final int MAX_KEY_BYTES = 20;
     private static final int MAX_VALUE_BYTES = 120 * 1024; // 120 kB
@@ -47,22 +61,132 @@ public class KVStore implements KVCommInterface {
     
     @Override
     public void connect() throws Exception {
-        this.communicationService = new CommunicationService("KVStore", this.serverAddress, this.serverPort);
-        this.communicationService.connect();
+        openConnection(this.serverAddress, this.serverPort);
+        this.connected = true;
     }
 
     @Override
     public void disconnect() {
-        this.communicationService.disconnect();
+        this.connected = false;
+        for (CommunicationService connection : this.connections.values())
+            connection.disconnect();
+        this.connections.clear();
+        for (PipelinedConnection connection : this.asyncConnections.values())
+            connection.close();
+        this.asyncConnections.clear();
     }
 
+    /**
+     * Make the given server the one requests without a key, and reads its
+     * metadata does not rule out, are sent to. Connections to other servers
+     * are kept open; the one to the given server is opened afresh.
+     */
     public void reconnect(String server, int port) throws Exception {
-        disconnect();
+        CommunicationService stale = this.connections.remove(server + ":" + port);
+        if (stale != null)
+            stale.disconnect();
         this.serverAddress = server;
         this.serverPort = port;
         connect();
     }
 
+    private CommunicationService openConnection(String address, int port) throws IOException {
+        CommunicationService connection = new CommunicationService("KVStore", address, port);
+        connection.connect();
+        this.connections.put(address + ":" + port, connection);
+        return connection;
+    }
+
+    /*
+     * Send a request over the persistent connection to a node, opening it on
+     * first use. A connection that fails is opened again once, since the node
+     * may have closed it while idle.
+     */
+    private BasicKVMessage request(String address, int port, BasicKVMessage message) throws IOException {
+        if (!this.connected)
+            throw new IOException(ConsoleColors.RED_UNDERLINED + "Not connected to a server" + ConsoleColors.RESET);
+
+        CommunicationService connection = this.connections.get(address + ":" + port);
+        if (connection != null) {
+            try {
+                return connection.request(message);
+            } catch (IOException e) {
+                connection.disconnect();
+                this.connections.remove(address + ":" + port);
+            }
+        }
+
+        return openConnection(address, port).request(message);
+    }
+
+    /*
+     * Send a request to a node the metadata names, or to the connected server
+     * if null. A node that cannot be reached means the metadata is stale, so
+     * it is dropped and the connected server asked instead; it redirects with
+     * fresh metadata if it is not responsible either.
+     */
+    private BasicKVMessage request(ECSNode node, BasicKVMessage message) throws IOException {
+        if (node != null && !isConnectedServer(node)) {
+            try {
+                return request(node.getNodeHost(), node.getNodePort(), message);
+            } catch (IOException e) {
+                logger.warn(ConsoleColors.YELLOW + "Unable to reach " + node.getNodeName() + ", asking the connected server" + ConsoleColors.RESET);
+                this.metaData = null;
+            }
+        }
+        return request(this.serverAddress, this.serverPort, message);
+    }
+
+    /*
+     * The persistent connection to a node the metadata names, or to the
+     * connected server if null or unreachable, as for request(node, message)
+     */
+    private CommunicationService connection(ECSNode node) throws IOException {
+        if (!this.connected)
+            throw new IOException(ConsoleColors.RED_UNDERLINED + "Not connected to a server" + ConsoleColors.RESET);
+
+        if (node != null && !isConnectedServer(node)) {
+            CommunicationService connection = this.connections.get(node.getNodeHost() + ":" + node.getNodePort());
+            if (connection != null)
+                return connection;
+            try {
+                return openConnection(node.getNodeHost(), node.getNodePort());
+            } catch (IOException e) {
+                logger.warn(ConsoleColors.YELLOW + "Unable to reach " + node.getNodeName() + ", asking the connected server" + ConsoleColors.RESET);
+                this.metaData = null;
+            }
+        }
+
+        CommunicationService connection = this.connections.get(this.serverAddress + ":" + this.serverPort);
+        return connection != null ? connection : openConnection(this.serverAddress, this.serverPort);
+    }
+
+    /*
+     * The node to send a request to according to the cached metadata, or null
+     * for the connected server: the key's coordinator, except that reads stay
+     * on the connected server while it is one of the key's replicas.
+     */
+    private ECSNode route(BasicKVMessage message) {
+        ECSHashRing ring = this.metaData;
+        if (ring == null || message.getKey() == null)
+            return null;
+
+        ECSNode coordinator = ring.getNodeForKey(message.getKey());
+        if (coordinator == null)
+            return null;
+        if (message.getStatus() == StatusType.GET || message.getStatus() == StatusType.GET_STREAM
+                || message.getStatus() == StatusType.SQLSELECT) {
+            for (ECSNode replica : ring.getReplicaNodes(coordinator))
+                if (isConnectedServer(replica))
+                    return null;
+        }
+        return coordinator;
+    }
+
+    private boolean isConnectedServer(ECSNode node) {
+        return node.getNodeHost().equals(this.serverAddress) && node.getNodePort() == this.serverPort;
+    }
+
     private void updateMetadata(BasicKVMessage message) {
         try {
             this.metaData = this.om.readValue(message.getKey(), ECSHashRing.class);
@@ -95,15 +219,11 @@ public class KVStore implements KVCommInterface {
         int retryCount = 0;
 
         do {
-            this.communicationService.sendMessage(message);
-            response = this.communicationService.receiveMessage();
+            response = request(route(message), message);
 
             if (response.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE){
                 System.out.println("[KVStore]: SERVER_NOT_RESPONSIBLE");
-                updateMetadata(response);
-                ECSNode tryServer = this.metaData.getNodeForKey(message.getKey());
-                System.out.println(ConsoleColors.GREEN_UNDERLINED + "[KVStore] :: Reconnecting to server" + ConsoleColors.RESET);
-                reconnect(tryServer.getNodeHost(), tryServer.getNodePort());
+                updateMetadata(response); // the next attempt is routed with it
                 retryCount++;
             } else {
                 // Request sent to correct server
@@ -116,6 +236,9 @@ public class KVStore implements KVCommInterface {
 
     @Override
     public BasicKVMessage put(String key, String value) throws Exception {
+        if (value != null && value.length() > MAX_VALUE_BYTES && this.validateKeyValuePair(key, null) == null) // too large for one message
+            return this.putStream(key, new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8)));
+
         BasicKVMessage invalidParametersError = this.validateKeyValuePair(key, value);
         if (invalidParametersError != null)
             return invalidParametersError;
@@ -136,6 +259,180 @@ public class KVStore implements KVCommInterface {
         return this.sendMessageToServer(message);
     }
 
+    @Override
+    public BasicKVMessage putStream(String key, InputStream value) throws Exception {
+        BasicKVMessage invalidParametersError = this.validateKeyValuePair(key, null);
+        if (invalidParametersError != null)
+            return invalidParametersError;
+
+        // a redirect comes before more than the first chunk is read, so it can be sent again
+        InputStream chunks = value.markSupported() ? value : new BufferedInputStream(value, CommunicationService.CHUNK_SIZE);
+        BasicKVMessage message = new BasicKVMessage(StatusType.PUT, key, null); // to route by
+        BasicKVMessage response;
+        int retryCount = 0;
+        do {
+            chunks.mark(CommunicationService.CHUNK_SIZE);
+            response = connection(route(message)).sendChunked(StatusType.PUT_STREAM, StatusType.PUT_STREAM_END, key, chunks);
+            if (response.getStatus() != StatusType.SERVER_NOT_RESPONSIBLE)
+                break;
+            updateMetadata(response);
+            chunks.reset();
+        } while (++retryCount <= this.maxRetries);
+
+        return response;
+    }
+
+    @Override
+    public BasicKVMessage getStream(String key, OutputStream value) throws Exception {
+        BasicKVMessage invalidParametersError = this.validateKeyValuePair(key, null);
+        if (invalidParametersError != null)
+            return invalidParametersError;
+
+        BasicKVMessage message = new BasicKVMessage(StatusType.GET_STREAM, key, null);
+        BasicKVMessage response;
+        int retryCount = 0;
+        do {
+            response = connection(route(message)).requestChunked(message, StatusType.GET_STREAM, StatusType.GET_SUCCESS, value);
+            if (response.getStatus() != StatusType.SERVER_NOT_RESPONSIBLE)
+                break;
+            updateMetadata(response);
+        } while (++retryCount <= this.maxRetries);
+
+        return new BasicKVMessage(response.getStatus(), response.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE ? response.getKey() : key, null);
+    }
+
+    @Override
+    public CompletableFuture<KVMessage> putAsync(String key, String value) {
+        BasicKVMessage invalidParametersError = this.validateKeyValuePair(key, value);
+        if (invalidParametersError != null)
+            return CompletableFuture.completedFuture(invalidParametersError);
+
+        return this.sendAsync(StatusType.PUT, key, value, 0);
+    }
+
+    @Override
+    public CompletableFuture<KVMessage> getAsync(String key) {
+        BasicKVMessage invalidParametersError = this.validateKeyValuePair(key, null);
+        if (invalidParametersError != null)
+            return CompletableFuture.completedFuture(invalidParametersError);
+
+        return this.sendAsync(StatusType.GET, key, null, 0);
+    }
+
+    /*
+     * Send a request over the shared connection to the node responsible for
+     * the key. A SERVER_NOT_RESPONSIBLE reply updates the metadata and sends
+     * the request again, off the connection's reader thread, which must never
+     * block waiting for room in a window it frees itself.
+     */
+    private CompletableFuture<KVMessage> sendAsync(StatusType status, String key, String value, int retryCount) {
+        CompletableFuture<BasicKVMessage> reply;
+        try {
+            ECSNode node = this.metaData == null ? null : this.metaData.getNodeForKey(key);
+            PipelinedConnection connection = node == null
+                    ? asyncConnection(this.serverAddress, this.serverPort)
+                    : asyncConnection(node.getNodeHost(), node.getNodePort());
+            reply = connection.send(new BasicKVMessage(status, key, value));
+        } catch (IOException | InterruptedException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return reply.thenComposeAsync(response -> {
+            if (response.getStatus() != StatusType.SERVER_NOT_RESPONSIBLE || retryCount >= this.maxRetries)
+                return CompletableFuture.completedFuture(response);
+            if (response.getKey() != null)
+                updateMetadata(response);
+            return sendAsync(status, key, value, retryCount + 1);
+        });
+    }
+
+    /*
+     * The connection shared by every asynchronous request to a node, opened
+     * on first use and again if the node closed it
+     */
+    private PipelinedConnection asyncConnection(String address, int port) throws IOException {
+        String node = address + ":" + port;
+        PipelinedConnection connection = this.asyncConnections.get(node);
+        if (connection != null && connection.isOpen())
+            return connection;
+
+        synchronized (this.asyncConnections) {
+            connection = this.asyncConnections.get(node);
+            if (connection == null || !connection.isOpen()) {
+                connection = new PipelinedConnection(address, port);
+                this.asyncConnections.put(node, connection);
+            }
+            return connection;
+        }
+    }
+
+    @Override
+    public Map<String, KVMessage> mput(Map<String, String> pairs) throws Exception {
+        Map<String, KVMessage> results = new LinkedHashMap<>();
+        Map<String, String> valid = new LinkedHashMap<>();
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            BasicKVMessage invalidParametersError = this.validateKeyValuePair(pair.getKey(), pair.getValue());
+            results.put(pair.getKey(), invalidParametersError); // null until sent, keeps the order
+            if (invalidParametersError == null)
+                valid.put(pair.getKey(), pair.getValue());
+        }
+        return sendBatch(StatusType.MPUT, valid, results);
+    }
+
+    @Override
+    public Map<String, KVMessage> mget(Collection<String> keys) throws Exception {
+        Map<String, KVMessage> results = new LinkedHashMap<>();
+        Map<String, String> valid = new LinkedHashMap<>();
+        for (String key : keys) {
+            BasicKVMessage invalidParametersError = this.validateKeyValuePair(key, null);
+            results.put(key, invalidParametersError);
+            if (invalidParametersError == null)
+                valid.put(key, null);
+        }
+        return sendBatch(StatusType.MGET, valid, results);
+    }
+
+    /*
+     * Split a batch by the node the metadata says is responsible for each key
+     * (all to the connected server while there is none), send one message per
+     * node and merge the per-key results. Keys a server turns away are
+     * regrouped with the metadata its reply carries and sent again.
+     */
+    private Map<String, KVMessage> sendBatch(StatusType status, Map<String, String> pairs, Map<String, KVMessage> results) throws Exception {
+        Map<String, String> remaining = pairs;
+        for (int retryCount = 0; !remaining.isEmpty() && retryCount <= this.maxRetries; retryCount++) {
+            Map<String, Map<String, String>> groups = new LinkedHashMap<>();
+            Map<String, ECSNode> nodes = new HashMap<>();
+            for (Map.Entry<String, String> pair : remaining.entrySet()) {
+                ECSNode node = this.metaData == null ? null : this.metaData.getNodeForKey(pair.getKey());
+                String address = node == null ? this.serverAddress + ":" + this.serverPort : node.getNodeHost() + ":" + node.getNodePort();
+                groups.computeIfAbsent(address, a -> new LinkedHashMap<>()).put(pair.getKey(), pair.getValue());
+                nodes.put(address, node);
+            }
+
+            remaining = new LinkedHashMap<>();
+            for (Map.Entry<String, Map<String, String>> group : groups.entrySet()) {
+                Map<String, String> batch = group.getValue();
+                String payload = status == StatusType.MPUT ? Batch.encodePairs(batch) : Batch.encodeKeys(batch.keySet());
+                BasicKVMessage response = request(nodes.get(group.getKey()), new BasicKVMessage(status, null, payload));
+                if (response.getStatus() != StatusType.MPUT_SUCCESS && response.getStatus() != StatusType.MGET_SUCCESS) {
+                    for (String key : batch.keySet()) // the whole batch failed, e.g. the server is stopped
+                        results.put(key, new BasicKVMessage(response.getStatus(), key, null));
+                    continue;
+                }
+
+                if (response.getKey() != null)
+                    updateMetadata(response);
+                for (Map.Entry<String, BasicKVMessage> result : Batch.decodeResults(response.getValue()).entrySet()) {
+                    results.put(result.getKey(), result.getValue());
+                    if (result.getValue().getStatus() == StatusType.SERVER_NOT_RESPONSIBLE)
+                        remaining.put(result.getKey(), batch.get(result.getKey()));
+                }
+            }
+        }
+        return results;
+    }
+
     public BasicKVMessage getAllKeys() throws Exception {
         BasicKVMessage message = new BasicKVMessage(StatusType.GET_ALL_KEYS, null, null);
         return this.sendMessageToServer(message);
@@ -143,27 +440,24 @@ public class KVStore implements KVCommInterface {
 
     public BasicKVMessage keyrange() throws Exception {
         BasicKVMessage message = new BasicKVMessage(StatusType.KEYRANGE, null, null);
-        if(this.metaData != null){
-            ECSNode server = this.metaData.getFirstNode();
-            reconnect(server.getNodeHost(), server.getNodePort());
-        }
-
-        this.communicationService.sendMessage(message);
-        return this.communicationService.receiveMessage();
+        return request(this.metaData == null ? null : this.metaData.getFirstNode(), message);
     }
 
     public BasicKVMessage keyrangeRead() throws Exception {
         BasicKVMessage message = new BasicKVMessage(StatusType.KEYRANGE_READ, null, null);
-        if(this.metaData != null){
-            ECSNode server = this.metaData.getFirstNode();
-            reconnect(server.getNodeHost(), server.getNodePort());
-        }
+        return request(this.metaData == null ? null : this.metaData.getFirstNode(), message);
+    }
 
-        this.communicationService.sendMessage(message);
-        return this.communicationService.receiveMessage();
+    /**
+     * Open a pipeline to the server this store is connected to, on a
+     * connection of its own, for sending many requests without waiting for
+     * each reply. Close it when done.
+     */
+    public Pipeline pipeline() throws Exception {
+        return new Pipeline(this, new PipelinedConnection(this.serverAddress, this.serverPort));
     }
 
-    private BasicKVMessage validateKeyValuePair(String key, String value) {
+    BasicKVMessage validateKeyValuePair(String key, String value) {
         if (key.length() > MAX_KEY_BYTES || key.isEmpty())
             return new BasicKVMessage(StatusType.INVALID_KEY, "Key must be non-empty and less than or equal to 20 bytes",
                     null);
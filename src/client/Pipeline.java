@@ -0,0 +1,87 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import shared.messages.BasicKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * Batches requests to the server a KVStore is connected to without waiting
+ * for each reply: put() and get() send at once over a PipelinedConnection, and
+ * sync() waits for everything sent so far and returns the replies in the
+ * order the requests were made. Requests the server was not responsible for
+ * are retried through the KVStore, which follows the redirect.
+ *
+ * The server applies a client's requests for the same key in the order they
+ * were sent, so a put followed by a get of the same key reads the put.
+ */
+public class Pipeline implements AutoCloseable {
+    private final KVStore kvStore;
+    private final PipelinedConnection connection;
+    private final List<BasicKVMessage> requests = new ArrayList<>();
+    private final List<CompletableFuture<BasicKVMessage>> replies = new ArrayList<>();
+
+    Pipeline(KVStore kvStore, PipelinedConnection connection) {
+        this.kvStore = kvStore;
+        this.connection = connection;
+    }
+
+    public void put(String key, String value) throws Exception {
+        send(new BasicKVMessage(StatusType.PUT, key, value), kvStore.validateKeyValuePair(key, value));
+    }
+
+    public void get(String key) throws Exception {
+        send(new BasicKVMessage(StatusType.GET, key, null), kvStore.validateKeyValuePair(key, null));
+    }
+
+    private void send(BasicKVMessage request, BasicKVMessage invalidParametersError) throws Exception {
+        requests.add(request);
+        if (invalidParametersError != null)
+            replies.add(CompletableFuture.completedFuture(invalidParametersError));
+        else
+            replies.add(connection.send(request));
+    }
+
+    /**
+     * @return number of requests sent since the last sync()
+     */
+    public int size() {
+        return requests.size();
+    }
+
+    /**
+     * Wait for the replies to every request sent since the last sync().
+     *
+     * @return the replies, in request order
+     */
+    public List<KVMessage> sync() throws Exception {
+        List<KVMessage> results = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            BasicKVMessage reply;
+            try {
+                reply = replies.get(i).get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            if (reply.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
+                BasicKVMessage request = requests.get(i);
+                reply = request.getStatus() == StatusType.PUT
+                        ? kvStore.put(request.getKey(), request.getValue())
+                        : kvStore.get(request.getKey());
+            }
+            results.add(reply);
+        }
+        requests.clear();
+        replies.clear();
+        return results;
+    }
+
+    @Override
+    public void close() {
+        connection.close();
+    }
+}
@@ -0,0 +1,135 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import shared.ConsoleColors;
+import shared.messages.BasicKVMessage;
+import shared.messages.MessageService;
+
+/**
+ * A connection to one server with many requests in flight. Each request is
+ * sent with a fresh request ID and a reader thread completes the request's
+ * future when the reply with that ID comes back, so the server may answer in
+ * any order. At most window requests are outstanding; send() waits for one
+ * to complete when the window is full.
+ */
+public class PipelinedConnection {
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final int DEFAULT_WINDOW = 1024;
+
+    private final Socket socket;
+    private final InputStream input;
+    private final MessageService messageService = new MessageService();
+    private final Map<Integer, CompletableFuture<BasicKVMessage>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Semaphore window;
+    private volatile IOException closed = null; // why the connection ended, once it has
+
+    public PipelinedConnection(String address, int port) throws IOException {
+        this(address, port, DEFAULT_WINDOW);
+    }
+
+    public PipelinedConnection(String address, int port, int window) throws IOException {
+        this.socket = new Socket(address, port);
+        this.socket.setTcpNoDelay(true);
+        this.input = new BufferedInputStream(socket.getInputStream());
+        this.window = new Semaphore(window);
+
+        Thread reader = new Thread(this::readReplies, "pipeline-reader-" + address + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Send a request without waiting for its reply. The message's request ID
+     * is overwritten.
+     *
+     * @return the reply, completed exceptionally if the connection closes first
+     */
+    public CompletableFuture<BasicKVMessage> send(BasicKVMessage msg) throws IOException, InterruptedException {
+        window.acquire();
+        int id;
+        do {
+            id = nextId.incrementAndGet();
+        } while (id == 0); // 0 means not pipelined
+        msg.setRequestId(id);
+        msg.setBinaryProtocol(true);
+
+        CompletableFuture<BasicKVMessage> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        try {
+            if (closed != null)
+                throw closed;
+            synchronized (socket) {
+                messageService.sendBasicKVMessage(socket, msg);
+            }
+        } catch (IOException e) {
+            if (pending.remove(id) != null)
+                window.release();
+            throw e;
+        }
+        return reply;
+    }
+
+    public int getInFlight() {
+        return pending.size();
+    }
+
+    public boolean isOpen() {
+        return closed == null;
+    }
+
+    private void readReplies() {
+        IOException cause;
+        try {
+            while (true) {
+                BasicKVMessage reply = messageService.receiveBasicKVMessage(input);
+                CompletableFuture<BasicKVMessage> future = pending.remove(reply.getRequestId());
+                if (future == null) {
+                    logger.warn(ConsoleColors.YELLOW + "Reply to unknown request " + reply.getRequestId() + ConsoleColors.RESET);
+                    continue;
+                }
+                window.release();
+                future.complete(reply);
+            }
+        } catch (IOException e) {
+            cause = e;
+        }
+        fail(cause);
+    }
+
+    private void fail(IOException cause) {
+        if (closed == null)
+            closed = cause;
+        for (Integer id : pending.keySet()) {
+            CompletableFuture<BasicKVMessage> future = pending.remove(id);
+            if (future != null) {
+                window.release();
+                future.completeExceptionally(closed);
+            }
+        }
+    }
+
+    /**
+     * Close the connection; requests still in flight fail.
+     */
+    public void close() {
+        fail(new IOException("Connection closed"));
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Error when closing pipelined connection" + ConsoleColors.RESET, e);
+        }
+    }
+}
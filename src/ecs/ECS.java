@@ -20,6 +20,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import shared.ConsoleColors;
+import shared.Threads;
 
 /* 
     ECSClient should initialize ECS. 
@@ -44,6 +45,7 @@ public class ECS {
 
     public ECSHashRing hashRing;
     public boolean testing = false;
+    private boolean virtualThreads = false; // serve KVServer connections on virtual threads
 
     /*
      * Integrity Constraint:
@@ -80,12 +82,12 @@ public class ECS {
     }
 
     public ECS(Logger logger) throws Exception{
+        this.hashRing = new ECSHashRing();
         this.init_config("./ecs_config.json");
 
         this.address = DEFAULT_ECS_ADDR;
         this.port = DEFAULT_ECS_PORT;
         this.logger = logger;
-        this.hashRing = new ECSHashRing();
 
         logger.info(ConsoleColors.PURPLE_BOLD_UNDERLINED + "ECS initialized at " + this.address + ":" + this.port + ConsoleColors.RESET);
     }
@@ -95,6 +97,7 @@ public class ECS {
         try {
             tokener = new JSONTokener(new FileInputStream("./ecs_config.json"));
             this.config = new JSONObject(tokener);
+            this.setReplicas(this.config.optInt("replicas", ECSHashRing.DEFAULT_REPLICAS));
             this.address = this.config.getJSONObject("ecs").getString("address");
             this.port = this.config.getJSONObject("ecs").getInt("port");
             JSONArray portsArray = this.config.getJSONArray("ports");
@@ -137,6 +140,24 @@ public class ECS {
         this.testing = testing;
     }
 
+    public void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !Threads.hasVirtualThreads()) {
+            logger.warn(ConsoleColors.RED_UNDERLINED + "Virtual threads need Java 21, using platform threads" + ConsoleColors.RESET);
+            virtualThreads = false;
+        }
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Set how many successors of each server hold replicas of its keys; sent
+     * to the servers with the hash ring.
+     */
+    public void setReplicas(int replicas) {
+        if (replicas < 0)
+            throw new IllegalArgumentException("replicas must not be negative.");
+        this.hashRing.setReplicas(replicas);
+    }
+
 
     public void _acceptServetConnections() {
         if (ecsSocket == null) return;
@@ -149,7 +170,7 @@ public class ECS {
                 outputStream.flush();
                 ServerConnection connection = new ServerConnection(this, kvServerSocket, outputStream);
                 connections.add(connection);
-                new Thread(connection).start();
+                Threads.start(connection, virtualThreads);
             } catch (SocketException se) {
                 if (ecsSocket.isClosed()) {
                     logger.info(ConsoleColors.PURPLE_BOLD_UNDERLINED + "ServerSocket is closed." + ConsoleColors.RESET);
@@ -2,13 +2,18 @@ package ecs;
 
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.Map;
 
 import shared.MD5;
 
 public class ECSHashRing implements Serializable {
+    public static final int DEFAULT_REPLICAS = 2;
+
     private TreeMap<BigInteger, ECSNode> hashring;
+    private int replicas = DEFAULT_REPLICAS; // copies of each key besides its coordinator's, set by the ECS
 
     public ECSHashRing() {
         this.hashring = new TreeMap<BigInteger, ECSNode>();
@@ -133,6 +138,51 @@ public class ECSHashRing implements Serializable {
         return this.hashring.size();
     }
 
+    public int getReplicas() {
+        return this.replicas;
+    }
+
+    public void setReplicas(int replicas) {
+        this.replicas = replicas;
+    }
+
+    /**
+     * The nodes after the given one holding replicas of its keys, nearest
+     * first; fewer than getReplicas() if the ring is smaller.
+     */
+    public List<ECSNode> getReplicaNodes(ECSNode node){
+        return this.walk(node, this.replicas, true);
+    }
+
+    /**
+     * The nodes before the given one whose keys it holds replicas of,
+     * nearest first.
+     */
+    public List<ECSNode> getReplicatedNodes(ECSNode node){
+        return this.walk(node, this.replicas, false);
+    }
+
+    /*
+     * Up to count other nodes following (or preceding) the given one
+     */
+    private List<ECSNode> walk(ECSNode node, int count, boolean forward){
+        List<ECSNode> result = new ArrayList<>();
+        BigInteger identifier = node.getNodeIdentifier();
+        BigInteger current = identifier;
+        while (result.size() < count){
+            ECSNode next = forward ? this.getNodeSuccessor(current) : this.getNodePredecessor(current);
+            if (next == null || next.getNodeIdentifier().equals(identifier))
+                break; // wrapped around
+            result.add(next);
+            current = next.getNodeIdentifier();
+        }
+        return result;
+    }
+
+    /**
+     * The next two nodes, e.g. the replicas with the default of two; see
+     * getReplicaNodes for the configured number.
+     */
     public ECSNode[] getNextTwoNodeSuccessors(ECSNode node){
         ECSNode[] result = new ECSNode[]{null, null};
         BigInteger identifier = node.getNodeIdentifier();
@@ -151,6 +201,10 @@ public class ECSHashRing implements Serializable {
         return result;
     }
 
+    /**
+     * The previous two nodes; see getReplicatedNodes for those whose keys a
+     * node replicates.
+     */
     public ECSNode[] getPrevTwoPredecessors(ECSNode node){
         ECSNode[] result = new ECSNode[]{null, null};
         BigInteger identifier = node.getNodeIdentifier();
@@ -172,8 +226,8 @@ public class ECSHashRing implements Serializable {
     public String keyrangeRead(){
         StringBuilder sb = new StringBuilder();
         for (ECSNode node: this.hashring.values()){
-            ECSNode[] predecessors = this.getPrevTwoPredecessors(node);
-            sb.append(node.keyrangeRead(predecessors[0], predecessors[1]) + ";");
+            List<ECSNode> replicated = this.getReplicatedNodes(node);
+            sb.append(node.keyrangeRead(replicated.isEmpty() ? null : replicated.get(replicated.size() - 1)) + ";");
         }
 
         return sb.toString();
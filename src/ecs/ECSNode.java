@@ -216,17 +216,17 @@ public class ECSNode implements IECSNode, Serializable {
         return this.hashStartRange.toString(16) + "," + this.hashEndRange.toString(16) + "," + this.host + ":" + this.port;
     }
 
-    public String keyrangeRead(ECSNode firstReplica, ECSNode secondReplica) {
+    /**
+     * @param furthestReplicated the furthest predecessor whose keys this node
+     *                           replicates, or null if it replicates none
+     */
+    public String keyrangeRead(ECSNode furthestReplicated) {
         BigInteger hashStart = this.hashEndRange;
-        if (firstReplica != null) {
-            System.out.println("Updating end range to (first)" + firstReplica.getNodeHashEndRange().toString(16) + ",");
-            hashStart = firstReplica.getNodeHashStartRange();
+        if (furthestReplicated != null) {
+            System.out.println("Updating end range to " + furthestReplicated.getNodeHashEndRange().toString(16) + ",");
+            hashStart = furthestReplicated.getNodeHashStartRange();
         }
-        if (secondReplica != null) {
-            System.out.println("Updating end range to (second)" + secondReplica.getNodeHashEndRange().toString(16) + ",");
-            hashStart = secondReplica.getNodeHashStartRange();
-        }
-        
+
         return hashStart.toString(16) + "," + this.hashEndRange.toString(16) + "," + this.host + ":" + this.port;
     }
 }
@@ -0,0 +1,59 @@
+package shared;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded free list of equal-sized ByteBuffers, so paths that need a
+ * buffer per message reuse a few instead of allocating one each time. Asking
+ * for more than the pool's buffer size gets a one-off buffer, which release()
+ * drops, as it does any buffer the pool did not hand out.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param bufferSize capacity of the pooled buffers
+     * @param maxPooled most buffers kept for reuse
+     * @param direct whether to pool direct buffers, for channel IO
+     */
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    /**
+     * @return a cleared buffer of at least the given size
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > bufferSize)
+            return allocate(size);
+        ByteBuffer buffer = free.poll();
+        if (buffer == null)
+            return allocate(bufferSize);
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || buffer.isDirect() != direct || buffer.isReadOnly())
+            return;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.add(buffer);
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+}
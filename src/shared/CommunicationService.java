@@ -1,8 +1,12 @@
 package shared;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.locks.ReentrantLock;
 import shared.messages.BasicKVMessage;
 import shared.messages.KVMessage;
 import shared.messages.KVMessage.StatusType;
@@ -16,8 +20,15 @@ public class CommunicationService {
   private int port;
   private String address;
   private Socket socket;
+  private InputStream input; // buffered, so text messages are not read a byte per syscall
   private String origin;
   private MessageService messageService = new MessageService();
+  // held while a thread writes a message, or holds the connection for a
+  // request; a lock rather than synchronized, so a virtual thread waiting on
+  // the socket does not pin its carrier
+  private final ReentrantLock lock = new ReentrantLock();
+
+  public static final int CHUNK_SIZE = 64 * 1024; // value bytes per frame in chunked transfers
 
   public CommunicationService(String origin, String address, int port) {
     this.address = address;
@@ -37,6 +48,7 @@ public class CommunicationService {
 
     try {
       socket = new Socket(address, port);
+      input = null;
       System.out.println(generateLogMessage(ConsoleColors.GREEN_UNDERLINED + "Connected to server: " + address + ":" + port + ConsoleColors.RESET));
     } catch (UnknownHostException e) {
       System.out.println(generateLogMessage(ConsoleColors.RED_UNDERLINED + "Unknown host: " + address));
@@ -60,13 +72,22 @@ public class CommunicationService {
     }
   }
 
+  /**
+   * Send a message; under the connection's lock, so threads answering
+   * pipelined requests on one connection write whole messages.
+   */
   public void sendMessage(BasicKVMessage msg) throws IOException {
     if (socket == null || socket.isClosed()) {
       logger.error(generateLogMessage(ConsoleColors.RED_UNDERLINED + "Socket is not connected"));
       throw new IOException(generateLogMessage(ConsoleColors.RED_UNDERLINED + "Socket is not connected"));
     }
 
-    messageService.sendBasicKVMessage(socket, msg);
+    lock.lock();
+    try {
+      messageService.sendBasicKVMessage(socket, msg);
+    } finally {
+      lock.unlock();
+    }
   }
 
   public BasicKVMessage receiveMessage() throws IOException {
@@ -75,7 +96,95 @@ public class CommunicationService {
       throw new IOException(generateLogMessage(ConsoleColors.RED_UNDERLINED + "Socket is not connected"));
     }
 
-    return messageService.receiveBasicKVMessage(socket);
+    if (input == null)
+      input = new BufferedInputStream(socket.getInputStream());
+    return messageService.receiveBasicKVMessage(input);
+  }
+
+  /**
+   * Send a message and wait for its reply, keeping other threads sharing the
+   * connection from interleaving theirs.
+   */
+  public BasicKVMessage request(BasicKVMessage msg) throws IOException {
+    lock.lock();
+    try {
+      sendMessage(msg);
+      return receiveMessage();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Send a value of any length in binary chunks of CHUNK_SIZE bytes: the
+   * first as a request whose reply, chunkStatus, says to go on, the ones in
+   * between without replies, and a last, shorter (possibly empty) one with
+   * endStatus. The connection is held for the whole value, so other threads'
+   * messages do not land between its chunks.
+   *
+   * @return the reply to the last chunk, or to the first if it was not
+   *         chunkStatus (e.g. SERVER_NOT_RESPONSIBLE); then no more than
+   *         CHUNK_SIZE bytes were read from the value
+   */
+  public BasicKVMessage sendChunked(StatusType chunkStatus, StatusType endStatus, String key,
+      InputStream value) throws IOException {
+    byte[] chunk = new byte[CHUNK_SIZE];
+    lock.lock();
+    try {
+      int length = readChunk(value, chunk);
+      BasicKVMessage reply = request(new BasicKVMessage(chunkStatus, key, chunk, 0, length));
+      if (reply.getStatus() != chunkStatus)
+        return reply;
+
+      while (true) {
+        length = readChunk(value, chunk);
+        if (length < CHUNK_SIZE)
+          return request(new BasicKVMessage(endStatus, key, chunk, 0, length));
+        sendMessage(new BasicKVMessage(chunkStatus, key, chunk, 0, length));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Send a request answered in chunks, as GET_STREAM is: replies with
+   * chunkStatus, then one with endStatus. Their values are written to the
+   * given stream.
+   *
+   * @return the endStatus reply, or the first reply that is neither (e.g.
+   *         GET_ERROR), whose value is not written
+   */
+  public BasicKVMessage requestChunked(BasicKVMessage msg, StatusType chunkStatus, StatusType endStatus,
+      OutputStream value) throws IOException {
+    lock.lock();
+    try {
+      sendMessage(msg);
+      while (true) {
+        BasicKVMessage reply = receiveMessage();
+        if (reply.getStatus() != chunkStatus && reply.getStatus() != endStatus)
+          return reply;
+        reply.writeValueTo(value);
+        if (reply.getStatus() == endStatus)
+          return reply;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Read until the chunk is full or the stream ends.
+   *
+   * @return the number of bytes read, less than the chunk's length only at
+   *         the end of the stream
+   */
+  public static int readChunk(InputStream in, byte[] chunk) throws IOException {
+    int length = 0;
+    int n;
+    while (length < chunk.length && (n = in.read(chunk, length, chunk.length - length)) >= 0)
+      length += n;
+    return length;
   }
 
   private String generateLogMessage(String message){
@@ -0,0 +1,72 @@
+package shared;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide registry of named counters, maxima and gauges, e.g. for
+ * storage and replication statistics. Names are dotted, like
+ * storage.bloom.skipped.
+ */
+public class Metrics {
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAccumulator> maxima = new ConcurrentHashMap<>();
+
+    private Metrics() { }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long delta) {
+        counters.computeIfAbsent(name, n -> new LongAdder()).add(delta);
+    }
+
+    public static long count(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Record one observation, e.g. a latency in microseconds, as the counters
+     * name.count and name.total and the maximum name.max.
+     */
+    public static void record(String name, long value) {
+        add(name + ".count", 1);
+        add(name + ".total", value);
+        maxima.computeIfAbsent(name + ".max", n -> new LongAccumulator(Long::max, Long.MIN_VALUE)).accumulate(value);
+    }
+
+    /**
+     * Register a value computed on demand; replaces a gauge of the same name.
+     */
+    public static void gauge(String name, Supplier<? extends Number> value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return current value of every counter and gauge, sorted by name
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet())
+            values.put(counter.getKey(), counter.getValue().sum());
+        for (Map.Entry<String, LongAccumulator> max : maxima.entrySet())
+            values.put(max.getKey(), max.getValue().get());
+        for (Map.Entry<String, Supplier<? extends Number>> gauge : gauges.entrySet())
+            values.put(gauge.getKey(), gauge.getValue().get());
+        return values;
+    }
+
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Number> metric : snapshot().entrySet())
+            sb.append(metric.getKey()).append('=').append(metric.getValue()).append('\n');
+        return sb.toString();
+    }
+}
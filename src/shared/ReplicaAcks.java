@@ -0,0 +1,50 @@
+package shared;
+
+/**
+ * Acknowledgements of one write from its replicas, counted against the
+ * write concern: the number of replicas that must have applied the write
+ * before the client is answered. Replicas report as they finish, in any
+ * order, so the wait is for the slowest required replica rather than for
+ * each in turn.
+ */
+public class ReplicaAcks {
+    private final int required;
+    private final int replicas;
+    private int acked = 0;
+    private int failed = 0;
+
+    /**
+     * @param required acknowledgements to wait for; at most replicas
+     * @param replicas replicas the write was sent to
+     */
+    public ReplicaAcks(int required, int replicas) {
+        this.required = Math.min(required, replicas);
+        this.replicas = replicas;
+    }
+
+    public synchronized void done(boolean applied) {
+        if (applied)
+            acked++;
+        else
+            failed++;
+        notifyAll();
+    }
+
+    /**
+     * Block until the required replicas have acknowledged the write, or too
+     * many have failed for that to happen.
+     *
+     * @return whether the write concern was met
+     */
+    public synchronized boolean await() {
+        while (acked < required && failed <= replicas - required) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return acked >= required;
+    }
+}
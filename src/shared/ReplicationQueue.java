@@ -0,0 +1,210 @@
+package shared;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import shared.messages.Batch;
+import shared.messages.BasicKVMessage;
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * Writes waiting to be replicated to one replica, for asynchronous
+ * replication.
+ *
+ * Writers offer a pair and get back its sequence number without doing any
+ * IO. A single sender thread drains everything offered so far, up to
+ * MAX_BATCH pairs, into one REPLICATE_BATCH message whose key is the sequence
+ * number of its last pair; the replica echoes it in REPLICATE_BATCH_SUCCESS,
+ * acknowledging every pair up to it. awaitAck blocks until a pair has been
+ * acknowledged, and a write offered with ReplicaAcks reports to them when
+ * its batch is answered. A later write to a key queued in the same batch
+ * replaces the earlier one, so a hot key is sent once per batch. The time
+ * from sending a batch to its acknowledgement is recorded as
+ * replication.ack.<replica> in Metrics.
+ *
+ * A batch the replica fails to apply, or that cannot be sent, is dropped and
+ * counted as failed, as a failed synchronous replication would be; the next
+ * hash ring update sends the replica all of the coordinator's keys again.
+ */
+public class ReplicationQueue {
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final int MAX_BATCH = 512; // pairs per REPLICATE_BATCH
+    private static final int MAX_FAILED_BATCHES = 64; // remembered for awaitAck
+
+    public static final String BATCHES = "replication.async.batches";
+    public static final String PAIRS = "replication.async.pairs";
+    public static final String FAILED = "replication.async.failed";
+
+    private final CommunicationService replica;
+    private final String name;
+    private final Thread sender;
+
+    private final ArrayDeque<Write> pending = new ArrayDeque<>();
+    private long offeredSeq = 0;
+    private long ackedSeq = 0; // sent and applied, or given up on
+    private final ArrayDeque<long[]> failedBatches = new ArrayDeque<>(); // first and last sequence number, latest last
+    private boolean running = true;
+
+    private static class Write {
+        final String key;
+        final String value;
+        final ReplicaAcks acks; // null if nobody waits for it
+
+        Write(String key, String value, ReplicaAcks acks) {
+            this.key = key;
+            this.value = value;
+            this.acks = acks;
+        }
+    }
+
+    public ReplicationQueue(CommunicationService replica, String name) {
+        this.replica = replica;
+        this.name = name;
+        this.sender = new Thread(this::sendLoop, "replication-" + name);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queue a write for the next batch.
+     * @param value new value, or "null" for a delete
+     * @param acks told whether the replica applied the write, or null
+     * @return sequence number to pass to awaitAck, or -1 once closed
+     */
+    public synchronized long offer(String key, String value, ReplicaAcks acks) {
+        if (!running)
+            return -1;
+        pending.add(new Write(key, value, acks));
+        notifyAll();
+        return ++offeredSeq;
+    }
+
+    /**
+     * Sequence number of the last pair offered.
+     */
+    public synchronized long offered() {
+        return offeredSeq;
+    }
+
+    /**
+     * Pairs offered but not yet acknowledged.
+     */
+    public synchronized long lag() {
+        return offeredSeq - ackedSeq;
+    }
+
+    /**
+     * Block until the pair with the given sequence number has been sent and
+     * acknowledged by the replica.
+     *
+     * @return false if its batch failed, or it was never offered
+     */
+    public synchronized boolean awaitAck(long sequence) {
+        if (sequence < 1 || sequence > offeredSeq)
+            return false;
+        while (ackedSeq < sequence) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        for (long[] batch : failedBatches) {
+            if (batch[0] <= sequence && sequence <= batch[1])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether some batch has failed since the queue was created.
+     */
+    public synchronized boolean hasFailed() {
+        return !failedBatches.isEmpty();
+    }
+
+    private void sendLoop() {
+        while (true) {
+            Map<String, String> batch = new LinkedHashMap<>();
+            List<ReplicaAcks> waiting = new ArrayList<>();
+            long upTo;
+            synchronized (this) {
+                while (pending.isEmpty() && running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // close() clears running
+                    }
+                }
+                if (pending.isEmpty())
+                    return;
+                for (int i = 0; i < MAX_BATCH && !pending.isEmpty(); i++) {
+                    Write write = pending.poll();
+                    batch.remove(write.key); // keeps the pair at its latest position
+                    batch.put(write.key, write.value);
+                    if (write.acks != null)
+                        waiting.add(write.acks);
+                }
+                upTo = offeredSeq - pending.size();
+            }
+
+            long start = System.nanoTime();
+            boolean applied = send(batch, upTo);
+            if (applied)
+                Metrics.record("replication.ack." + name, (System.nanoTime() - start) / 1000);
+            Metrics.increment(BATCHES);
+            Metrics.add(PAIRS, batch.size());
+            if (!applied)
+                Metrics.add(FAILED, batch.size());
+            synchronized (this) {
+                if (!applied) {
+                    failedBatches.add(new long[] { ackedSeq + 1, upTo });
+                    if (failedBatches.size() > MAX_FAILED_BATCHES)
+                        failedBatches.poll();
+                }
+                ackedSeq = upTo;
+                notifyAll();
+            }
+            for (ReplicaAcks acks : waiting)
+                acks.done(applied);
+        }
+    }
+
+    private boolean send(Map<String, String> batch, long upTo) {
+        try {
+            BasicKVMessage request = new BasicKVMessage(StatusType.REPLICATE_BATCH, Long.toString(upTo), Batch.encodePairs(batch));
+            BasicKVMessage response = replica.request(request);
+            if (response.getStatus() != StatusType.REPLICATE_BATCH_SUCCESS || !Long.toString(upTo).equals(response.getKey())) {
+                logger.error(ConsoleColors.RED_UNDERLINED + "Received " + response.getStatus() + " for batch " + upTo + " from replica " + name + ConsoleColors.RESET);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error(ConsoleColors.RED_UNDERLINED + "Unable to replicate batch " + upTo + " to " + name + ConsoleColors.RESET, e);
+            return false;
+        }
+    }
+
+    /**
+     * Stop taking writes and wait for those already queued to be sent.
+     */
+    public void close() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,169 +1,427 @@
 package shared;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
 import java.net.Socket;
-
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import app_kvServer.IKVServer.ReplicationMode;
 import app_kvServer.KVServer;
+import app_kvServer.MerkleTree;
 import ecs.ECSHashRing;
 import ecs.ECSNode;
+import shared.messages.Batch;
 import shared.messages.BasicKVMessage;
 import shared.messages.KVMessage.StatusType;
 
 public class Replicator {
-    
-    public KVServer server;
 
-    private CommunicationService firstReplicaConn;
-    private String firstReplicaName;
-    private BigInteger firstReplicaHash;
-    private BigInteger[] firstReplicaHashRange;
-    private ECSNode firstReplicaEcsNode;
+    public static final String TRANSFERRED = "replication.transfer.pairs";
+    public static final String ANTI_ENTROPY_ROUNDS = "replication.antientropy.rounds";
+    public static final String ANTI_ENTROPY_KEYS = "replication.antientropy.keys";
+    private static final int TRANSFER_BATCH_BYTES = 1024 * 1024; // key and value characters per transfer batch
 
-    private CommunicationService secondReplicaConn;
-    private String secondReplicaName;
-    private BigInteger secondReplicaHash;
-    private BigInteger[] secondReplicaHashRange;
-    private ECSNode secondReplicaEcsNode;
+    public KVServer server;
+
+    /* The successors holding replicas of this server's keys, nearest first;
+       replaced as a whole on connect */
+    private volatile List<Replica> replicas = new ArrayList<>();
+
+    /* Names of the nodes that may lack some of this server's keys: a
+       transfer to them has not finished, or a write to them failed */
+    private final Set<String> outOfSync = ConcurrentHashMap.newKeySet();
+
+    private static class Replica {
+        final ECSNode node;
+        final CommunicationService conn;
+        final ExecutorService sender; // sends it requests in order, see fanOut
+        final ReplicationQueue queue; // in ASYNC replication mode only
+
+        Replica(ECSNode node, CommunicationService conn, boolean async) {
+            this.node = node;
+            this.conn = conn;
+            this.sender = newSender(node.getNodeName());
+            this.queue = async ? new ReplicationQueue(conn, node.getNodeName()) : null;
+        }
+    }
 
     public Replicator(KVServer server){
         this.server = server;
     }
 
     public boolean replicate(String key, String value) throws Exception{
+        if (this.server.getReplicationMode() == ReplicationMode.ASYNC)
+            return this.enqueue(Map.of(key, value));
+
         BasicKVMessage replicateMessage = new BasicKVMessage(StatusType.REPLICATE, key, value);
+        return this.fanOut(replica -> replica.request(replicateMessage), StatusType.REPLICATE_SUCCESS);
+    }
 
-        if (this.firstReplicaConn != null){
-            this.firstReplicaConn.sendMessage(replicateMessage);
+    /**
+     * Replicate several key-value pairs in one message per replica.
+     */
+    public boolean replicateBatch(Map<String, String> pairs) throws Exception{
+        if (this.server.getReplicationMode() == ReplicationMode.ASYNC)
+            return this.enqueue(pairs);
 
-            BasicKVMessage response = this.firstReplicaConn.receiveMessage();
-            if (response.getStatus() != StatusType.REPLICATE_SUCCESS){
-                System.out.println("Received " + response.getStatus() + " instead of REPLICATE_SUCCESS from first replica");
-                return false;
-            }
-        }
+        BasicKVMessage replicateMessage = new BasicKVMessage(StatusType.REPLICATE_BATCH, null, Batch.encodePairs(pairs));
+        return this.fanOut(replica -> replica.request(replicateMessage), StatusType.REPLICATE_BATCH_SUCCESS);
+    }
 
-        if (this.secondReplicaConn != null){
-            this.secondReplicaConn.sendMessage(replicateMessage);
+    public boolean replicateSQLTable(String key, String value) throws Exception{
+        BasicKVMessage replicateMessage = new BasicKVMessage(StatusType.SQLREPLICATE, key, value);
+        return this.fanOut(replica -> replica.request(replicateMessage), StatusType.SQLREPLICATE_SUCCESS);
+    }
 
-            BasicKVMessage response = this.secondReplicaConn.receiveMessage();
-            if (response.getStatus() != StatusType.REPLICATE_SUCCESS){
-                System.out.println("Received " + response.getStatus() + " instead of REPLICATE_SUCCESS from second replica");
-                return false;
+    /**
+     * Replicate a value stored with a chunked put, streaming it from storage
+     * to each replica in chunks.
+     */
+    public boolean replicateStream(String key) throws Exception{
+        this.flush(); // queued writes of the key must not land after the streamed value
+
+        return this.fanOut(replica -> {
+            try (InputStream value = this.server.getKVStream(key)) {
+                if (value == null)
+                    throw new IOException("Streamed value of " + key + " was deleted before it was replicated");
+                return replica.sendChunked(StatusType.REPLICATE_STREAM, StatusType.REPLICATE_STREAM_END, key, value);
             }
-        }
-
-        return true;
+        }, StatusType.REPLICATE_SUCCESS);
     }
 
-    public boolean replicateSQLTable(String key, String value) throws Exception{
-        BasicKVMessage replicateMessage = new BasicKVMessage(StatusType.SQLREPLICATE, key, value);
+    public boolean replicateSQLCommand(String key, String value, StatusType status) throws Exception{
+        BasicKVMessage replicateMessage = new BasicKVMessage(status, key, value);
+        return this.fanOut(replica -> replica.request(replicateMessage), null);
+    }
 
-        if (this.firstReplicaConn != null){
-            this.firstReplicaConn.sendMessage(replicateMessage);
+    private interface ReplicaRequest {
+        BasicKVMessage send(CommunicationService replica) throws IOException;
+    }
 
-            BasicKVMessage response = this.firstReplicaConn.receiveMessage();
-            if (response.getStatus() != StatusType.SQLREPLICATE_SUCCESS){
-                System.out.println("Received " + response.getStatus() + " instead of SQLREPLICATE_SUCCESS from first replica");
-                return false;
+    /*
+     * Send a request to every replica at once, each on its sender thread so a
+     * replica gets requests in the order they were made, and wait for as many
+     * replies as the write concern asks for. A reply other than expected (any
+     * reply, if null) counts as a failure.
+     */
+    private boolean fanOut(ReplicaRequest request, StatusType expected){
+        List<Replica> replicas = this.replicas;
+        ReplicaAcks acks = new ReplicaAcks(this.server.getWriteConcern(), replicas.size());
+        for (Replica replica : replicas){
+            try {
+                replica.sender.execute(() -> acks.done(this.send(replica, request, expected)));
+            } catch (RejectedExecutionException e) { // disconnected meanwhile
+                acks.done(false);
             }
         }
+        return acks.await();
+    }
 
-        if (this.secondReplicaConn != null){
-            this.secondReplicaConn.sendMessage(replicateMessage);
-
-            BasicKVMessage response = this.secondReplicaConn.receiveMessage();
-            if (response.getStatus() != StatusType.SQLREPLICATE_SUCCESS){
-                System.out.println("Received " + response.getStatus() + " instead of SQLREPLICATE_SUCCESS from second replica");
+    private boolean send(Replica replica, ReplicaRequest request, StatusType expected){
+        String name = replica.node.getNodeName();
+        long start = System.nanoTime();
+        try {
+            BasicKVMessage response = request.send(replica.conn);
+            Metrics.record("replication.ack." + name, (System.nanoTime() - start) / 1000);
+            if (expected != null && response.getStatus() != expected){
+                System.out.println("Received " + response.getStatus() + " instead of " + expected + " from replica " + name);
+                this.outOfSync.add(name);
                 return false;
             }
+            return true;
+        } catch (IOException e) {
+            System.out.println("Unable to replicate to " + name + ": " + e.getMessage());
+            this.outOfSync.add(name);
+            return false;
         }
-
-        return true;
     }
 
-    public boolean replicateSQLCommand(String key, String value, StatusType status) throws Exception{
-        BasicKVMessage replicateMessage = new BasicKVMessage(status, key, value);
-
-        if (this.firstReplicaConn != null){
-            this.firstReplicaConn.sendMessage(replicateMessage);
-
-            BasicKVMessage response = this.firstReplicaConn.receiveMessage();
-            if (response.getStatus() != null){
-                System.out.println("Received " + response.getStatus());
+    /*
+     * Queue writes for each replica in ASYNC mode, and wait for as many
+     * replicas to apply them as the write concern asks for
+     */
+    private boolean enqueue(Map<String, String> pairs){
+        List<Replica> replicas = this.replicas;
+        List<ReplicaAcks> acks = new ArrayList<>();
+        synchronized (this){ // every replica queues the pairs in the same order
+            for (Map.Entry<String, String> pair : pairs.entrySet()){
+                ReplicaAcks pairAcks = new ReplicaAcks(this.server.getWriteConcern(), replicas.size());
+                for (Replica replica : replicas){
+                    if (replica.queue.offer(pair.getKey(), pair.getValue(), pairAcks) < 0)
+                        pairAcks.done(false); // closed meanwhile
+                }
+                acks.add(pairAcks);
             }
         }
 
-        if (this.secondReplicaConn != null){
-            this.secondReplicaConn.sendMessage(replicateMessage);
+        boolean replicated = true;
+        for (ReplicaAcks pairAcks : acks)
+            replicated &= pairAcks.await();
+        return replicated;
+    }
 
-            BasicKVMessage response = this.secondReplicaConn.receiveMessage();
-            if (response.getStatus() != null){
-                System.out.println("Received " + response.getStatus());
-            }
+    /**
+     * Wait until every write queued so far has been acknowledged by the
+     * replicas.
+     *
+     * @return false if some write could not be replicated
+     */
+    public boolean flush(){
+        List<Replica> replicas;
+        List<Long> offered = new ArrayList<>();
+        synchronized (this){
+            replicas = this.replicas;
+            for (Replica replica : replicas)
+                offered.add(replica.queue == null ? 0 : replica.queue.offered());
         }
 
-        return true;
+        boolean replicated = true;
+        for (int i = 0; i < replicas.size(); i++){
+            if (offered.get(i) > 0) replicated &= replicas.get(i).queue.awaitAck(offered.get(i));
+        }
+        return replicated;
     }
 
+    /**
+     * Connect to the successors that replicate this server's keys in the
+     * given ring, as many as its replication setting asks for.
+     */
     public void connect(ECSHashRing hashRing) {
         if (hashRing == null) return;
 
         this.disconnect(); // disconnect if there are existing connections
-        ECSNode[] successors = hashRing.getNextTwoNodeSuccessors(hashRing.getNodeForIdentifier(this.server.getStringIdentifier()));
-
-        if (successors[0] != null){
-            System.out.println("First replica: " + successors[0].getNodeName());
-            ECSNode firstSuccessor = successors[0];
-            this.firstReplicaHash = firstSuccessor.getNodeIdentifier();
-            this.firstReplicaHashRange = firstSuccessor.getNodeHashRangeBigInt();
-            this.firstReplicaConn = this.connectToServer(firstSuccessor);
-            this.firstReplicaEcsNode = hashRing.getNodeForIdentifier(this.firstReplicaHash);
+        boolean async = this.server.getReplicationMode() == ReplicationMode.ASYNC;
+        List<Replica> replicas = new ArrayList<>();
+        for (ECSNode successor : hashRing.getReplicaNodes(hashRing.getNodeForIdentifier(this.server.getStringIdentifier()))){
+            System.out.println("Replica " + (replicas.size() + 1) + ": " + successor.getNodeName());
+            CommunicationService conn = this.connectToServer(successor);
+            if (conn != null)
+                replicas.add(new Replica(successor, conn, async));
         }
 
-        if (successors[1] != null){
-            System.out.println("Second replica: " + successors[1].getNodeName());
-            ECSNode secondSuccessor = successors[1];
-            this.secondReplicaHash = secondSuccessor.getNodeIdentifier();
-            this.secondReplicaHashRange = secondSuccessor.getNodeHashRangeBigInt();
-            this.secondReplicaConn = this.connectToServer(secondSuccessor);
-            this.secondReplicaEcsNode = hashRing.getNodeForIdentifier(this.secondReplicaHash);
+        synchronized (this){
+            this.replicas = replicas;
         }
     }
 
     public void connect(){
-        ECSHashRing hashRing = this.server.getHashRing();
-        if (hashRing == null) return;
+        this.connect(this.server.getHashRing());
+    }
 
-        this.disconnect(); // disconnect if there are existing connections
-        ECSNode[] successors = hashRing.getNextTwoNodeSuccessors(hashRing.getNodeForIdentifier(this.server.getStringIdentifier()));
+    /**
+     * The nodes this server currently replicates to, nearest first.
+     */
+    public List<ECSNode> getReplicaNodes(){
+        List<ECSNode> nodes = new ArrayList<>();
+        for (Replica replica : this.replicas)
+            nodes.add(replica.node);
+        return nodes;
+    }
 
-        if (successors[0] != null){
-            System.out.println("First replica: " + successors[0].getNodeName());
-            ECSNode firstSuccessor = successors[0];
-            this.firstReplicaHash = firstSuccessor.getNodeIdentifier();
-            this.firstReplicaHashRange = firstSuccessor.getNodeHashRangeBigInt();
-            this.firstReplicaConn = this.connectToServer(firstSuccessor);
-            this.firstReplicaEcsNode = hashRing.getNodeForIdentifier(this.firstReplicaHash);
+    /**
+     * The nodes this server currently replicates to that hold all of its
+     * keys, as far as it knows: those no write or transfer to has failed, or
+     * been cut short by a hash ring change, since they were last sent all of
+     * them.
+     */
+    public List<ECSNode> getInSyncReplicaNodes(){
+        List<ECSNode> nodes = new ArrayList<>();
+        for (Replica replica : this.replicas){
+            boolean failed = replica.queue != null && replica.queue.hasFailed();
+            if (!failed && !this.outOfSync.contains(replica.node.getNodeName()))
+                nodes.add(replica.node);
         }
+        return nodes;
+    }
 
-        if (successors[1] != null){
-            System.out.println("Second replica: " + successors[1].getNodeName());
-            ECSNode secondSuccessor = successors[1];
-            this.secondReplicaHash = secondSuccessor.getNodeIdentifier();
-            this.secondReplicaHashRange = secondSuccessor.getNodeHashRangeBigInt();
-            this.secondReplicaConn = this.connectToServer(secondSuccessor);
-            this.secondReplicaEcsNode = hashRing.getNodeForIdentifier(this.secondReplicaHash);
+    /**
+     * Send keys with their current values to one replica, e.g. those of a
+     * range it newly holds after a hash ring change. This happens in the
+     * background on the replica's sender, in REPLICATE_BATCH messages of up
+     * to ReplicationQueue.MAX_BATCH pairs or TRANSFER_BATCH_BYTES; a value
+     * longer than a chunk is streamed on its own. Each value is read just
+     * before its batch is sent, in order with the replica's other writes, so
+     * a write made meanwhile is not undone by an older value; a key no longer
+     * stored is deleted on the replica. The transfer stops if the server
+     * disconnects from the replica.
+     *
+     * @param keys unescaped keys
+     * @return false if the server does not replicate to the node
+     */
+    public boolean transfer(ECSNode node, List<String> keys){
+        for (Replica replica : this.replicas){
+            if (!replica.node.getNodeName().equals(node.getNodeName()))
+                continue;
+            this.outOfSync.add(node.getNodeName());
+            try {
+                replica.sender.execute(() -> this.sendKeys(replica, keys));
+                return true;
+            } catch (RejectedExecutionException e) { // disconnected meanwhile
+                return false;
+            }
         }
+        return false;
     }
 
-    public CommunicationService getFirstReplicaConn(){
-        return this.firstReplicaConn;
+    private void sendKeys(Replica replica, List<String> keys){
+        String name = replica.node.getNodeName();
+        boolean async = replica.queue != null;
+        int next = 0;
+        while (next < keys.size()){
+            if (!this.replicas.contains(replica))
+                return; // disconnected; the next hash ring update sends the keys again
+            Map<String, String> batch = new LinkedHashMap<>();
+            String streamed = null;
+            long last = 0;
+            synchronized (this){ // in ASYNC mode, queued in order with concurrent writes, see enqueue
+                int length = 0;
+                while (next < keys.size() && batch.size() < ReplicationQueue.MAX_BATCH && length < TRANSFER_BATCH_BYTES){
+                    String key = keys.get(next++);
+                    String value = this.read(key);
+                    if (value == null)
+                        value = "null"; // deleted
+                    else if (value.length() > CommunicationService.CHUNK_SIZE){
+                        streamed = key;
+                        break;
+                    }
+                    batch.put(key, value);
+                    length += key.length() + value.length();
+                    if (async)
+                        last = replica.queue.offer(key, value, null);
+                }
+            }
+
+            boolean sent;
+            if (async)
+                sent = batch.isEmpty() || replica.queue.awaitAck(last);
+            else
+                sent = batch.isEmpty() || this.send(replica, conn -> conn.request(new BasicKVMessage(StatusType.REPLICATE_BATCH, null, Batch.encodePairs(batch))),
+                        StatusType.REPLICATE_BATCH_SUCCESS);
+            if (sent && streamed != null){
+                String key = streamed;
+                sent = this.send(replica, conn -> {
+                    try (InputStream value = this.server.getKVStream(key)) {
+                        if (value == null) // deleted meanwhile
+                            return new BasicKVMessage(StatusType.REPLICATE_SUCCESS, key, null);
+                        return conn.sendChunked(StatusType.REPLICATE_STREAM, StatusType.REPLICATE_STREAM_END, key, value);
+                    }
+                }, StatusType.REPLICATE_SUCCESS);
+            }
+            if (!sent){
+                System.out.println("Transfer to " + name + " stopped after " + next + " of " + keys.size() + " keys");
+                return;
+            }
+            Metrics.add(TRANSFERRED, batch.size() + (streamed == null ? 0 : 1));
+        }
+        if (this.replicas.contains(replica))
+            this.outOfSync.remove(name);
     }
 
-    public CommunicationService getSecondReplicaConn(){
-        return this.secondReplicaConn;
-    }   
+    /**
+     * Compare the Merkle tree of this server's hash range with each
+     * replica's, descending only into subtrees whose digests differ, and
+     * transfer the keys whose pairs differ to the replica. A replica in step
+     * costs one exchange of FANOUT digests.
+     *
+     * @return number of keys found to differ, over all replicas
+     */
+    public int reconcile(){
+        ECSNode node = this.server.getMetadata();
+        BigInteger start = node.getNodeHashStartRange();
+        BigInteger end = node.getNodeHashEndRange();
+
+        int differing = 0;
+        for (Replica replica : this.replicas){
+            try {
+                List<String> keys = this.differingKeys(replica, start, end);
+                if (!keys.isEmpty()){
+                    System.out.println("Anti-entropy: " + keys.size() + " keys differ on " + replica.node.getNodeName());
+                    this.transfer(replica.node, keys);
+                }
+                differing += keys.size();
+            } catch (IOException e) {
+                System.out.println("Unable to compare trees with " + replica.node.getNodeName() + ": " + e.getMessage());
+            }
+        }
+        Metrics.increment(ANTI_ENTROPY_ROUNDS);
+        Metrics.add(ANTI_ENTROPY_KEYS, differing);
+        return differing;
+    }
+
+    /*
+     * Unescaped keys of the range [start, end] whose pairs differ between
+     * this server and the replica, or that only one of them holds
+     */
+    private List<String> differingKeys(Replica replica, BigInteger start, BigInteger end) throws IOException{
+        MerkleTree tree = this.server.getMerkleTree();
+        List<Integer> nodes = List.of(0); // the root
+        for (int level = 0; level < MerkleTree.DEPTH && !nodes.isEmpty(); level++){
+            long[] mine = tree.childDigests(start, end, level, nodes);
+            long[] theirs = MerkleTree.decodeDigests(this.ask(replica, StatusType.MERKLE_TREE,
+                    MerkleTree.encodeRequest(start, end, level, nodes), StatusType.MERKLE_TREE_SUCCESS));
+            if (theirs.length != mine.length)
+                throw new IOException("Received " + theirs.length + " digests instead of " + mine.length);
+
+            List<Integer> children = new ArrayList<>();
+            for (int i = 0; i < mine.length; i++){
+                if (mine[i] != theirs[i])
+                    children.add(nodes.get(i / MerkleTree.FANOUT) * MerkleTree.FANOUT + i % MerkleTree.FANOUT);
+            }
+            nodes = children;
+        }
+        if (nodes.isEmpty())
+            return new ArrayList<>();
+
+        Map<String, Long> mine = tree.pairDigests(start, end, nodes);
+        Map<String, Long> theirs = MerkleTree.decodePairDigests(this.ask(replica, StatusType.MERKLE_KEYS,
+                MerkleTree.encodeRequest(start, end, MerkleTree.DEPTH, nodes), StatusType.MERKLE_KEYS_SUCCESS));
+        LinkedHashSet<String> keys = new LinkedHashSet<>();
+        for (Map.Entry<String, Long> pair : mine.entrySet()){
+            if (!pair.getValue().equals(theirs.get(pair.getKey())))
+                keys.add(KVServer.unescape(pair.getKey()));
+        }
+        for (String key : theirs.keySet()){
+            if (!mine.containsKey(key))
+                keys.add(KVServer.unescape(key));
+        }
+        return new ArrayList<>(keys);
+    }
+
+    private String ask(Replica replica, StatusType status, String value, StatusType expected) throws IOException{
+        BasicKVMessage response = replica.conn.request(new BasicKVMessage(status, null, value));
+        if (response.getStatus() != expected)
+            throw new IOException("Received " + response.getStatus() + " instead of " + expected);
+        return response.getValue();
+    }
+
+    private String read(String key){
+        if (!this.server.inStorage(KVServer.escape(key)))
+            return null;
+        try {
+            return this.server.getKV(key);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newSender(String name){
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "replica-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
 
     private CommunicationService connectToServer(ECSNode serverNode){
         System.out.println("Connecting to " + serverNode.getNodeHost() + ":" + serverNode.getNodePort());
@@ -180,8 +438,24 @@ public class Replicator {
     }
 
     public void disconnect(){
-        if (firstReplicaConn != null) firstReplicaConn.disconnect();
-        if (secondReplicaConn != null) secondReplicaConn.disconnect();
+        List<Replica> replicas;
+        synchronized (this){
+            replicas = this.replicas;
+            this.replicas = new ArrayList<>();
+        }
+
+        for (Replica replica : replicas){
+            if (replica.queue != null) replica.queue.close(); // sends what is already queued
+            replica.sender.shutdown(); // runs what is already submitted
+        }
+        for (Replica replica : replicas){
+            try {
+                replica.sender.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            replica.conn.disconnect();
+        }
     }
 
 }
@@ -0,0 +1,48 @@
+package shared;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Threads for blocking connection handlers. Virtual threads (Java 21+) park
+ * instead of holding an OS thread while blocked in socket IO, so the blocking
+ * code in MessageService and CommunicationService scales to tens of thousands
+ * of connections unchanged. They are looked up reflectively, so the build
+ * still targets Java 17 and falls back to platform threads there.
+ */
+public class Threads {
+    private static final ThreadFactory VIRTUAL = virtualThreadFactory();
+    private static final ThreadFactory PLATFORM = Thread::new;
+
+    private Threads() { }
+
+    /*
+     * Thread.ofVirtual().factory(), or null before Java 21
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public static boolean hasVirtualThreads() {
+        return VIRTUAL != null;
+    }
+
+    /**
+     * @param virtual whether to use virtual threads where the JVM has them
+     */
+    public static ThreadFactory factory(boolean virtual) {
+        return virtual && VIRTUAL != null ? VIRTUAL : PLATFORM;
+    }
+
+    public static Thread start(Runnable task, boolean virtual) {
+        Thread thread = factory(virtual).newThread(task);
+        thread.start();
+        return thread;
+    }
+}
@@ -1,6 +1,8 @@
 package shared.messages;
 
+import java.io.IOException;
 import java.io.ObjectInputFilter.Status;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import org.apache.log4j.*;
@@ -18,27 +20,54 @@ public class BasicKVMessage implements KVMessage {
   private String key;
   private String value;
   private Boolean localProtocol = true;
+  private boolean binaryProtocol = true; // sent as a binary frame, see BinaryProtocol
+  private int requestId = 0;
 
+  // text encodings, built when first needed
   String msg;
   byte[] msgBytes, externalMsgBytes;
 
+  // binary frame the key and value are decoded from on first use, see BinaryProtocol
+  byte[] frame;
+  int keyOffset, keyLength, valueOffset, valueLength;
+  boolean keyDecoded = true, valueDecoded = true;
+
   public BasicKVMessage(StatusType status, String key, String value) {
     this.status = status;
     this.key = key;
     this.value = value;
+  }
 
-    this.msg = this.status.toString();
-    if (this.key != null)
-      this.msg += " " + this.key;
-    if (this.value != null)
-      this.msg += " " + this.value;
-    this.msg.trim();
+  /*
+   * Message over a received binary frame, lengths of -1 standing for null
+   */
+  BasicKVMessage(StatusType status, byte[] frame, int keyOffset, int keyLength, int valueOffset, int valueLength) {
+    this.status = status;
+    this.frame = frame;
+    this.keyOffset = keyOffset;
+    this.keyLength = keyLength;
+    this.valueOffset = valueOffset;
+    this.valueLength = valueLength;
+    this.keyDecoded = false;
+    this.valueDecoded = false;
+  }
 
-    this.msgBytes = toByteArray(status, key, value);
-    this.externalMsgBytes = toByteArray(msg);
+  /**
+   * Message whose value is the given bytes, sent as they are instead of as
+   * UTF-8 text, e.g. a chunk of a value that need not be text. The array is
+   * not copied.
+   */
+  public BasicKVMessage(StatusType status, String key, byte[] value, int offset, int length) {
+    this.status = status;
+    this.key = key;
+    this.frame = value;
+    this.valueOffset = offset;
+    this.valueLength = length;
+    this.valueDecoded = false;
   }
 
   public BasicKVMessage(byte[] bytes) {
+    this.binaryProtocol = false;
     this.parseBytes(addCtrChars(bytes));
     if (this.localProtocol) {
       this.msgBytes = addCtrChars(bytes);
@@ -48,21 +77,54 @@ public class BasicKVMessage implements KVMessage {
   }
 
   public byte[] getMsgBytes() {
-    if(this.localProtocol){
+    if (this.binaryProtocol) {
+      return BinaryProtocol.encode(this);
+    } else if(this.localProtocol){
+      if (this.msgBytes == null)
+        this.msgBytes = toByteArray(status, getKey(), getValue());
       return this.msgBytes;
     } else {
+      if (this.externalMsgBytes == null)
+        this.externalMsgBytes = toByteArray(toString());
       return this.externalMsgBytes;
     }
   }
 
   public String getKey() {
+    if (!keyDecoded) {
+      key = keyLength < 0 ? null : new String(frame, keyOffset, keyLength, StandardCharsets.UTF_8);
+      keyDecoded = true;
+    }
     return key;
   }
 
   public String getValue() {
+    if (!valueDecoded) {
+      value = valueLength < 0 ? null : new String(frame, valueOffset, valueLength, StandardCharsets.UTF_8);
+      valueDecoded = true;
+    }
     return value;
   }
   
+  /**
+   * Write the value's bytes, undecoded if it came in a binary frame.
+   *
+   * @return the number of bytes written, 0 for a null value
+   */
+  public int writeValueTo(OutputStream out) throws IOException {
+    if (!valueDecoded) {
+      if (valueLength <= 0)
+        return 0;
+      out.write(frame, valueOffset, valueLength);
+      return valueLength;
+    }
+    if (value == null)
+      return 0;
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.write(bytes);
+    return bytes.length;
+  }
+
   public Boolean getLocalProtocol() {
     return localProtocol;
   }
@@ -71,12 +133,30 @@ public class BasicKVMessage implements KVMessage {
     localProtocol = val;
   }
 
+  public boolean getBinaryProtocol() {
+    return binaryProtocol;
+  }
+
+  public void setBinaryProtocol(boolean val) {
+    binaryProtocol = val;
+  }
+
+  public int getRequestId() {
+    return requestId;
+  }
+
+  public void setRequestId(int requestId) {
+    this.requestId = requestId;
+  }
+
   public void changeKey(String key) {
       this.key = key;
+      this.keyDecoded = true;
   }
   
   public void changeValue(String value) {
     this.value = value;
+    this.valueDecoded = true;
   }
 
   public StatusType getStatus() {
@@ -152,9 +232,11 @@ public class BasicKVMessage implements KVMessage {
       this.value = rawValue.toString();
     }
 
-    this.logger.info(ConsoleColors.BLACK_BACKGROUND + "Status: " + status + ConsoleColors.RESET);
-    this.logger.info(ConsoleColors.BLACK_BACKGROUND + "Key: " + key + ConsoleColors.RESET);
-    this.logger.info(ConsoleColors.BLACK_BACKGROUND + "Value: " + value + ConsoleColors.RESET);
+    if (this.logger.isInfoEnabled()) { // skip building the strings when not logged
+      this.logger.info(ConsoleColors.BLACK_BACKGROUND + "Status: " + status + ConsoleColors.RESET);
+      this.logger.info(ConsoleColors.BLACK_BACKGROUND + "Key: " + key + ConsoleColors.RESET);
+      this.logger.info(ConsoleColors.BLACK_BACKGROUND + "Value: " + value + ConsoleColors.RESET);
+    }
   }
 
   private void parseBytes(byte[] bytes) {
@@ -238,6 +320,14 @@ public class BasicKVMessage implements KVMessage {
   }
 
   public String toString(){
+    if (this.msg == null) {
+      StringBuilder sb = new StringBuilder(this.status.toString());
+      if (getKey() != null)
+        sb.append(' ').append(getKey());
+      if (getValue() != null)
+        sb.append(' ').append(getValue());
+      this.msg = sb.toString();
+    }
     return this.msg;
   }
 }
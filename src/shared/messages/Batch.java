@@ -0,0 +1,68 @@
+package shared.messages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * JSON payloads of the batch messages, carried in the message value:
+ *
+ * MGET: ["k1", "k2"]
+ * MPUT, REPLICATE_BATCH: {"k1": "v1", "k2": "v2"}
+ * MGET_SUCCESS, MPUT_SUCCESS: {"k1": ["GET_SUCCESS", "v1"], "k2": ["GET_ERROR", null]}
+ *
+ * A result per key holds the status and value a single GET or PUT reply
+ * would have. The key of a batch reply is the server's hash ring, as in a
+ * SERVER_NOT_RESPONSIBLE reply, when some key's result is
+ * SERVER_NOT_RESPONSIBLE. Maps keep their keys in batch order.
+ */
+public class Batch {
+    private static final ObjectMapper om = new ObjectMapper();
+
+    private Batch() { }
+
+    public static String encodeKeys(Collection<String> keys) throws IOException {
+        return om.writeValueAsString(keys);
+    }
+
+    public static List<String> decodeKeys(String json) throws IOException {
+        return om.readValue(json, new TypeReference<ArrayList<String>>() { });
+    }
+
+    public static String encodePairs(Map<String, String> pairs) throws IOException {
+        return om.writeValueAsString(pairs);
+    }
+
+    public static Map<String, String> decodePairs(String json) throws IOException {
+        return om.readValue(json, new TypeReference<LinkedHashMap<String, String>>() { });
+    }
+
+    public static String encodeResults(Map<String, ? extends KVMessage> results) throws IOException {
+        Map<String, String[]> encoded = new LinkedHashMap<>();
+        for (Map.Entry<String, ? extends KVMessage> result : results.entrySet())
+            encoded.put(result.getKey(), new String[] { result.getValue().getStatus().name(), result.getValue().getValue() });
+        return om.writeValueAsString(encoded);
+    }
+
+    public static Map<String, BasicKVMessage> decodeResults(String json) throws IOException {
+        Map<String, String[]> encoded = om.readValue(json, new TypeReference<LinkedHashMap<String, String[]>>() { });
+        Map<String, BasicKVMessage> results = new LinkedHashMap<>();
+        for (Map.Entry<String, String[]> result : encoded.entrySet()) {
+            try {
+                StatusType status = StatusType.valueOf(result.getValue()[0]);
+                results.put(result.getKey(), new BasicKVMessage(status, result.getKey(), result.getValue()[1]));
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Malformed batch result for " + result.getKey(), e);
+            }
+        }
+        return results;
+    }
+}
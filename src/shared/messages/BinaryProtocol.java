@@ -0,0 +1,231 @@
+package shared.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import shared.BufferPool;
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * Length-prefixed binary framing for KV messages. A frame is a short header
+ * followed by the key and value bytes (UTF-8):
+ *
+ * magic (1) | version (1) | opcode (1) | flags (1) | request ID (varint) |
+ * key length + 1 (varint) | value length + 1 (varint) | key | value
+ *
+ * Varints are unsigned LEB128: 7 bits per byte, low bits first, high bit set
+ * on all but the last byte. A length of 0 stands for a null key or value, so
+ * a small request costs 7 header bytes. The opcode is the StatusType ordinal,
+ * so new status types must be appended to the enum. The reply to a request
+ * carries the request's ID.
+ *
+ * The magic byte cannot start a text message, so a receiver can serve binary
+ * and text clients on the same port by looking at the first byte.
+ *
+ * Encoding allocates only the frame, or nothing given a BufferPool, and
+ * decoding only the message, whose key and value are decoded on first use.
+ */
+public class BinaryProtocol {
+    public static final byte MAGIC = (byte) 0xEA;
+    public static final byte VERSION = 2;
+    public static final int MIN_HEADER_SIZE = 7;
+    public static final int MAX_HEADER_SIZE = 19;
+    public static final int MAX_LENGTH = 16 * 1024 * 1024; // longest key or value accepted
+
+    private static final StatusType[] OPCODES = StatusType.values();
+    private static final int FIXED_SIZE = 4; // magic, version, opcode, flags
+    private static final int MAX_VARINT_SIZE = 5;
+    private static final int NULL = -1;
+
+    private BinaryProtocol() { }
+
+    public static boolean isFrameStart(byte b) {
+        return b == MAGIC;
+    }
+
+    public static byte[] encode(BasicKVMessage msg) {
+        return encode(msg, null).array();
+    }
+
+    /**
+     * Encode a message into a buffer from the pool, or an exactly sized new
+     * one if the pool is null. The frame runs from 0 to the buffer's position.
+     * A decoded message whose key and value were never read has them copied
+     * over as bytes.
+     */
+    public static ByteBuffer encode(BasicKVMessage msg, BufferPool pool) {
+        int keyLength = msg.keyDecoded ? utf8Length(msg.getKey()) : msg.keyLength;
+        int valueLength = msg.valueDecoded ? utf8Length(msg.getValue()) : msg.valueLength;
+        int requestId = msg.getRequestId();
+
+        int size = FIXED_SIZE + varintSize(requestId) + varintSize(keyLength + 1) + varintSize(valueLength + 1)
+                + Math.max(keyLength, 0) + Math.max(valueLength, 0);
+        ByteBuffer frame = pool == null ? ByteBuffer.allocate(size) : pool.acquire(size);
+        frame.put(MAGIC).put(VERSION).put((byte) msg.getStatus().ordinal()).put((byte) 0); // no flags
+        putVarint(frame, requestId);
+        putVarint(frame, keyLength + 1);
+        putVarint(frame, valueLength + 1);
+        if (msg.keyDecoded)
+            putUtf8(frame, msg.getKey());
+        else if (keyLength != NULL)
+            frame.put(msg.frame, msg.keyOffset, keyLength);
+        if (msg.valueDecoded)
+            putUtf8(frame, msg.getValue());
+        else if (valueLength != NULL)
+            frame.put(msg.frame, msg.valueOffset, valueLength);
+        return frame;
+    }
+
+    /**
+     * Size of the frame header at the start of the given bytes.
+     *
+     * @return the header size, or -1 if more bytes are needed to tell
+     */
+    public static int headerSize(byte[] bytes, int offset, int length) throws IOException {
+        int end = offset + length;
+        int pos = offset + FIXED_SIZE;
+        if (pos > end)
+            return -1;
+        for (int field = 0; field < 3; field++) {
+            int start = pos;
+            do {
+                if (pos - start == MAX_VARINT_SIZE)
+                    throw new IOException("Malformed varint in frame header");
+                if (pos == end)
+                    return -1;
+            } while (bytes[pos++] < 0);
+        }
+        return pos - offset;
+    }
+
+    /**
+     * Check a complete frame header and return the number of key and value
+     * bytes that follow it.
+     */
+    public static int payloadLength(byte[] header, int offset) throws IOException {
+        if (header[offset] != MAGIC)
+            throw new IOException("Not a binary frame");
+        byte version = header[offset + 1];
+        if (version != VERSION)
+            throw new IOException("Unsupported protocol version " + version);
+        int opcode = header[offset + 2] & 0xFF;
+        if (opcode >= OPCODES.length)
+            throw new IOException("Unknown opcode " + opcode);
+
+        int pos = skipVarint(header, offset + FIXED_SIZE); // request ID
+        int keyLength = length(getVarint(header, pos) - 1);
+        pos = skipVarint(header, pos);
+        int valueLength = length(getVarint(header, pos) - 1);
+        return keyLength + valueLength;
+    }
+
+    private static int length(int length) throws IOException {
+        if (length < NULL || length > MAX_LENGTH)
+            throw new IOException("Invalid frame length " + length);
+        return length == NULL ? 0 : length;
+    }
+
+    /**
+     * Decode a frame whose header payloadLength accepted and whose payload
+     * follows it in the same array. The message keeps the array and decodes
+     * the key and value when they are first read, so the caller must not
+     * reuse it.
+     */
+    public static BasicKVMessage decode(byte[] frame, int offset) {
+        StatusType status = OPCODES[frame[offset + 2] & 0xFF];
+        int pos = offset + FIXED_SIZE;
+        int requestId = getVarint(frame, pos);
+        pos = skipVarint(frame, pos);
+        int keyLength = getVarint(frame, pos) - 1;
+        pos = skipVarint(frame, pos);
+        int valueLength = getVarint(frame, pos) - 1;
+        pos = skipVarint(frame, pos);
+
+        BasicKVMessage msg = new BasicKVMessage(status, frame, pos, keyLength, pos + Math.max(keyLength, 0), valueLength);
+        msg.setRequestId(requestId);
+        return msg;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) (value | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarint(byte[] bytes, int pos) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = bytes[pos++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    private static int skipVarint(byte[] bytes, int pos) {
+        while (bytes[pos++] < 0)
+            ;
+        return pos;
+    }
+
+    /*
+     * Number of bytes putUtf8 writes for s, or -1 for null. Unpaired
+     * surrogates become '?', as String.getBytes does.
+     */
+    private static int utf8Length(String s) {
+        if (s == null)
+            return NULL;
+        int length = s.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                continue;
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 2; // four bytes for the pair
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    private static void putUtf8(ByteBuffer buffer, String s) {
+        if (s == null)
+            return;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | cp >> 18));
+                buffer.put((byte) (0x80 | cp >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | cp >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+}
@@ -78,6 +78,27 @@ public interface KVMessage {
         SQLUPDATE_REPLICATE,
         SQLUPDATE_REPLICATE_SUCCESS,
         SQLUPDATE_REPLICATE_ERROR,
+
+        /* batches, payloads encoded by Batch; append new types below, the binary opcode is the ordinal */
+        MGET, /* Get several keys - request */
+        MGET_SUCCESS, /* result per key */
+        MPUT, /* Put several key-value pairs - request */
+        MPUT_SUCCESS, /* result per key */
+        REPLICATE_BATCH,
+        REPLICATE_BATCH_SUCCESS,
+
+        /* chunked transfer of large values, binary frames only; see ChunkedTransfer */
+        PUT_STREAM, /* Chunk of a value, more follow - request; the first is answered with PUT_STREAM to go on */
+        PUT_STREAM_END, /* Last chunk of a value - request; answered like PUT */
+        GET_STREAM, /* Get a value in chunks - request; answered with GET_STREAM chunks, then GET_SUCCESS with the last */
+        REPLICATE_STREAM, /* PUT_STREAM from a coordinator to its replicas */
+        REPLICATE_STREAM_END, /* PUT_STREAM_END from a coordinator to its replicas; answered with REPLICATE_SUCCESS */
+
+        /* anti-entropy between a coordinator and its replicas, payloads encoded by MerkleTree */
+        MERKLE_TREE, /* Digests of the children of some nodes of the tree of a hash range - request */
+        MERKLE_TREE_SUCCESS,
+        MERKLE_KEYS, /* Digests of the pairs in some leaves of the tree of a hash range - request */
+        MERKLE_KEYS_SUCCESS,
     }
 
     /**
@@ -9,8 +9,11 @@ import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import shared.BufferPool;
 import shared.ConsoleColors;
 
 import org.apache.log4j.Logger; // import Logger
@@ -22,6 +25,9 @@ public class MessageService {
 
     private static final int BUFFER_SIZE = 1024;
     private static final int DROP_SIZE = 128 * BUFFER_SIZE;
+    private static final BufferPool FRAME_BUFFERS = new BufferPool(4 * BUFFER_SIZE, 256, false); // shared by all connections
+
+    private byte[] buffer = new byte[BUFFER_SIZE]; // reused by every receive; one receiver at a time
 
     public void sendECSMessage(Socket socket, ObjectOutputStream out, ECSMessageType messageType, Object... params)
             throws Exception {
@@ -68,8 +74,17 @@ public class MessageService {
      */
     public void sendBasicKVMessage(Socket socket, BasicKVMessage msg) throws IOException {
         OutputStream output = socket.getOutputStream();
-        byte[] msgBytes = msg.getMsgBytes();
-        output.write(msgBytes, 0, msgBytes.length);
+        if (msg.getBinaryProtocol()) { // written straight from a pooled buffer
+            ByteBuffer frame = BinaryProtocol.encode(msg, FRAME_BUFFERS);
+            try {
+                output.write(frame.array(), frame.arrayOffset(), frame.position());
+            } finally {
+                FRAME_BUFFERS.release(frame);
+            }
+        } else {
+            byte[] msgBytes = msg.getMsgBytes();
+            output.write(msgBytes, 0, msgBytes.length);
+        }
         output.flush();
     }
 
@@ -82,65 +97,79 @@ public class MessageService {
      * @throws IOException
      */
     public BasicKVMessage receiveBasicKVMessage(Socket socket) throws IOException {
-        byte[] receivedMessageBytes = this.receiveMessage(socket);
-        BasicKVMessage msg = new BasicKVMessage(receivedMessageBytes);
-        return msg;
+        return receiveBasicKVMessage(socket.getInputStream());
     }
 
-    private byte[] receiveMessage(Socket socket) throws IOException {
-        InputStream input = socket.getInputStream();
-        int index = 0;
-        byte[] msgBytes = null, tmp = null;
-        byte[] bufferBytes = new byte[BUFFER_SIZE];
-
-        /* read first char from stream */
-        byte prevRead = 0;
-        byte read = (byte) input.read();
-        boolean reading = true;
-
-        while (!(read == 10 && prevRead == 13) && reading) {/* CR, LF, error */
-            /* if buffer filled, copy to msg array */
-            if (index == BUFFER_SIZE) {
-                if (msgBytes == null) {
-                    tmp = new byte[BUFFER_SIZE];
-                    System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-                } else {
-                    tmp = new byte[msgBytes.length + BUFFER_SIZE];
-                    System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-                    System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-                            BUFFER_SIZE);
-                }
-
-                msgBytes = tmp;
-                bufferBytes = new byte[BUFFER_SIZE];
-                index = 0;
+    /**
+     * Receive the next message on a stream: a binary frame (see BinaryProtocol),
+     * whose payload is read in bulk once the header gives its length, or a
+     * CR LF terminated text message. Both are read partly a byte at a time, so
+     * pass a buffered stream.
+     */
+    public BasicKVMessage receiveBasicKVMessage(InputStream input) throws IOException {
+        int first = input.read();
+        if (first < 0)
+            throw new EOFException("Connection closed");
+
+        if (BinaryProtocol.isFrameStart((byte) first)) {
+            buffer[0] = (byte) first;
+            int length = BinaryProtocol.MIN_HEADER_SIZE;
+            readFully(input, buffer, 1, length - 1);
+            int headerSize;
+            while ((headerSize = BinaryProtocol.headerSize(buffer, 0, length)) < 0) { // longer varints
+                int read = input.read();
+                if (read < 0)
+                    throw new EOFException("Connection closed mid-message");
+                buffer[length++] = (byte) read;
             }
+            int payloadLength = BinaryProtocol.payloadLength(buffer, 0);
+            byte[] frame = Arrays.copyOf(buffer, headerSize + payloadLength); // kept by the message
+            readFully(input, frame, headerSize, payloadLength);
+            return BinaryProtocol.decode(frame, 0);
+        }
 
-            /* only read valid characters, i.e. letters and constants */
-            bufferBytes[index] = read;
-            index++;
-
-            /* stop reading is DROP_SIZE is reached */
-            if (msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-                reading = false;
-            }
+        return new BasicKVMessage(receiveMessage(input, first));
+    }
 
-            /* read next char from stream */
-            prevRead = read;
-            read = (byte) input.read();
+    private void readFully(InputStream input, byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = input.read(bytes, offset, length);
+            if (n < 0)
+                throw new EOFException("Connection closed mid-message");
+            offset += n;
+            length -= n;
         }
+    }
 
-        if (msgBytes == null) {
-            tmp = new byte[index];
-            System.arraycopy(bufferBytes, 0, tmp, 0, index);
-        } else {
-            tmp = new byte[msgBytes.length + index];
-            System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-            System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
+    private void ensureCapacity(int length) {
+        if (buffer.length < length)
+            buffer = Arrays.copyOf(buffer, Math.max(length, 2 * buffer.length));
+    }
+
+    /*
+     * Text message starting with the given byte, up to and including the CR
+     * of the CR LF that ends it, or DROP_SIZE bytes if no CR LF comes first
+     */
+    private byte[] receiveMessage(InputStream input, int read) throws IOException {
+        int index = 0;
+        int prevRead = 0;
+
+        while (!(read == 10 && prevRead == 13)) { /* CR, LF */
+            if (read < 0)
+                throw new EOFException("Connection closed mid-message");
+
+            ensureCapacity(index + 1);
+            buffer[index++] = (byte) read;
+
+            /* stop reading if DROP_SIZE is reached */
+            if (index >= DROP_SIZE)
+                break;
+
+            prevRead = read;
+            read = input.read();
         }
 
-        msgBytes = tmp;
-        return msgBytes;
+        return Arrays.copyOf(buffer, index);
     }
 
     private Object readObjectFromSocket(Socket socket, ObjectInputStream in) {
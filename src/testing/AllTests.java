@@ -45,9 +45,11 @@ public class AllTests {
 		clientSuite.addTestSuite(HashingTest.class);
 		clientSuite.addTestSuite(ConnectionTest.class);
 		clientSuite.addTestSuite(InteractionTest.class); 
+		clientSuite.addTest(NioFrontEndTest.suite());
 		clientSuite.addTestSuite(AdditionalTest.class); 
 		clientSuite.addTestSuite(CacheTest.class); 
 		clientSuite.addTestSuite(ReplicationTest.class); 
+		clientSuite.addTestSuite(StorageTest.class);
 		return clientSuite;
 	}
 	
@@ -2,7 +2,12 @@ package testing;
 
 import java.net.UnknownHostException;
 import java.math.BigInteger;
+import java.util.List;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ecs.ECSHashRing;
 import ecs.ECSNode;
 
 import junit.framework.TestCase;
@@ -84,6 +89,32 @@ public class HashingTest extends TestCase {
         assertTrue(ECSNode.isKeyInRange(key, startAndEnd, startAndEnd));
     }
 
+    public void testReplicaNodes() throws Exception {
+        ECSHashRing ring = new ECSHashRing();
+        for (int port = 5000; port < 5005; port++)
+            ring.addNode(new ECSNode("localhost:" + port, "localhost", port));
+        ECSNode[] nodes = ring.getHashring().values().toArray(new ECSNode[0]);
+
+        assertEquals(ECSHashRing.DEFAULT_REPLICAS, ring.getReplicaNodes(nodes[0]).size());
+
+        ring.setReplicas(3);
+        assertEquals(List.of(nodes[1], nodes[2], nodes[3]), ring.getReplicaNodes(nodes[0]));
+        assertEquals(List.of(nodes[3], nodes[2], nodes[1]), ring.getReplicatedNodes(nodes[4]));
+        assertEquals(List.of(nodes[0], nodes[1], nodes[2]), ring.getReplicaNodes(nodes[4])); // wraps around
+
+        ring.setReplicas(10); // more than the other nodes
+        assertEquals(4, ring.getReplicaNodes(nodes[2]).size());
+        ring.setReplicas(0);
+        assertTrue(ring.getReplicaNodes(nodes[2]).isEmpty());
+        assertTrue(ring.getReplicatedNodes(nodes[2]).isEmpty());
+
+        // clients learn the setting with the ring
+        ring.setReplicas(4);
+        ObjectMapper om = new ObjectMapper();
+        om.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        assertEquals(4, om.readValue(om.writeValueAsString(ring), ECSHashRing.class).getReplicas());
+    }
+
     // public void testLRUCache() {
     // Exception ex = null;
 
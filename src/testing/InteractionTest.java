@@ -1,8 +1,19 @@
 package testing;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
 import org.junit.Test;
 
 import client.KVStore;
+import client.Pipeline;
 import junit.framework.TestCase;
 import shared.messages.KVMessage;
 import shared.messages.KVMessage.StatusType;
@@ -127,6 +138,97 @@ public class InteractionTest extends TestCase {
 
 		assertTrue(ex == null && response.getStatus() == StatusType.GET_ERROR);
 	}
+
+	@Test
+	public void testPipeline() {
+		List<KVMessage> responses = null;
+		Exception ex = null;
+
+		try (Pipeline pipeline = kvClient.pipeline()) {
+			for (int i = 0; i < 100; i++)
+				pipeline.put("pipe" + i, "v" + i);
+			pipeline.put("pipe0", "updated"); // same key, applied after the first put
+			for (int i = 0; i < 100; i++)
+				pipeline.get("pipe" + i);
+			responses = pipeline.sync();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && responses.size() == 201);
+		assertEquals(StatusType.PUT_UPDATE, responses.get(100).getStatus());
+		assertEquals("updated", responses.get(101).getValue());
+		for (int i = 1; i < 100; i++)
+			assertEquals("v" + i, responses.get(101 + i).getValue());
+	}
+
+	@Test
+	public void testPutGetAsync() {
+		List<CompletableFuture<KVMessage>> puts = new ArrayList<>();
+		List<CompletableFuture<KVMessage>> gets = new ArrayList<>();
+		Exception ex = null;
+
+		try {
+			for (int i = 0; i < 1000; i++)
+				puts.add(kvClient.putAsync("async" + i, "v" + i));
+			CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0])).join();
+			for (int i = 0; i < 1000; i++)
+				gets.add(kvClient.getAsync("async" + i));
+			for (int i = 0; i < 1000; i++)
+				assertEquals("v" + i, gets.get(i).join().getValue());
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		assertEquals(StatusType.PUT_SUCCESS, puts.get(0).join().getStatus());
+	}
+
+	@Test
+	public void testPutGetStream() {
+		byte[] value = new byte[1024 * 1024 + 7]; // over the message size, in chunks
+		new Random(42).nextBytes(value);
+		KVMessage put = null;
+		KVMessage get = null;
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		Exception ex = null;
+
+		try {
+			put = kvClient.putStream("streamed", new ByteArrayInputStream(value));
+			get = kvClient.getStream("streamed", received);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && put.getStatus() == StatusType.PUT_SUCCESS);
+		assertEquals(StatusType.GET_SUCCESS, get.getStatus());
+		assertTrue(Arrays.equals(value, received.toByteArray()));
+	}
+
+	@Test
+	public void testMputMget() {
+		Map<String, String> pairs = new LinkedHashMap<>();
+		for (int i = 0; i < 50; i++)
+			pairs.put("batch" + i, "v" + i);
+		pairs.put("", "invalid");
+		Map<String, KVMessage> puts = null;
+		Map<String, KVMessage> gets = null;
+		Exception ex = null;
+
+		try {
+			puts = kvClient.mput(pairs);
+			gets = kvClient.mget(Arrays.asList("batch7", "batch49", "batchUnset"));
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && puts.size() == 51);
+		assertEquals(StatusType.PUT_SUCCESS, puts.get("batch0").getStatus());
+		assertEquals(StatusType.INVALID_KEY, puts.get("").getStatus());
+		assertEquals("v7", gets.get("batch7").getValue());
+		assertEquals("v49", gets.get("batch49").getValue());
+		assertEquals(StatusType.GET_ERROR, gets.get("batchUnset").getStatus());
+	}
 	
 
 
@@ -0,0 +1,174 @@
+package testing;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+import ecs.ECSHashRing;
+import ecs.ECSNode;
+import junit.extensions.TestSetup;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import shared.messages.BasicKVMessage;
+import shared.messages.BinaryProtocol;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.MessageService;
+
+/**
+ * Requests over raw sockets to a server with the NIO front end, which has to
+ * find frame boundaries itself however the bytes arrive.
+ */
+public class NioFrontEndTest extends TestCase {
+    private static final int PORT = 50400;
+    private static KVServer server;
+
+    private final MessageService messageService = new MessageService();
+    private Socket socket;
+    private InputStream input;
+
+    /**
+     * The tests share one server, closed once they have all run.
+     */
+    public static junit.framework.Test suite() {
+        return new TestSetup(new TestSuite(NioFrontEndTest.class)) {
+            @Override
+            protected void tearDown() {
+                stopServer();
+            }
+        };
+    }
+
+    private static synchronized void startServer() throws Exception {
+        if (server != null)
+            return;
+        KVServer.Config config = new KVServer.Config();
+        config.storageEngine = "MEMORY";
+        config.frontEnd = "NIO";
+        server = new KVServer(PORT, 10, "FIFO", "dbnio", null, -1, config);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                new Socket("localhost", PORT).close();
+                break;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(50);
+            }
+        }
+        ECSHashRing ring = new ECSHashRing();
+        String id = server.getStringIdentifier();
+        ring.addNode(new ECSNode(id, id.split(":")[0], PORT));
+        server.setMetadata(ring.getNodeForIdentifier(id));
+        server.setHashRing(ring);
+    }
+
+    private static synchronized void stopServer() {
+        if (server == null)
+            return;
+        server.close();
+        server = null;
+        new File("dbnio").delete(); // nothing in it with MEMORY storage
+    }
+
+    public void setUp() throws Exception {
+        startServer();
+        socket = new Socket("localhost", PORT);
+        socket.setTcpNoDelay(true); // so each write below arrives on its own
+        socket.setSoTimeout(10000);
+        input = new BufferedInputStream(socket.getInputStream());
+    }
+
+    public void tearDown() throws IOException {
+        socket.close();
+    }
+
+    private static byte[] text(StatusType status, String key, String value) {
+        return new BasicKVMessage(status, key, value).getMsgBytes(); // CR LF terminated
+    }
+
+    private static byte[] binary(StatusType status, String key, String value, int requestId) {
+        BasicKVMessage msg = new BasicKVMessage(status, key, value);
+        msg.setRequestId(requestId);
+        return BinaryProtocol.encode(msg);
+    }
+
+    private void send(byte[] bytes) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(bytes);
+        out.flush();
+    }
+
+    private BasicKVMessage receive() throws IOException {
+        return messageService.receiveBasicKVMessage(input);
+    }
+
+    @Test
+    public void testTextRequest() throws Exception {
+        send(text(StatusType.PUT, "nioText", "hello"));
+        assertEquals(StatusType.PUT_SUCCESS, receive().getStatus());
+
+        send(text(StatusType.GET, "nioText", null));
+        BasicKVMessage reply = receive();
+        assertEquals(StatusType.GET_SUCCESS, reply.getStatus());
+        assertEquals("hello", reply.getValue());
+    }
+
+    @Test
+    public void testBinaryRequest() throws Exception {
+        send(binary(StatusType.PUT, "nioBinary", "world", 7));
+        BasicKVMessage reply = receive();
+        assertEquals(StatusType.PUT_SUCCESS, reply.getStatus());
+        assertEquals(7, reply.getRequestId());
+
+        send(binary(StatusType.GET, "nioBinary", null, 8));
+        reply = receive();
+        assertEquals(StatusType.GET_SUCCESS, reply.getStatus());
+        assertEquals(8, reply.getRequestId());
+        assertEquals("world", reply.getValue());
+    }
+
+    @Test
+    public void testFramesSplitAcrossReads() throws Exception {
+        // a binary and a text frame sent a byte at a time, so headers,
+        // payloads and the CR LF all arrive split over many reads
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        requests.write(binary(StatusType.PUT, "nioSplit", "pieces", 3));
+        requests.write(text(StatusType.GET, "nioSplit", null));
+        for (byte b : requests.toByteArray()) {
+            send(new byte[] { b });
+            Thread.sleep(2);
+        }
+
+        BasicKVMessage reply = receive();
+        assertEquals(StatusType.PUT_SUCCESS, reply.getStatus());
+        assertEquals(3, reply.getRequestId());
+        reply = receive();
+        assertEquals(StatusType.GET_SUCCESS, reply.getStatus());
+        assertEquals("pieces", reply.getValue());
+
+        // and a frame split across reads right after a whole one in the same read
+        byte[] whole = text(StatusType.PUT, "nioSplit", "again");
+        byte[] split = binary(StatusType.GET, "nioSplit", null, 4);
+        byte[] first = new byte[whole.length + 5];
+        System.arraycopy(whole, 0, first, 0, whole.length);
+        System.arraycopy(split, 0, first, whole.length, 5);
+        send(first);
+        Thread.sleep(50);
+        byte[] rest = new byte[split.length - 5];
+        System.arraycopy(split, 5, rest, 0, rest.length);
+        send(rest);
+
+        assertEquals(StatusType.PUT_UPDATE, receive().getStatus());
+        reply = receive();
+        assertEquals(4, reply.getRequestId());
+        assertEquals("again", reply.getValue());
+    }
+}
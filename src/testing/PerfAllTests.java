@@ -27,6 +27,8 @@ public class PerfAllTests {
         // clientSuite.addTestSuite(PerfLRUCacheTest.class); 
         // clientSuite.addTestSuite(PerfLFUCacheTest.class); 
         clientSuite.addTestSuite(PerfFIFOCacheTest.class); 
+        clientSuite.addTestSuite(PerfVirtualThreadTest.class);
+        clientSuite.addTestSuite(PerfMessageCodecTest.class);
         return clientSuite;
     }
     
@@ -0,0 +1,116 @@
+package testing;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import shared.messages.BasicKVMessage;
+import shared.messages.BinaryProtocol;
+import shared.messages.KVMessage.StatusType;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compares encoding and decoding messages in the local text protocol (secret,
+ * padded status name, fixed-width lengths) against binary frames (opcode
+ * byte, varint lengths). Each format gets a warm-up round before the timed
+ * one, so the JIT has compiled both paths.
+ */
+public class PerfMessageCodecTest extends TestCase {
+
+	private int NUM_MESSAGES = 200_000;
+	private int ROUNDS = 3;
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private BasicKVMessage[] messages() {
+		BasicKVMessage[] messages = new BasicKVMessage[NUM_MESSAGES];
+		for (int i = 0; i < NUM_MESSAGES; i++)
+			messages[i] = new BasicKVMessage(i % 2 == 0 ? StatusType.PUT : StatusType.GET_SUCCESS, "key_" + i, "value_" + i);
+		return messages;
+	}
+
+	private long localRound(BasicKVMessage[] messages) {
+		long bytes = 0;
+		for (BasicKVMessage msg : messages) {
+			msg.setBinaryProtocol(false);
+			byte[] encoded = msg.getMsgBytes();
+			BasicKVMessage decoded = new BasicKVMessage(Arrays.copyOf(encoded, encoded.length - 2)); // as received, without the CR LF
+			assertEquals(msg.getValue(), decoded.getValue());
+			bytes += encoded.length;
+		}
+		return bytes;
+	}
+
+	private long binaryRound(BasicKVMessage[] messages) {
+		long bytes = 0;
+		for (BasicKVMessage msg : messages) {
+			msg.setBinaryProtocol(true);
+			byte[] encoded = msg.getMsgBytes();
+			BasicKVMessage decoded = BinaryProtocol.decode(encoded, 0);
+			assertEquals(msg.getValue(), decoded.getValue());
+			bytes += encoded.length;
+		}
+		return bytes;
+	}
+
+	public void testLocalVersusBinaryCodec() {
+		long local = 0, binary = 0, localBytes = 0, binaryBytes = 0;
+		for (int round = 0; round <= ROUNDS; round++) {
+			BasicKVMessage[] messages = messages(); // fresh messages, so no encoding is cached
+			long startTime = System.nanoTime();
+			localBytes = localRound(messages);
+			if (round > 0)
+				local += System.nanoTime() - startTime;
+
+			messages = messages();
+			startTime = System.nanoTime();
+			binaryBytes = binaryRound(messages);
+			if (round > 0)
+				binary += System.nanoTime() - startTime;
+		}
+
+		logger.warn("\n--- Test statistics ---");
+		logger.warn("Messages per round: " + NUM_MESSAGES);
+		logger.warn("Local protocol: " + local / ROUNDS / 1_000_000 + " ms, " + localBytes / NUM_MESSAGES + " bytes per message");
+		logger.warn("Binary protocol: " + binary / ROUNDS / 1_000_000 + " ms, " + binaryBytes / NUM_MESSAGES + " bytes per message");
+		assertTrue(binaryBytes < localBytes);
+	}
+
+	public void testBinaryRoundTrip() throws IOException {
+		String[] strings = { null, "", "key", "with space\r\nand CR LF", "caf\u00e9 \u20ac \ud83d\ude00", "\ud800 unpaired" };
+		int[] requestIds = { 0, 1, 127, 128, 16_384, Integer.MAX_VALUE, -1 };
+		for (String key : strings) {
+			for (String value : strings) {
+				for (int requestId : requestIds) {
+					BasicKVMessage msg = new BasicKVMessage(StatusType.PUT_UPDATE, key, value);
+					msg.setRequestId(requestId);
+					byte[] frame = msg.getMsgBytes();
+
+					int headerSize = BinaryProtocol.headerSize(frame, 0, frame.length);
+					assertEquals(-1, BinaryProtocol.headerSize(frame, 0, headerSize - 1));
+					assertEquals(frame.length, headerSize + BinaryProtocol.payloadLength(frame, 0));
+
+					// forwarding a message copies its undecoded key and value bytes
+					assertTrue(Arrays.equals(frame, BinaryProtocol.encode(BinaryProtocol.decode(frame, 0))));
+
+					BasicKVMessage decoded = BinaryProtocol.decode(frame, 0);
+					assertEquals(StatusType.PUT_UPDATE, decoded.getStatus());
+					assertEquals(requestId, decoded.getRequestId());
+					assertEquals(expected(key), decoded.getKey());
+					assertEquals(expected(value), decoded.getValue());
+				}
+			}
+		}
+	}
+
+	private String expected(String s) {
+		return s == null ? null : new String(s.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+	}
+
+	public void testSmallFrameHeader() {
+		byte[] frame = new BasicKVMessage(StatusType.GET, "k", null).getMsgBytes();
+		assertEquals(BinaryProtocol.MIN_HEADER_SIZE + 1, frame.length);
+	}
+}
@@ -0,0 +1,115 @@
+package testing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import client.KVStore;
+import ecs.ECSHashRing;
+import ecs.ECSNode;
+import junit.framework.TestCase;
+import shared.Threads;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import app_kvServer.KVServer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compares serving many concurrent clients with a platform thread per
+ * connection against a virtual thread per connection (Java 21+; on older JVMs
+ * the VIRTUAL front end falls back to platform threads).
+ */
+public class PerfVirtualThreadTest extends TestCase {
+
+	private int NUM_CLIENTS = 500;
+	private int NUM_REQUESTS = 20; // per client, half PUTs and half GETs
+
+	private String ADDRESS = "localhost";
+	private int PORT = 9997;
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private long runClients(String frontEnd, int port) throws Exception {
+		KVServer.Config config = new KVServer.Config();
+		config.storageEngine = "MEMORY";
+		config.frontEnd = frontEnd;
+		KVServer server = new KVServer(port, 0, "None", "db_perf", null, -1, config);
+
+		// a ring of one node, so the server coordinates every key
+		ECSHashRing ring = new ECSHashRing();
+		String id = server.getStringIdentifier();
+		ring.addNode(new ECSNode(id, id.split(":")[0], port));
+		server.setMetadata(ring.getNodeForIdentifier(id));
+		server.setHashRing(ring);
+
+		// connect everyone first, so the accept backlog does not overflow
+		KVStore[] kvStores = new KVStore[NUM_CLIENTS];
+		for (int c = 0; c < NUM_CLIENTS; c++)
+			kvStores[c] = connect(port);
+
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] clients = new Thread[NUM_CLIENTS];
+		long startTime = System.nanoTime();
+		for (int c = 0; c < NUM_CLIENTS; c++) {
+			final int client = c;
+			final KVStore kvStore = kvStores[c];
+			clients[c] = new Thread(() -> {
+				try {
+					for (int i = 0; i < NUM_REQUESTS / 2; i++) {
+						String key = client + "_" + i;
+						KVMessage put = kvStore.put(key, Integer.toString(i));
+						KVMessage get = kvStore.get(key);
+						if (put.getStatus() != StatusType.PUT_SUCCESS || !Integer.toString(i).equals(get.getValue()))
+							failures.incrementAndGet();
+					}
+					kvStore.disconnect();
+				} catch (Exception e) {
+					failures.incrementAndGet();
+				}
+			});
+			clients[c].start();
+		}
+		for (Thread client : clients)
+			client.join();
+		long elapsedTime = (System.nanoTime() - startTime) / 1_000_000;
+
+		server.kill();
+		assertEquals(0, failures.get());
+		return elapsedTime;
+	}
+
+	private KVStore connect(int port) throws Exception {
+		KVStore kvStore = new KVStore(ADDRESS, port);
+		for (int attempt = 0; ; attempt++) {
+			try {
+				kvStore.connect();
+				return kvStore;
+			} catch (Exception e) { // server may still be binding
+				if (attempt == 50)
+					throw e;
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	private void logStats(String frontEnd, long elapsedTime) {
+		int requests = NUM_CLIENTS * NUM_REQUESTS;
+		logger.warn("\n--- Test statistics ---");
+		logger.warn("Front end: " + frontEnd);
+		logger.warn("Concurrent clients: " + NUM_CLIENTS);
+		logger.warn("Number of requests: " + requests);
+		logger.warn("Elapsed time: " + elapsedTime + " ms");
+		logger.warn("Requests per second: " + (double) requests / (elapsedTime / 1000.0));
+		logger.warn("Live threads: " + Thread.activeCount());
+	}
+
+	public void testPlatformVersusVirtualThreads() throws Exception {
+		if (!Threads.hasVirtualThreads())
+			logger.warn("Virtual threads need Java 21, VIRTUAL runs on platform threads");
+
+		long platform = runClients("THREAD", PORT);
+		logStats("THREAD", platform);
+
+		long virtual = runClients("VIRTUAL", PORT + 1);
+		logStats("VIRTUAL", virtual);
+	}
+}
@@ -7,17 +7,33 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import app_kvECS.ECSClient;
 import app_kvServer.KVServer;
 import ecs.ECS;
+import ecs.ECSHashRing;
+import ecs.ECSNode;
 import ecs.IECSNode;
 import junit.framework.TestCase;
 import logger.LogSetup;
+import shared.CommunicationService;
 import shared.MD5;
+import shared.Metrics;
+import shared.ReplicaAcks;
+import shared.ReplicationQueue;
+import shared.Replicator;
+import shared.messages.BasicKVMessage;
+import shared.messages.Batch;
+import shared.messages.KVMessage.StatusType;
 
 public class ReplicationTest extends TestCase {
     private ECSClient ecsClient;
@@ -38,4 +54,314 @@ public class ReplicationTest extends TestCase {
     public void testStartECSService() {
         assertTrue("ECSService should be running", ecsClient.ecsRunning);
     }
+
+    /*
+     * Replica that records the batches it is sent and answers them as told,
+     * optionally holding each answer until released
+     */
+    private static class StubReplica extends CommunicationService {
+        final List<Map<String, String>> batches = new ArrayList<>();
+        volatile StatusType answer = StatusType.REPLICATE_BATCH_SUCCESS;
+        volatile boolean unreachable = false;
+        volatile CountDownLatch release = new CountDownLatch(0);
+
+        StubReplica() {
+            super("test", "localhost", 0);
+        }
+
+        @Override
+        public BasicKVMessage request(BasicKVMessage msg) throws IOException {
+            synchronized (batches) {
+                batches.add(Batch.decodePairs(msg.getValue()));
+            }
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (unreachable)
+                throw new IOException("Replica unreachable");
+            return new BasicKVMessage(answer, msg.getKey(), null);
+        }
+
+        int received() {
+            synchronized (batches) {
+                return batches.size();
+            }
+        }
+    }
+
+    @Test
+    public void testReplicationQueueAcknowledges() {
+        StubReplica replica = new StubReplica();
+        ReplicationQueue queue = new ReplicationQueue(replica, "stub");
+        queue.offer("a", "1", null);
+        ReplicaAcks acks = new ReplicaAcks(1, 1);
+        long sequence = queue.offer("b", "null", acks);
+        assertEquals(2, sequence);
+        assertTrue("Pair should be acknowledged", queue.awaitAck(sequence));
+        assertTrue("Write concern should be met", acks.await());
+        assertEquals(0, queue.lag());
+        assertFalse(queue.hasFailed());
+        assertFalse("Pair never offered", queue.awaitAck(sequence + 1));
+        queue.close();
+
+        int pairs = 0;
+        for (Map<String, String> batch : replica.batches)
+            pairs += batch.size();
+        assertEquals(2, pairs);
+    }
+
+    @Test
+    public void testReplicationQueueFailure() {
+        StubReplica replica = new StubReplica();
+        ReplicationQueue queue = new ReplicationQueue(replica, "stub");
+        replica.answer = StatusType.PUT_ERROR;
+        ReplicaAcks acks = new ReplicaAcks(1, 1);
+        long rejected = queue.offer("a", "1", acks);
+        assertFalse("Rejected batch should not count as acknowledged", queue.awaitAck(rejected));
+        assertFalse(acks.await());
+        assertTrue(queue.hasFailed());
+
+        replica.answer = StatusType.REPLICATE_BATCH_SUCCESS;
+        replica.unreachable = true;
+        long unsent = queue.offer("b", "2", null);
+        assertFalse("Unsent batch should not count as acknowledged", queue.awaitAck(unsent));
+
+        replica.unreachable = false;
+        long applied = queue.offer("c", "3", null);
+        assertTrue(queue.awaitAck(applied));
+        assertFalse("Earlier failures are remembered", queue.awaitAck(rejected));
+        queue.close();
+    }
+
+    @Test
+    public void testReplicationQueueDeduplicatesBatch() {
+        StubReplica replica = new StubReplica();
+        replica.release = new CountDownLatch(1);
+        ReplicationQueue queue = new ReplicationQueue(replica, "stub");
+        queue.offer("first", "0", null);
+        while (replica.received() == 0)
+            Thread.yield(); // until the sender is held in the first batch
+
+        queue.offer("hot", "1", null);
+        queue.offer("cold", "2", null);
+        long last = queue.offer("hot", "3", null);
+        replica.release.countDown();
+        assertTrue(queue.awaitAck(last));
+        queue.close();
+
+        assertEquals(2, replica.batches.size());
+        Map<String, String> batch = replica.batches.get(1);
+        assertEquals(2, batch.size());
+        assertEquals("3", batch.get("hot"));
+        assertEquals("2", batch.get("cold"));
+    }
+
+    @Test
+    public void testReplicaAcks() throws Exception {
+        assertTrue("Concern 0 waits for nobody", new ReplicaAcks(0, 2).await());
+        assertTrue("Nothing to wait for without replicas", new ReplicaAcks(1, 0).await());
+
+        ReplicaAcks one = new ReplicaAcks(1, 2);
+        one.done(false);
+        one.done(true);
+        assertTrue(one.await());
+
+        // one replica can still make up for a failed one, so await keeps waiting
+        final ReplicaAcks late = new ReplicaAcks(1, 2);
+        late.done(false);
+        Thread reporter = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            late.done(true);
+        });
+        reporter.start();
+        assertTrue(late.await());
+        reporter.join();
+
+        // once too many have failed it gives up without the remaining reports
+        ReplicaAcks two = new ReplicaAcks(2, 3);
+        two.done(false);
+        two.done(false);
+        assertFalse(two.await());
+
+        ReplicaAcks all = new ReplicaAcks(KVServer.ALL_REPLICAS, 3);
+        all.done(true);
+        all.done(false);
+        assertFalse(all.await());
+
+        all = new ReplicaAcks(KVServer.ALL_REPLICAS, 2);
+        all.done(true);
+        all.done(true);
+        assertTrue(all.await());
+    }
+
+    private static KVServer[] startServers(int basePort, String replicationMode, String writeConcern, int count) throws Exception {
+        KVServer.Config config = new KVServer.Config();
+        config.storageEngine = "MEMORY";
+        config.fsyncPolicy = "OS";
+        config.replicationMode = replicationMode;
+        config.writeConcern = writeConcern;
+        KVServer[] servers = new KVServer[count];
+        for (int i = 0; i < count; i++)
+            servers[i] = new KVServer(basePort + i, 10, "FIFO", "dbreplication" + (basePort + i), null, -1, config);
+        for (int i = 0; i < count; i++)
+            awaitListening(basePort + i);
+        return servers;
+    }
+
+    private static void awaitListening(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /* Hash ring of the first nodes servers, with the given replication factor, set on each of them */
+    private static ECSHashRing applyRing(KVServer[] servers, int nodes, int replicas) throws Exception {
+        ECSHashRing ring = new ECSHashRing();
+        ring.setReplicas(replicas);
+        for (int i = 0; i < nodes; i++) {
+            String id = servers[i].getStringIdentifier();
+            ring.addNode(new ECSNode(id, id.split(":")[0], Integer.parseInt(id.split(":")[1])));
+        }
+        for (int i = 0; i < nodes; i++) {
+            servers[i].setMetadata(ring.getNodeForIdentifier(servers[i].getStringIdentifier()));
+            servers[i].setHashRing(ring);
+        }
+        return ring;
+    }
+
+    private static String keyOwnedBy(ECSHashRing ring, KVServer server, String prefix) {
+        for (int i = 0;; i++) {
+            if (ring.getNodeForKey(prefix + i).getNodeName().equals(server.getStringIdentifier()))
+                return prefix + i;
+        }
+    }
+
+    private static void closeAll(KVServer[] servers) {
+        for (KVServer server : servers) {
+            server.close();
+            new File("dbreplication" + server.getPort()).delete(); // nothing in it with MEMORY storage
+        }
+    }
+
+    @Test
+    public void testWriteConcernWithReplicaDown() throws Exception {
+        String[] concerns = { "1", "ALL" };
+        for (int c = 0; c < concerns.length; c++) {
+            KVServer[] servers = startServers(50110 + 10 * c, "SYNC", concerns[c], 3);
+            try {
+                ECSHashRing ring = applyRing(servers, 3, 2);
+                servers[1].close(); // one of the coordinator's two replicas
+
+                String key = keyOwnedBy(ring, servers[0], "concern");
+                servers[0].putKV(key, "v");
+                boolean replicated = servers[0].replicate(key, "v");
+                assertEquals("Concern " + concerns[c] + " with one of two replicas down", concerns[c].equals("1"), replicated);
+                if (replicated) // acknowledged by the replica still up
+                    assertEquals("v", servers[2].getKV(key));
+            } finally {
+                closeAll(servers);
+            }
+        }
+    }
+
+    /*
+     * Pairs moved to replicas since before, once at least expected have been
+     * or the deadline passes, leaving time for any beyond expected to show
+     */
+    private static long awaitTransferred(long before, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (Metrics.count(Replicator.TRANSFERRED) - before < expected && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        Thread.sleep(500);
+        return Metrics.count(Replicator.TRANSFERRED) - before;
+    }
+
+    private static int copies(KVServer[] servers, String key, String value) {
+        int copies = 0;
+        for (KVServer server : servers) {
+            try {
+                if (value.equals(server.getKV(key)))
+                    copies++;
+            } catch (Exception e) {
+                // not stored there
+            }
+        }
+        return copies;
+    }
+
+    private static int ownedBy(ECSHashRing ring, ECSNode node, int pairs) {
+        int owned = 0;
+        for (int i = 0; i < pairs; i++) {
+            if (ring.getNodeForKey("move" + i).getNodeName().equals(node.getNodeName()))
+                owned++;
+        }
+        return owned;
+    }
+
+    @Test
+    public void testMoveKeysOnRingUpdates() throws Exception {
+        final int pairs = 200;
+        KVServer[] servers = startServers(50130, "SYNC", null, 4);
+        try {
+            ECSHashRing ring = applyRing(servers, 4, 1);
+            for (int i = 0; i < pairs; i++) {
+                for (KVServer server : servers) {
+                    if (ring.getNodeForKey("move" + i).getNodeName().equals(server.getStringIdentifier())) {
+                        server.putKV("move" + i, "v" + i);
+                        assertTrue(server.replicate("move" + i, "v" + i));
+                    }
+                }
+            }
+
+            long before = Metrics.count(Replicator.TRANSFERRED);
+            applyRing(servers, 4, 1);
+            assertEquals("Same ring moves nothing", 0, awaitTransferred(before, 0));
+
+            // the removed node's successor keeps its replica, which only needs
+            // the range taken over; the predecessor's replica is new and needs all
+            ECSNode removed = ring.getNodeForIdentifier(servers[3].getStringIdentifier());
+            ECSNode predecessor = ring.getNodePredecessor(removed.getNodeIdentifier());
+            int expected = ownedBy(ring, removed, pairs) + ownedBy(ring, predecessor, pairs);
+            before = Metrics.count(Replicator.TRANSFERRED);
+            KVServer[] remaining = { servers[0], servers[1], servers[2] };
+            applyRing(remaining, 3, 1);
+            assertEquals("Kept replica gets the gained range only", expected, awaitTransferred(before, expected));
+            for (int i = 0; i < pairs; i++)
+                assertEquals(2, copies(remaining, "move" + i, "v" + i));
+
+            // every coordinator gets a second, new replica that needs all its keys
+            before = Metrics.count(Replicator.TRANSFERRED);
+            applyRing(remaining, 3, 2);
+            assertEquals("New replicas get every coordinated key", pairs, awaitTransferred(before, pairs));
+            for (int i = 0; i < pairs; i++)
+                assertEquals(3, copies(remaining, "move" + i, "v" + i));
+        } finally {
+            closeAll(servers);
+        }
+    }
+
+    @Test
+    public void testReplicationQueueClose() {
+        StubReplica replica = new StubReplica();
+        ReplicationQueue queue = new ReplicationQueue(replica, "stub");
+        queue.offer("a", "1", null);
+        queue.close();
+        assertEquals("Queued writes are sent before closing", 1, replica.batches.size());
+        assertEquals(-1, queue.offer("b", "2", null));
+        assertFalse(queue.awaitAck(-1));
+    }
 }
@@ -0,0 +1,671 @@
+package testing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import app_kvServer.BloomFilter;
+import app_kvServer.CompressedStorage;
+import app_kvServer.FileStorage;
+import app_kvServer.IKVServer.FsyncPolicy;
+import app_kvServer.LSMTreeStorage;
+import app_kvServer.LogStructuredStorage;
+import app_kvServer.MemoryStorage;
+import app_kvServer.MerkleTree;
+import app_kvServer.StorageEngine;
+import app_kvServer.TokenIndexedStorage;
+import app_kvServer.ValueOutputStream;
+import app_kvServer.WriteAheadLog;
+
+import ecs.ECSNode;
+import shared.MD5;
+import shared.Metrics;
+
+import junit.framework.TestCase;
+
+public class StorageTest extends TestCase {
+
+    private static final String DIR = "db_storage_test";
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] b) {
+        return b == null ? null : new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                deleteDir(f);
+        }
+        dir.delete();
+    }
+
+    public void setUp() {
+        deleteDir(new File(DIR));
+    }
+
+    public void tearDown() {
+        deleteDir(new File(DIR));
+    }
+
+    public void testLogStoragePutGetDelete() throws Exception {
+        LogStructuredStorage storage = new LogStructuredStorage(DIR);
+        storage.put("a", bytes("1"));
+        storage.put("b", bytes("2"));
+        storage.put("a", bytes("3"));
+
+        assertEquals("3", string(storage.get("a")));
+        assertEquals("2", string(storage.get("b")));
+        assertTrue(storage.delete("b"));
+        assertFalse(storage.delete("b"));
+        assertFalse(storage.contains("b"));
+        assertNull(storage.get("b"));
+        storage.close();
+    }
+
+    public void testLogStorageRecovery() throws Exception {
+        LogStructuredStorage storage = new LogStructuredStorage(DIR);
+        storage.put("key with spaces", bytes("value\nwith\nnewlines"));
+        storage.put("gone", bytes("x"));
+        storage.delete("gone");
+        storage.close();
+
+        storage = new LogStructuredStorage(DIR);
+        assertEquals("value\nwith\nnewlines", string(storage.get("key with spaces")));
+        assertFalse(storage.contains("gone"));
+        assertEquals(1, storage.size());
+        storage.close();
+    }
+
+    public void testLogStorageSegmentRollAndMerge() throws Exception {
+        LogStructuredStorage storage = new LogStructuredStorage(DIR, 256);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 10; i++)
+                storage.put("k" + i, bytes("round" + round + "-" + i));
+        }
+        storage.awaitBackgroundWork();
+
+        for (int i = 0; i < 10; i++)
+            assertEquals("round19-" + i, string(storage.get("k" + i)));
+        storage.close();
+
+        storage = new LogStructuredStorage(DIR, 256);
+        for (int i = 0; i < 10; i++)
+            assertEquals("round19-" + i, string(storage.get("k" + i)));
+        storage.close();
+    }
+
+    public void testLogStorageHintFiles() throws Exception {
+        LogStructuredStorage storage = new LogStructuredStorage(DIR, 256);
+        for (int i = 0; i < 40; i++)
+            storage.put("k" + i, bytes("v" + i));
+        storage.delete("k7");
+        storage.put("k8", bytes("updated"));
+        storage.awaitBackgroundWork();
+        storage.close();
+
+        File[] hints = new File(DIR).listFiles((d, name) -> name.endsWith(".hint"));
+        assertTrue(hints.length > 0);
+
+        storage = new LogStructuredStorage(DIR, 256);
+        assertEquals(39, storage.size());
+        assertNull(storage.get("k7"));
+        assertEquals("updated", string(storage.get("k8")));
+        assertEquals("v39", string(storage.get("k39")));
+        Map<String, BigInteger> tokens = storage.knownTokens();
+        assertFalse(tokens.isEmpty());
+        for (Map.Entry<String, BigInteger> token : tokens.entrySet())
+            assertEquals(MD5.getHash(token.getKey()), token.getValue());
+        storage.close();
+
+        // a damaged hint file is ignored and its segment scanned instead
+        Files.write(hints[0].toPath(), bytes("garbage"));
+        storage = new LogStructuredStorage(DIR, 256);
+        assertEquals(39, storage.size());
+        assertEquals("v0", string(storage.get("k0")));
+        storage.close();
+    }
+
+    public void testLogStorageMmapReads() throws Exception {
+        LogStructuredStorage storage = new LogStructuredStorage(DIR, 512, true);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 10; i++) {
+                storage.put("k" + i, bytes("round" + round + "-" + i));
+                // read back straight away so the active segment mapping has to grow
+                assertEquals("round" + round + "-" + i, string(storage.get("k" + i)));
+            }
+        }
+        storage.awaitBackgroundWork();
+
+        for (int i = 0; i < 10; i++)
+            assertEquals("round19-" + i, string(storage.get("k" + i)));
+        storage.clear();
+        assertNull(storage.get("k0"));
+        storage.put("k0", bytes("fresh"));
+        assertEquals("fresh", string(storage.get("k0")));
+        storage.close();
+
+        storage = new LogStructuredStorage(DIR, 512, true);
+        assertEquals("fresh", string(storage.get("k0")));
+        storage.close();
+    }
+
+    public void testLogStorageClear() throws Exception {
+        LogStructuredStorage storage = new LogStructuredStorage(DIR);
+        storage.put("a", bytes("1"));
+        storage.clear();
+        assertFalse(storage.contains("a"));
+        storage.put("b", bytes("2"));
+        assertEquals("2", string(storage.get("b")));
+        storage.close();
+    }
+
+    public void testLSMStorageFlushAndCompaction() throws Exception {
+        LSMTreeStorage storage = new LSMTreeStorage(DIR, 512, 3);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 20; i++)
+                storage.put(String.format("k%02d", i), bytes("round" + round + "-" + i));
+        }
+        storage.delete("k05");
+
+        for (int i = 0; i < 20; i++) {
+            if (i != 5)
+                assertEquals("round9-" + i, string(storage.get(String.format("k%02d", i))));
+        }
+        assertNull(storage.get("k05"));
+        storage.close();
+
+        storage = new LSMTreeStorage(DIR, 512, 3);
+        assertEquals("round9-0", string(storage.get("k00")));
+        assertFalse(storage.contains("k05"));
+        assertEquals(19, storage.keys().size());
+        storage.close();
+    }
+
+    public void testLSMStorageSizeTieredCompaction() throws Exception {
+        LSMTreeStorage storage = new LSMTreeStorage(DIR, 512, 3);
+        for (int i = 0; i < 300; i++)
+            storage.put(String.format("k%04d", i), bytes("value-" + i));
+        storage.close();
+
+        File[] runs = new File(DIR).listFiles((d, name) -> name.endsWith(".sst"));
+        assertTrue(runs.length > 1); // runs of different tiers are left apart
+        File largest = runs[0];
+        for (File run : runs) {
+            if (run.length() > largest.length())
+                largest = run;
+        }
+        byte[] contents = Files.readAllBytes(largest.toPath());
+
+        // a few more flushes only merge the small runs
+        storage = new LSMTreeStorage(DIR, 512, 3);
+        for (int i = 300; i < 320; i++)
+            storage.put(String.format("k%04d", i), bytes("value-" + i));
+        storage.close();
+        assertTrue(largest.exists());
+        assertTrue(Arrays.equals(contents, Files.readAllBytes(largest.toPath())));
+
+        storage = new LSMTreeStorage(DIR, 512, 3);
+        assertEquals(320, storage.keys().size());
+        assertEquals("value-0", string(storage.get("k0000")));
+        assertEquals("value-319", string(storage.get("k0319")));
+        storage.close();
+    }
+
+    public void testLSMStorageCompactionCrash() throws Exception {
+        LSMTreeStorage storage = new LSMTreeStorage(DIR, 512, 100);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 20; i++)
+                storage.put(String.format("k%02d", i), bytes("round" + round + "-" + i));
+        }
+        storage.delete("k05");
+        for (int i = 0; i < 20; i++)
+            storage.put(String.format("f%02d", i), bytes("filler" + i));
+        storage.close();
+
+        // keep the runs about to be compacted, as a crash before their deletion would
+        Map<String, byte[]> inputs = new HashMap<>();
+        for (File file : new File(DIR).listFiles()) {
+            if (file.getName().endsWith(".sst"))
+                inputs.put(file.getName(), Files.readAllBytes(file.toPath()));
+        }
+        assertTrue(inputs.size() > 2);
+
+        storage = new LSMTreeStorage(DIR, 512, 2);
+        for (int i = 0; i < 20; i++)
+            storage.put(String.format("g%02d", i), bytes("filler" + i));
+        storage.close();
+        for (Map.Entry<String, byte[]> input : inputs.entrySet()) {
+            assertFalse(new File(DIR, input.getKey()).exists());
+            Files.write(new File(DIR, input.getKey()).toPath(), input.getValue());
+        }
+
+        storage = new LSMTreeStorage(DIR, 512, 2);
+        for (String name : inputs.keySet())
+            assertFalse(new File(DIR, name).exists());
+        assertNull(storage.get("k05"));
+        assertEquals("round4-6", string(storage.get("k06")));
+        assertEquals(59, storage.keys().size());
+        storage.close();
+    }
+
+    public void testLSMStorageOrderedIteration() throws Exception {
+        LSMTreeStorage storage = new LSMTreeStorage(DIR, 256, 4);
+        String[] keys = { "pear", "apple", "fig", "banana", "cherry", "date" };
+        for (String key : keys)
+            storage.put(key, bytes(key.toUpperCase()));
+        storage.put("apple", bytes("GREEN"));
+        storage.delete("fig");
+
+        Iterator<Map.Entry<String, byte[]>> it = storage.range(null, null);
+        String previous = "";
+        int count = 0;
+        while (it.hasNext()) {
+            Map.Entry<String, byte[]> entry = it.next();
+            assertTrue(entry.getKey().compareTo(previous) > 0);
+            assertFalse(entry.getKey().equals("fig"));
+            if (entry.getKey().equals("apple"))
+                assertEquals("GREEN", string(entry.getValue()));
+            previous = entry.getKey();
+            count++;
+        }
+        assertEquals(5, count);
+
+        List<String> sorted = storage.keys();
+        assertEquals("apple", sorted.get(0));
+        assertEquals("pear", sorted.get(sorted.size() - 1));
+        storage.close();
+    }
+
+    public void testLSMStorageBoundedRangeClosesTables() throws Exception {
+        LSMTreeStorage storage = new LSMTreeStorage(DIR, 256, 100);
+        for (int i = 0; i < 100; i++)
+            storage.put(String.format("k%03d", i), bytes("v" + i));
+
+        File fds = new File("/proc/self/fd");
+        int before = fds.isDirectory() ? fds.list().length : 0;
+        for (int i = 0; i < 50; i++) {
+            Iterator<Map.Entry<String, byte[]>> it = storage.range("k010", "k012");
+            assertEquals("k010", it.next().getKey());
+            assertEquals("k011", it.next().getKey());
+            assertFalse(it.hasNext());
+        }
+        if (fds.isDirectory()) // not a scan of every SSTable per range
+            assertTrue(fds.list().length < before + 20);
+        storage.close();
+    }
+
+    public void testLSMStorageClear() throws Exception {
+        LSMTreeStorage storage = new LSMTreeStorage(DIR, 256, 4);
+        for (int i = 0; i < 50; i++)
+            storage.put("k" + i, bytes("v" + i));
+        storage.clear();
+        assertFalse(storage.contains("k1"));
+        storage.put("b", bytes("2"));
+        assertEquals("2", string(storage.get("b")));
+        storage.close();
+
+        storage = new LSMTreeStorage(DIR, 256, 4);
+        assertEquals(1, storage.keys().size());
+        storage.close();
+    }
+
+    private void checkRangeAndSnapshot(StorageEngine storage) throws Exception {
+        for (int i = 0; i < 30; i++)
+            storage.put(String.format("k%02d", i), bytes("v" + i));
+        storage.delete("k12");
+
+        Iterator<Map.Entry<String, byte[]>> it = storage.range("k10", "k15");
+        String[] expected = { "k10", "k11", "k13", "k14" };
+        for (String key : expected) {
+            assertTrue(it.hasNext());
+            Map.Entry<String, byte[]> entry = it.next();
+            assertEquals(key, entry.getKey());
+            assertEquals("v" + Integer.parseInt(key.substring(1)), string(entry.getValue()));
+        }
+        assertFalse(it.hasNext());
+
+        Map<String, byte[]> snapshot = storage.snapshot();
+        storage.put("k00", bytes("changed"));
+        assertEquals(29, snapshot.size());
+        assertEquals("v0", string(snapshot.get("k00")));
+        assertEquals("k00", snapshot.keySet().iterator().next());
+        storage.close();
+    }
+
+    public void testStorageEngineRange() throws Exception {
+        checkRangeAndSnapshot(new MemoryStorage());
+        checkRangeAndSnapshot(new FileStorage(DIR + File.separator + "file"));
+        checkRangeAndSnapshot(new LogStructuredStorage(DIR + File.separator + "log"));
+        checkRangeAndSnapshot(new LogStructuredStorage(DIR + File.separator + "mmap", 512, true));
+        checkRangeAndSnapshot(new LSMTreeStorage(DIR + File.separator + "lsm", 256, 4));
+    }
+
+    public void testWriteAheadLogGroupCommit() throws Exception {
+        new File(DIR).mkdirs();
+        final WriteAheadLog wal = new WriteAheadLog(DIR + File.separator + "test.wal", FsyncPolicy.ALWAYS, 0);
+        Thread[] writers = new Thread[8];
+        final Exception[] errors = new Exception[writers.length];
+        for (int t = 0; t < writers.length; t++) {
+            final int id = t;
+            writers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++)
+                        wal.awaitDurable(wal.append("w" + id + "-" + i, bytes("v" + i)));
+                } catch (Exception e) {
+                    errors[id] = e;
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers)
+            writer.join();
+        for (Exception error : errors)
+            assertNull(error);
+
+        wal.awaitDurable(wal.append("w0-0", null));
+        wal.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(DIR + File.separator + "test.wal", FsyncPolicy.OS, 0);
+        List<Map.Entry<String, byte[]>> records = reopened.replay();
+        assertEquals(8 * 50 + 1, records.size());
+        assertEquals("w0-0", records.get(records.size() - 1).getKey());
+        assertNull(records.get(records.size() - 1).getValue());
+
+        reopened.checkpoint();
+        assertEquals(0, reopened.replay().size());
+        reopened.close();
+    }
+
+    public void testWriteAheadLogStoredMarker() throws Exception {
+        new File(DIR).mkdirs();
+        WriteAheadLog wal = new WriteAheadLog(DIR + File.separator + "test.wal", FsyncPolicy.ALWAYS, 0);
+        wal.append("a", bytes("old"));
+        wal.append("b", bytes("1"));
+        wal.awaitDurable(wal.appendStored("a"));
+        wal.awaitDurable(wal.append("a", bytes("new")));
+        wal.close();
+
+        // the write of a before its marker is not replayed, the one after it is
+        wal = new WriteAheadLog(DIR + File.separator + "test.wal", FsyncPolicy.OS, 0);
+        List<Map.Entry<String, byte[]>> records = wal.replay();
+        assertEquals(2, records.size());
+        assertEquals("b", records.get(0).getKey());
+        assertEquals("a", records.get(1).getKey());
+        assertEquals("new", string(records.get(1).getValue()));
+        wal.close();
+    }
+
+    public void testTokenIndexedRange() throws Exception {
+        MemoryStorage engine = new MemoryStorage();
+        for (int i = 0; i < 100; i++)
+            engine.put("pre" + i, bytes("v" + i)); // indexed on open
+        TokenIndexedStorage storage = new TokenIndexedStorage(engine);
+        for (int i = 0; i < 100; i++)
+            storage.put("key" + i, bytes("v" + i));
+        for (int i = 0; i < 100; i += 3)
+            storage.delete("key" + i);
+
+        BigInteger quarter = ECSNode.RING_END.shiftRight(2);
+        BigInteger[][] ranges = {
+            { quarter, quarter.multiply(BigInteger.valueOf(2)) },
+            { quarter.multiply(BigInteger.valueOf(3)), quarter }, // wraps around
+            { ECSNode.RING_START, ECSNode.RING_END },
+        };
+        for (BigInteger[] range : ranges) {
+            Set<String> expected = new HashSet<>();
+            for (String key : storage.keys()) {
+                if (ECSNode.isKeyInRange(MD5.getHash(key), range[0], range[1]))
+                    expected.add(key);
+            }
+            assertEquals(expected, new HashSet<>(storage.keysInRange(range[0], range[1])));
+            assertEquals(expected, storage.pairsInRange(range[0], range[1]).keySet());
+        }
+
+        storage.clear();
+        assertTrue(storage.keysInRange(ECSNode.RING_START, ECSNode.RING_END).isEmpty());
+    }
+
+    public void testMerkleTree() throws Exception {
+        TokenIndexedStorage a = new TokenIndexedStorage(new MemoryStorage());
+        TokenIndexedStorage b = new TokenIndexedStorage(new MemoryStorage());
+        for (int i = 0; i < 200; i++) {
+            a.put("key" + i, bytes("v" + i));
+            b.put("key" + (199 - i), bytes("v" + (199 - i))); // same pairs, other order
+        }
+
+        BigInteger quarter = ECSNode.RING_END.shiftRight(2);
+        BigInteger start = quarter.multiply(BigInteger.valueOf(3)), end = quarter; // wraps around
+        List<Integer> root = Arrays.asList(0);
+        MerkleTree treeA = a.getMerkleTree(), treeB = b.getMerkleTree();
+        assertTrue(Arrays.equals(treeA.childDigests(start, end, 0, root), treeB.childDigests(start, end, 0, root)));
+
+        String changed = null, outside = null;
+        for (int i = 0; i < 200 && (changed == null || outside == null); i++) {
+            if (ECSNode.isKeyInRange(MD5.getHash("key" + i), start, end))
+                changed = changed == null ? "key" + i : changed;
+            else
+                outside = outside == null ? "key" + i : outside;
+        }
+        b.put(outside, bytes("other"));
+        assertTrue(Arrays.equals(treeA.childDigests(start, end, 0, root), treeB.childDigests(start, end, 0, root)));
+        b.put(changed, bytes("other")); // drops the cached leaf
+
+        // descend through the differing children down to the leaf holding the key
+        List<Integer> nodes = root;
+        for (int level = 0; level < MerkleTree.DEPTH; level++) {
+            long[] digestsA = treeA.childDigests(start, end, level, nodes);
+            long[] digestsB = treeB.childDigests(start, end, level, nodes);
+            List<Integer> differing = new ArrayList<>();
+            for (int i = 0; i < digestsA.length; i++) {
+                if (digestsA[i] != digestsB[i])
+                    differing.add(nodes.get(i / MerkleTree.FANOUT) * MerkleTree.FANOUT + i % MerkleTree.FANOUT);
+            }
+            assertEquals(1, differing.size());
+            nodes = differing;
+        }
+        Map<String, Long> pairsA = treeA.pairDigests(start, end, nodes);
+        Map<String, Long> pairsB = treeB.pairDigests(start, end, nodes);
+        assertEquals(pairsA.keySet(), pairsB.keySet());
+        for (String key : pairsA.keySet())
+            assertEquals(key.equals(changed), !pairsA.get(key).equals(pairsB.get(key)));
+
+        b.put(changed, bytes(new String(a.get(changed), StandardCharsets.UTF_8)));
+        assertTrue(Arrays.equals(treeA.childDigests(start, end, 0, root), treeB.childDigests(start, end, 0, root)));
+        b.delete(changed);
+        assertFalse(Arrays.equals(treeA.childDigests(start, end, 0, root), treeB.childDigests(start, end, 0, root)));
+    }
+
+    public void testBloomFilter() throws Exception {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++)
+            filter.add("present" + i);
+        for (int i = 0; i < 1000; i++)
+            assertTrue(filter.mightContain("present" + i));
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("absent" + i))
+                falsePositives++;
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    public void testBloomFilterSkipsMisses() throws Exception {
+        FileStorage files = new FileStorage(DIR + File.separator + "file");
+        LSMTreeStorage lsm = new LSMTreeStorage(DIR + File.separator + "lsm", 256, 100);
+        for (int i = 0; i < 50; i++) {
+            files.put("k" + i, bytes("v" + i));
+            lsm.put("k" + i, bytes("v" + i));
+        }
+
+        long skipped = Metrics.count("storage.bloom.skipped");
+        for (int i = 0; i < 50; i++) {
+            assertNull(files.get("missing" + i));
+            assertNull(lsm.get("missing" + i));
+            assertEquals("v" + i, string(files.get("k" + i)));
+            assertEquals("v" + i, string(lsm.get("k" + i)));
+        }
+        assertTrue(Metrics.count("storage.bloom.skipped") > skipped);
+        double rate = Metrics.snapshot().get("storage.bloom.false_positive_rate").doubleValue();
+        assertTrue(rate >= 0 && rate < 0.5);
+
+        // only reads are counted, not the contains checks before them
+        skipped = Metrics.count("storage.bloom.skipped");
+        long falsePositives = Metrics.count("storage.bloom.false_positives");
+        for (int i = 0; i < 50; i++) {
+            assertFalse(files.contains("missing" + i));
+            assertFalse(lsm.contains("missing" + i));
+        }
+        assertEquals(skipped, Metrics.count("storage.bloom.skipped"));
+        assertEquals(falsePositives, Metrics.count("storage.bloom.false_positives"));
+        files.close();
+        lsm.close();
+    }
+
+    public void testFileStorageConcurrentPuts() throws Exception {
+        final FileStorage storage = new FileStorage(DIR);
+        Thread[] writers = new Thread[8];
+        final Exception[] failure = new Exception[1];
+        for (int t = 0; t < writers.length; t++) {
+            final int id = t;
+            writers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 300; i++) // passes the filter capacity, forcing rebuilds
+                        storage.put("t" + id + "_" + i, bytes("v" + i));
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers)
+            writer.join();
+
+        assertNull(failure[0]);
+        assertEquals(2400, storage.keys().size());
+        for (int t = 0; t < writers.length; t++) {
+            for (int i = 0; i < 300; i++)
+                assertEquals("v" + i, string(storage.get("t" + t + "_" + i)));
+        }
+        storage.close();
+    }
+
+    public void testCompressedStorage() throws Exception {
+        MemoryStorage engine = new MemoryStorage();
+        engine.put("old", bytes("written before compression was enabled"));
+        CompressedStorage storage = new CompressedStorage(engine, 64);
+
+        StringBuilder email = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            email.append("Subject: quarterly report\nPlease find the numbers attached.\n");
+        byte[] random = new byte[4096];
+        new Random(42).nextBytes(random);
+        byte[] magic = { 0x00, 'Z', 1, 2, 3 };
+
+        storage.put("email", bytes(email.toString()));
+        storage.put("small", bytes("tiny"));
+        storage.put("random", random);
+        storage.put("magic", magic);
+
+        assertTrue(engine.get("email").length < email.length() / 3);
+        assertEquals("tiny", string(engine.get("small")));
+        assertEquals(email.toString(), string(storage.get("email")));
+        assertEquals("tiny", string(storage.get("small")));
+        assertTrue(Arrays.equals(random, storage.get("random")));
+        assertTrue(Arrays.equals(magic, storage.get("magic")));
+        assertEquals("written before compression was enabled", string(storage.get("old")));
+
+        Iterator<Map.Entry<String, byte[]>> it = storage.range("email", "emailz");
+        assertEquals(email.toString(), string(it.next().getValue()));
+        assertEquals(email.toString(), string(storage.snapshot().get("email")));
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            out.write(buffer, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+
+    public void testStreamedValues() throws Exception {
+        byte[] large = new byte[300 * 1024];
+        new Random(7).nextBytes(large);
+        ValueOutputStream out;
+
+        StorageEngine[] engines = { new FileStorage(DIR + File.separator + "file"), new MemoryStorage(),
+                new LogStructuredStorage(DIR + File.separator + "log", 64 * 1024),
+                new CompressedStorage(new MemoryStorage(), 512) };
+        for (StorageEngine storage : engines) {
+            out = storage.openWrite("big");
+            for (int off = 0; off < large.length; off += 1000) // writes of any size
+                out.write(large, off, Math.min(1000, large.length - off));
+            assertNull(storage.get("big")); // not stored until closed
+            out.close();
+            assertTrue(Arrays.equals(large, storage.get("big")));
+            assertTrue(Arrays.equals(large, readAll(storage.openRead("big"))));
+            assertNull(storage.openRead("missing"));
+
+            out = storage.openWrite("big");
+            out.write(bytes("dropped"));
+            out.abort();
+            assertTrue(Arrays.equals(large, storage.get("big")));
+        }
+        File[] partials = new File(DIR + File.separator + "file" + File.separator + ".partial").listFiles();
+        assertEquals(0, partials.length);
+        assertEquals(Arrays.asList("big"), engines[0].keys()); // the staging directory is no key
+        engines[0].close();
+
+        // streamed log records survive a restart like put ones, and no staged file is left
+        engines[2].put("small", bytes("v"));
+        engines[2].close();
+        LogStructuredStorage log = new LogStructuredStorage(DIR + File.separator + "log", 64 * 1024);
+        assertTrue(Arrays.equals(large, log.get("big")));
+        assertEquals("v", string(log.get("small")));
+        for (File file : new File(DIR + File.separator + "log").listFiles())
+            assertFalse(file.getName().endsWith(".tmp"));
+        log.close();
+
+        // streamed values are stored in the format put uses
+        MemoryStorage plain = new MemoryStorage();
+        CompressedStorage compressed = new CompressedStorage(plain, 512);
+        byte[] repetitive = new byte[100 * 1024];
+        Arrays.fill(repetitive, (byte) 'a');
+        for (byte[] value : new byte[][] { repetitive, bytes("short") }) {
+            out = compressed.openWrite("k");
+            out.write(value);
+            out.close();
+            assertTrue(Arrays.equals(value, compressed.get("k")));
+            assertTrue(Arrays.equals(value, readAll(compressed.openRead("k"))));
+        }
+        assertEquals("short", string(plain.get("k")));
+        compressed.put("k", repetitive);
+        assertTrue(Arrays.equals(repetitive, readAll(compressed.openRead("k"))));
+
+        TokenIndexedStorage indexed = new TokenIndexedStorage(new MemoryStorage());
+        out = indexed.openWrite("streamed");
+        out.write(bytes("value"));
+        assertTrue(indexed.keysInRange(ECSNode.RING_START, ECSNode.RING_END).isEmpty());
+        out.close();
+        assertEquals(List.of("streamed"), indexed.keysInRange(ECSNode.RING_START, ECSNode.RING_END));
+    }
+}